@@ -0,0 +1,190 @@
+/* ********************************************************************************************
+ * AreaEffect.java
+ *
+ * Damage or healing dealt to many creatures at once, such as a fireball or a mass cure. The
+ * amount is a DiceExpression, like "8d6" or "2d8+4", rolled once for every creature as area
+ * spells are. Damage can allow a saving throw against a DC, which halves it or negates it,
+ * and each creature can be resistant, vulnerable or immune, as set by its creature id so that
+ * it stays with the creature whatever row it is in.
+ *
+ * The tracker keeps no saving throw bonuses, so a saving throw is a d20 plus the creature's
+ * initiative modifier, its Dexterity modifier for most creatures, which suits the Dexterity
+ * saves most area spells call for. All of the creatures are worked out in one pass over
+ * primitive arrays of their HP, modifiers and resistances, and the new HP are returned together
+ * to be stored as one change.
+ * ******************************************************************************************** */
+
+package tracker;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.SplittableRandom;
+
+public class AreaEffect
+{
+
+	// How a creature takes the damage
+	public static final int NORMAL = 0;
+	public static final int RESISTANT = 1;
+	public static final int VULNERABLE = 2;
+	public static final int IMMUNE = 3;
+
+	private final boolean healing;
+
+	private final DiceExpression amount;
+
+	// DC of the saving throw, or 0 for none
+	private int saveDC;
+	private boolean halfOnSave = true;
+
+	// Resistance of each creature by id, NORMAL for those not in it
+	private final HashMap<Integer, Integer> resistances = new HashMap<Integer, Integer>();
+
+	// Compiles amount, a number or dice such as "8d6" or "2d8+4". Throws
+	// IllegalArgumentException if it is neither.
+	public AreaEffect(String amount, boolean healing)
+	{
+		this(DiceExpression.compile(amount), healing);
+	}
+
+	// Any mod in amount counts as 0
+	public AreaEffect(DiceExpression amount, boolean healing)
+	{
+		this.amount = amount;
+		this.healing = healing;
+	}
+
+	public boolean isHealing()
+	{
+		return healing;
+	}
+
+	// Lets each creature make a saving throw against dc, adding its initiative modifier, taking
+	// half damage on a success if halfOnSave is set and none otherwise. A dc of 0 means no saving
+	// throw. Healing ignores it.
+	public void setSave(int dc, boolean halfOnSave)
+	{
+		saveDC = dc;
+		this.halfOnSave = halfOnSave;
+	}
+
+	// Sets how the creature with an id (see Encounter.getCreatureId) takes the damage: NORMAL,
+	// RESISTANT, VULNERABLE or IMMUNE
+	public void setResistance(int creatureId, int resistance)
+	{
+		if (resistance == NORMAL)
+			resistances.remove(creatureId);
+		else
+			resistances.put(creatureId, resistance);
+	}
+
+	// Rolls the amount and works out the new HP of each of rows, without changing the encounter.
+	// Damage stops at 0 HP and healing at max HP.
+	public Outcome resolve(Encounter encounter, int[] rows, SplittableRandom random)
+	{
+		int count = rows.length;
+		int[] hp = new int[count];
+		int[] hpMax = new int[count];
+		int[] saveBonus = new int[count];
+		int[] resistance = new int[count];
+		for (int i = 0; i < count; i++)
+		{
+			int row = rows[i];
+			hp[i] = encounter.getHPCurrent(row);
+			hpMax[i] = encounter.getHPMax(row);
+			saveBonus[i] = encounter.getMod(row);
+			resistance[i] = resistances.isEmpty() ? NORMAL : resistances.getOrDefault(encounter.getCreatureId(row), NORMAL);
+		}
+
+		int rolled = Math.max(amount.roll(random, 0), 0);
+
+		int[] newHP = new int[count];
+		BitSet saved = new BitSet(count);
+		for (int i = 0; i < count; i++)
+		{
+			if (healing)
+			{
+				// Creatures already over their max are left where they are
+				newHP[i] = Math.max(hp[i], Math.min(hp[i] + rolled, hpMax[i]));
+				continue;
+			}
+
+			int damage = rolled;
+			if (saveDC > 0 && random.nextInt(20) + 1 + saveBonus[i] >= saveDC)
+			{
+				saved.set(i);
+				damage = halfOnSave ? damage / 2 : 0;
+			}
+
+			switch (resistance[i])
+			{
+				case RESISTANT:
+					damage /= 2;
+					break;
+				case VULNERABLE:
+					damage *= 2;
+					break;
+				case IMMUNE:
+					damage = 0;
+					break;
+			}
+
+			newHP[i] = Math.min(hp[i], Math.max(hp[i] - damage, 0));
+		}
+
+		return new Outcome(rows, rolled, hp, newHP, saved);
+	}
+
+	// The result of an area effect on each creature it reached
+	public static class Outcome
+	{
+		private final int[] rows;
+		private final int amount;
+		private final int[] oldHP;
+		private final int[] newHP;
+		private final BitSet saved;
+
+		private Outcome(int[] rows, int amount, int[] oldHP, int[] newHP, BitSet saved)
+		{
+			this.rows = rows;
+			this.amount = amount;
+			this.oldHP = oldHP;
+			this.newHP = newHP;
+			this.saved = saved;
+		}
+
+		// Rows reached, in ascending order
+		public int[] getRows()
+		{
+			return rows;
+		}
+
+		// Amount rolled, before saves and resistances
+		public int getAmount()
+		{
+			return amount;
+		}
+
+		// Current HP of each row after the effect, in the order of getRows
+		public int[] getNewHP()
+		{
+			return newHP;
+		}
+
+		// HP taken from the i-th row reached; negative for HP restored
+		public int getChange(int i)
+		{
+			return oldHP[i] - newHP[i];
+		}
+
+		public boolean isSaved(int i)
+		{
+			return saved.get(i);
+		}
+
+		public int getNumSaved()
+		{
+			return saved.cardinality();
+		}
+	}
+}
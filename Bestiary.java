@@ -0,0 +1,397 @@
+/* ********************************************************************************************
+ * Bestiary.java
+ *
+ * A library of monster stat blocks to add creatures from, imported once from a compendium and
+ * then read straight from disk.
+ *
+ * Importing reads a CSV compendium with a header line naming its columns, and writes a
+ * library file:
+ *
+ *     header     magic, version, entry count, position of the index
+ *     entries    for each entry, its name and HP dice (each as a short UTF-8 length and the
+ *                bytes), initiative modifier and AC
+ *     index      the position of each entry, in order of name ignoring case
+ *
+ * Opening a library only maps the file and reads its header, so a compendium of thousands of
+ * monsters takes no heap until entries are looked up. Names are found by binary search over
+ * the mapped index, which also lists the names starting with what has been typed so far, and
+ * the entries used most recently are kept decoded in a small LRU cache.
+ *
+ * A bestiary is meant to be used from one thread, such as the UI thread.
+ * ******************************************************************************************** */
+
+package tracker;
+
+import java.io.IOException;
+import java.io.LineNumberReader;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class Bestiary
+{
+
+	// "BEST" in ASCII
+	private static final int MAGIC = 0x42455354;
+
+	public static final int VERSION = 1;
+
+	private static final int HEADER_BYTES = 4 + 4 + 4 + 4;
+
+	// Longest name or HP, in UTF-8 bytes, that fits its unsigned short length
+	private static final int MAX_TEXT_BYTES = 0xFFFF;
+
+	// Number of decoded entries kept
+	private static final int CACHE_SIZE = 256;
+
+	// Names a compendium may give each column, in order of preference, in lower case
+	private static final String[] NAME_COLUMNS = { "name" };
+	private static final String[] MOD_COLUMNS = { "initiative mod", "init mod", "mod", "dex mod", "dexterity mod" };
+	private static final String[] HP_COLUMNS = { "max hp", "hp", "hit points" };
+	private static final String[] AC_COLUMNS = { "armor class", "ac" };
+
+	// HP written as an average followed by the dice, such as "15 (2d8+6)"
+	private static final Pattern HP_WITH_DICE = Pattern.compile("[0-9]+\\s*\\((.+)\\)");
+
+	// The number at the start of an AC such as "15 (natural armor)"
+	private static final Pattern LEADING_NUMBER = Pattern.compile("\\s*([+-]?[0-9]+).*");
+
+	private final MappedByteBuffer buffer;
+	private final int size;
+	private final int indexPosition;
+
+	private final LinkedHashMap<Integer, Entry> cache;
+
+	private Bestiary(MappedByteBuffer buffer, int size, int indexPosition)
+	{
+		this.buffer = buffer;
+		this.size = size;
+		this.indexPosition = indexPosition;
+
+		cache = new LinkedHashMap<Integer, Entry>(16, 0.75f, true)
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, Entry> eldest)
+			{
+				return size() > CACHE_SIZE;
+			}
+		};
+	}
+
+	// Reads a CSV compendium and writes it to library as a bestiary, replacing any library there.
+	// The header line names the columns: Name, HP (or Max HP or Hit Points) and AC (or Armor
+	// Class) are needed, and Initiative Mod (or Mod or Dex Mod) is 0 if missing. HP may be a
+	// number, dice, or both as in "15 (2d8+6)", which keeps the dice. Where a name appears more
+	// than once, ignoring case, the first is kept. Returns the number of entries written.
+	public static int importCsv(Path csv, Path library) throws IOException
+	{
+		ArrayList<Entry> entries = new ArrayList<Entry>();
+
+		try (LineNumberReader reader = new LineNumberReader(Files.newBufferedReader(csv, StandardCharsets.UTF_8)))
+		{
+			String line = EncounterFile.readCsvRecord(reader);
+			if (line == null)
+				throw new IOException(csv + " is empty");
+
+			String[] header = EncounterFile.splitCsvLine(line);
+			int nameColumn = findColumn(header, NAME_COLUMNS, csv, true);
+			int modColumn = findColumn(header, MOD_COLUMNS, csv, false);
+			int hpColumn = findColumn(header, HP_COLUMNS, csv, true);
+			int acColumn = findColumn(header, AC_COLUMNS, csv, true);
+
+			int lineNumber = reader.getLineNumber() + 1;
+			for (; (line = EncounterFile.readCsvRecord(reader)) != null; lineNumber = reader.getLineNumber() + 1)
+			{
+				if (line.isEmpty())
+					continue;
+
+				String[] fields = EncounterFile.splitCsvLine(line);
+				if (fields.length != header.length)
+					throw new IOException(csv + " line " + lineNumber + ": expected " + header.length
+							+ " fields but found " + fields.length);
+
+				try
+				{
+					entries.add(parseEntry(fields, nameColumn, modColumn, hpColumn, acColumn));
+				}
+				catch (IllegalArgumentException e)
+				{
+					throw new IOException(csv + " line " + lineNumber + ": " + e.getMessage(), e);
+				}
+			}
+		}
+
+		// Stable, so the first of any names that are the same but for case comes first
+		entries.sort((a, b) -> String.CASE_INSENSITIVE_ORDER.compare(a.name, b.name));
+
+		ArrayList<byte[]> records = new ArrayList<byte[]>(entries.size());
+		int recordBytes = 0;
+		for (int i = 0; i < entries.size(); i++)
+		{
+			if (i > 0 && entries.get(i).name.equalsIgnoreCase(entries.get(i - 1).name))
+				continue;
+
+			byte[] record = entries.get(i).toBytes();
+			records.add(record);
+			recordBytes += record.length;
+		}
+
+		int count = records.size();
+		ByteBuffer out = ByteBuffer.allocate(HEADER_BYTES + recordBytes + 4 * count);
+		out.putInt(MAGIC);
+		out.putInt(VERSION);
+		out.putInt(count);
+		out.putInt(HEADER_BYTES + recordBytes);
+
+		for (byte[] record : records)
+			out.put(record);
+		int position = HEADER_BYTES;
+		for (byte[] record : records)
+		{
+			out.putInt(position);
+			position += record.length;
+		}
+		out.flip();
+
+		// Written beside the library and moved over it, so a failed import leaves the old one
+		Path temp = library.resolveSibling(library.getFileName() + ".tmp");
+		try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING))
+		{
+			while (out.hasRemaining())
+				channel.write(out);
+		}
+		Files.move(temp, library, StandardCopyOption.REPLACE_EXISTING);
+
+		return count;
+	}
+
+	// Maps a library written by importCsv
+	public static Bestiary open(Path library) throws IOException
+	{
+		try (FileChannel channel = FileChannel.open(library, StandardOpenOption.READ))
+		{
+			long fileSize = channel.size();
+			if (fileSize < HEADER_BYTES || fileSize > Integer.MAX_VALUE)
+				throw new IOException(library + " is not a bestiary");
+
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+			if (buffer.getInt(0) != MAGIC)
+				throw new IOException(library + " is not a bestiary");
+
+			int version = buffer.getInt(4);
+			if (version > VERSION)
+				throw new IOException(library + " was written by a newer version of the tracker (format " + version + ")");
+
+			int size = buffer.getInt(8);
+			int indexPosition = buffer.getInt(12);
+			if (size < 0 || indexPosition < HEADER_BYTES || indexPosition + 4L * size != fileSize)
+				throw new IOException(library + " is truncated or corrupt");
+
+			return new Bestiary(buffer, size, indexPosition);
+		}
+	}
+
+	// Number of entries
+	public int size()
+	{
+		return size;
+	}
+
+	// Returns the entry with the given name, ignoring case, or null if there is none
+	public Entry find(String name)
+	{
+		int i = lowerBound(name);
+		if (i < size && nameAt(i).equalsIgnoreCase(name))
+			return get(i);
+		return null;
+	}
+
+	// Returns up to max names, in order, that start with prefix, ignoring case
+	public String[] complete(String prefix, int max)
+	{
+		ArrayList<String> names = new ArrayList<String>(Math.min(max, 16));
+		for (int i = lowerBound(prefix); i < size && names.size() < max; i++)
+		{
+			String name = nameAt(i);
+			if (!name.regionMatches(true, 0, prefix, 0, prefix.length()))
+				break;
+			names.add(name);
+		}
+		return names.toArray(new String[names.size()]);
+	}
+
+	// Returns the i-th entry in order of name
+	public Entry get(int i)
+	{
+		if (i < 0 || i >= size)
+			throw new IndexOutOfBoundsException("Entry " + i + " out of range for " + size + " entries");
+
+		Entry entry = cache.get(i);
+		if (entry == null)
+		{
+			entry = readEntry(recordPosition(i));
+			cache.put(i, entry);
+		}
+		return entry;
+	}
+
+	// Index of the first entry whose name is not before key, ignoring case
+	private int lowerBound(String key)
+	{
+		int low = 0;
+		int high = size;
+		while (low < high)
+		{
+			int middle = (low + high) >>> 1;
+			if (String.CASE_INSENSITIVE_ORDER.compare(nameAt(middle), key) < 0)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+		return low;
+	}
+
+	private String nameAt(int i)
+	{
+		Entry cached = cache.get(i);
+		return (cached != null) ? cached.name : readString(recordPosition(i));
+	}
+
+	private int recordPosition(int i)
+	{
+		int position = buffer.getInt(indexPosition + 4 * i);
+		if (position < HEADER_BYTES || position >= indexPosition)
+			throw new IllegalStateException("Bestiary is corrupt at entry " + i);
+		return position;
+	}
+
+	private Entry readEntry(int position)
+	{
+		String name = readString(position);
+		position += 2 + (buffer.getShort(position) & 0xFFFF);
+		String hp = readString(position);
+		position += 2 + (buffer.getShort(position) & 0xFFFF);
+		int mod = buffer.getInt(position);
+		int ac = buffer.getInt(position + 4);
+		return new Entry(name, mod, DiceExpression.compile(hp), ac);
+	}
+
+	private String readString(int position)
+	{
+		int length = buffer.getShort(position) & 0xFFFF;
+		byte[] bytes = new byte[length];
+		ByteBuffer view = buffer.duplicate();
+		view.position(position + 2);
+		view.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static int findColumn(String[] header, String[] names, Path csv, boolean required) throws IOException
+	{
+		for (String name : names)
+		{
+			for (int i = 0; i < header.length; i++)
+			{
+				if (header[i].trim().equalsIgnoreCase(name))
+					return i;
+			}
+		}
+		if (required)
+			throw new IOException(csv + " has no \"" + names[0] + "\" column");
+		return -1;
+	}
+
+	private static Entry parseEntry(String[] fields, int nameColumn, int modColumn, int hpColumn, int acColumn)
+	{
+		String name = fields[nameColumn].trim();
+		if (name.isEmpty())
+			throw new IllegalArgumentException("Missing name");
+		if (name.getBytes(StandardCharsets.UTF_8).length > MAX_TEXT_BYTES)
+			throw new IllegalArgumentException("Name \"" + name + "\" is too long");
+
+		String modText = (modColumn < 0) ? "" : fields[modColumn].trim();
+		int mod = modText.isEmpty() ? 0 : CellCodec.parseInt(modText);
+
+		String hp = fields[hpColumn].trim();
+		Matcher withDice = HP_WITH_DICE.matcher(hp);
+		if (withDice.matches() && DiceExpression.isValid(withDice.group(1)))
+			hp = withDice.group(1).replace(" ", "");
+		if (hp.getBytes(StandardCharsets.UTF_8).length > MAX_TEXT_BYTES)
+			throw new IllegalArgumentException("HP \"" + hp + "\" is too long");
+
+		Matcher ac = LEADING_NUMBER.matcher(fields[acColumn]);
+		if (!ac.matches())
+			throw new IllegalArgumentException("AC \"" + fields[acColumn] + "\" is not a number");
+
+		return new Entry(name, mod, DiceExpression.compile(hp), CellCodec.parseInt(ac.group(1)));
+	}
+
+	// A monster's stat block: what a creature added from the bestiary starts with
+	public static final class Entry
+	{
+		private final String name;
+		private final int mod;
+		private final DiceExpression hp;
+		private final int ac;
+
+		private Entry(String name, int mod, DiceExpression hp, int ac)
+		{
+			this.name = name;
+			this.mod = mod;
+			this.hp = hp;
+			this.ac = ac;
+		}
+
+		public String getName()
+		{
+			return name;
+		}
+
+		public int getMod()
+		{
+			return mod;
+		}
+
+		// Max HP, as a number or dice rolled for each copy
+		public DiceExpression getHP()
+		{
+			return hp;
+		}
+
+		public int getAC()
+		{
+			return ac;
+		}
+
+		private byte[] toBytes()
+		{
+			byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+			byte[] hpBytes = hp.toString().getBytes(StandardCharsets.UTF_8);
+
+			ByteBuffer record = ByteBuffer.allocate(2 + nameBytes.length + 2 + hpBytes.length + 4 + 4);
+			record.putShort((short) nameBytes.length).put(nameBytes);
+			record.putShort((short) hpBytes.length).put(hpBytes);
+			record.putInt(mod).putInt(ac);
+			return record.array();
+		}
+
+		@Override
+		public String toString()
+		{
+			return name + " (mod " + mod + ", HP " + hp + ", AC " + ac + ")";
+		}
+	}
+}
@@ -0,0 +1,94 @@
+/* ********************************************************************************************
+ * CellCodec.java
+ *
+ * Reads and writes the text of numeric cells. A number is an optional + or - followed by one or
+ * more ASCII digits, and must fit in an int.
+ *
+ * Validating and parsing are the same single scan over the text, so anything that validates
+ * also parses, and neither allocates. Common values are formatted from a table of strings
+ * built once, so redrawing cells doesn't allocate either.
+ * ******************************************************************************************** */
+
+package tracker;
+
+public class CellCodec
+{
+
+	// Returned by parse for text that is not a number
+	public static final long INVALID = Long.MIN_VALUE;
+
+	// Values formatted from the table instead of being converted each time
+	private static final int MIN_CACHED = -128;
+	private static final int MAX_CACHED = 1023;
+
+	private static final String[] CACHED_TEXT = new String[MAX_CACHED - MIN_CACHED + 1];
+
+	static
+	{
+		for (int value = MIN_CACHED; value <= MAX_CACHED; value++)
+			CACHED_TEXT[value - MIN_CACHED] = Integer.toString(value);
+	}
+
+	private CellCodec()
+	{
+	}
+
+	// Returns the number in text, or INVALID if text is not a number or does not fit in an int
+	public static long parse(CharSequence text)
+	{
+		int length = text.length();
+		if (length == 0)
+			return INVALID;
+
+		int i = 0;
+		boolean negative = false;
+		char first = text.charAt(0);
+		if (first == '-' || first == '+')
+		{
+			if (length == 1)
+				return INVALID;
+
+			negative = (first == '-');
+			i++;
+		}
+
+		// Digits are accumulated as a long, stopping as soon as the value is out of int range
+		long value = 0;
+		for (; i < length; i++)
+		{
+			int digit = text.charAt(i) - '0';
+			if (digit < 0 || digit > 9)
+				return INVALID;
+
+			value = value * 10 + digit;
+			if (value > -(long) Integer.MIN_VALUE)
+				return INVALID;
+		}
+
+		if (negative)
+			return -value;
+		return (value > Integer.MAX_VALUE) ? INVALID : value;
+	}
+
+	public static boolean isNumber(CharSequence text)
+	{
+		return text != null && parse(text) != INVALID;
+	}
+
+	// Parses text as a number, throwing NumberFormatException if it is not one
+	public static int parseInt(CharSequence text)
+	{
+		long value = parse(text);
+		if (value == INVALID)
+			throw new NumberFormatException("Not a number: \"" + text + "\"");
+		return (int) value;
+	}
+
+	// Returns the text shown for a number
+	public static String format(int value)
+	{
+		if (value >= MIN_CACHED && value <= MAX_CACHED)
+			return CACHED_TEXT[value - MIN_CACHED];
+		return Integer.toString(value);
+	}
+}
@@ -0,0 +1,195 @@
+/* ********************************************************************************************
+ * CellHitTester.java
+ *
+ * Finds the table cell whose text lies under a point, for the click-to-edit cell editor.
+ *
+ * The row comes straight from the table and the column from cached column edges, so the cost
+ * of a click does not depend on how many rows the table has. Column edges, row height and font
+ * metrics are measured once and only measured again after a resize or a font change.
+ * ******************************************************************************************** */
+
+package tracker;
+
+import org.eclipse.swt.SWT;
+import org.eclipse.swt.graphics.Font;
+import org.eclipse.swt.graphics.GC;
+import org.eclipse.swt.graphics.Point;
+import org.eclipse.swt.graphics.Rectangle;
+import org.eclipse.swt.widgets.Event;
+import org.eclipse.swt.widgets.Listener;
+import org.eclipse.swt.widgets.Table;
+import org.eclipse.swt.widgets.TableColumn;
+import org.eclipse.swt.widgets.TableItem;
+
+public class CellHitTester
+{
+
+	private final Table table;
+	private final DisplayRows rows;
+
+	// Left edge of each column relative to the left edge of the first one, plus the right edge
+	// of the last column. Null when the columns need measuring again.
+	private int[] columnEdges;
+
+	// Font the metrics below were measured with. Null when they need measuring again.
+	private Font measuredFont;
+	private int averageCharWidth;
+	private int itemHeight;
+
+	// Result of the last successful hit
+	private TableItem hitItem;
+	private int hitRow;
+	private int hitColumn;
+
+	public CellHitTester(Table table, DisplayRows rows)
+	{
+		this.table = table;
+		this.rows = rows;
+
+		Listener invalidateColumns = new Listener()
+		{
+			public void handleEvent(Event e)
+			{
+				columnEdges = null;
+			}
+		};
+
+		table.addListener(SWT.Resize, invalidateColumns);
+		for (TableColumn column : table.getColumns())
+		{
+			column.addListener(SWT.Resize, invalidateColumns);
+			column.addListener(SWT.Move, invalidateColumns);
+		}
+	}
+
+	// Forgets all cached measurements, for when the table's font or columns are changed
+	public void invalidate()
+	{
+		columnEdges = null;
+		measuredFont = null;
+	}
+
+	// Returns true if the point (in table coordinates) is over the text of a cell, or close
+	// enough to it, in which case getItem, getRow and getColumn describe that cell. Rows are
+	// table rows, as mapped by DisplayRows.
+	public boolean hitTest(int x, int y)
+	{
+		Point pt = new Point(x, y);
+
+		TableItem item = table.getItem(pt);
+		if (item == null)
+			return false;
+
+		measure();
+
+		int row = findRow(item, y);
+		if (row < 0 || row >= rows.size())
+			return false;
+
+		// Where the first column starts once horizontal scrolling is taken into account. Measured
+		// from the last column, whose bounds never include the check box.
+		int lastColumn = columnEdges.length - 2;
+		int origin = item.getBounds(lastColumn).x - columnEdges[lastColumn];
+
+		int column = findColumn(x - origin);
+		if (column < 0)
+			return false;
+
+		// The area of the cell's text, not the whole cell
+		Rectangle textBounds = item.getBounds(column);
+		int quarterWidth = textBounds.width / 4;
+		textBounds.width = averageCharWidth * rows.getText(row, column).length();
+
+		// If the bounds are so small that it's hard to click,
+		// make it a bit bigger (25% of the cell width)
+		if (textBounds.width < quarterWidth)
+			textBounds.width = quarterWidth;
+
+		if (!textBounds.contains(pt))
+			return false;
+
+		hitItem = item;
+		hitRow = row;
+		hitColumn = column;
+		return true;
+	}
+
+	public TableItem getItem()
+	{
+		return hitItem;
+	}
+
+	public int getRow()
+	{
+		return hitRow;
+	}
+
+	public int getColumn()
+	{
+		return hitColumn;
+	}
+
+	// Works out the index of an item from its position below the top visible row, falling back
+	// to a search of the table if the rows are not evenly spaced
+	private int findRow(TableItem item, int y)
+	{
+		int topIndex = table.getTopIndex();
+		int topY = table.getItem(topIndex).getBounds().y;
+		int row = topIndex + (y - topY) / itemHeight;
+
+		if (row < table.getItemCount() && table.getItem(row) == item)
+			return row;
+
+		return table.indexOf(item);
+	}
+
+	// Binary search of the cached column edges for the column containing offset x
+	private int findColumn(int x)
+	{
+		if (x < columnEdges[0] || x >= columnEdges[columnEdges.length - 1])
+			return -1;
+
+		int low = 0;
+		int high = columnEdges.length - 2;
+		while (low < high)
+		{
+			int middle = (low + high + 1) >>> 1;
+			if (columnEdges[middle] <= x)
+				low = middle;
+			else
+				high = middle - 1;
+		}
+		return low;
+	}
+
+	// Refreshes whichever cached measurements are out of date
+	private void measure()
+	{
+		Font font = table.getFont();
+		if (measuredFont == null || !measuredFont.equals(font))
+		{
+			GC gc = new GC(table);
+			try
+			{
+				gc.setFont(font);
+				averageCharWidth = gc.getFontMetrics().getAverageCharWidth();
+			}
+			finally
+			{
+				gc.dispose();
+			}
+
+			itemHeight = Math.max(1, table.getItemHeight());
+			measuredFont = font;
+		}
+
+		if (columnEdges == null)
+		{
+			int numCols = table.getColumnCount();
+			int[] edges = new int[numCols + 1];
+			for (int i = 0; i < numCols; i++)
+				edges[i + 1] = edges[i] + table.getColumn(i).getWidth();
+			columnEdges = edges;
+		}
+	}
+}
@@ -0,0 +1,777 @@
+/* ********************************************************************************************
+ * CombatEvent.java
+ *
+ * One change to an encounter, as recorded in the combat journal: creatures added or removed,
+ * initiative rolled, damage taken, creatures moved, the turn order sorted, or a cell edited, or
+ * several of these made by one command.
+ *
+ * An event holds the values it wrote and the values it replaced, never a copy of the table, so
+ * applying or reverting it only touches the rows it changed. Replaying the same events against
+ * the same starting encounter always ends in the same state, since nothing is rolled again.
+ *
+ * Events read back from a journal are checked against the number of creatures in the encounter
+ * they will be applied to, as EncounterFile checks what it loads, so a corrupt journal fails
+ * with an IOException rather than part way through changing the encounter.
+ * ******************************************************************************************** */
+
+package tracker;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+
+public abstract class CombatEvent
+{
+
+	// Event types
+	public static final int ADD = 1;
+	public static final int REMOVE = 2;
+	public static final int ROLL = 3;
+	public static final int DAMAGE = 4;
+	public static final int MOVE = 5;
+	public static final int SORT = 6;
+	public static final int EDIT = 7;
+	public static final int REORDER = 8;
+	public static final int COMPOUND = 9;
+
+	private final int type;
+
+	private CombatEvent(int type)
+	{
+		this.type = type;
+	}
+
+	public int getType()
+	{
+		return type;
+	}
+
+	// Makes the change to the encounter
+	public abstract void apply(Encounter encounter);
+
+	// Undoes the change, leaving the encounter as it was before apply
+	public abstract void revert(Encounter encounter);
+
+	abstract void writeFields(DataOutputStream out) throws IOException;
+
+	// Number of creatures left by applying the event to an encounter of size creatures
+	int sizeAfter(int size)
+	{
+		return size;
+	}
+
+	// Largest creature id the event names, or 0 if none
+	int getMaxCreatureId()
+	{
+		return 0;
+	}
+
+	// Records rows first onwards, which have just been appended to the encounter
+	public static CombatEvent added(Encounter encounter, int first)
+	{
+		int count = encounter.size() - first;
+		int[] rows = new int[count];
+		for (int i = 0; i < count; i++)
+			rows[i] = first + i;
+
+		return new RowsEvent(ADD, encounter, rows);
+	}
+
+	// Records the removal of the rows set in rows, which must still be in the encounter
+	public static CombatEvent removing(Encounter encounter, BitSet rows)
+	{
+		return new RowsEvent(REMOVE, encounter, rows.stream().filter(i -> i < encounter.size()).toArray());
+	}
+
+	// Records new initiative rolls for rows, given the initiatives they had before
+	public static CombatEvent rolled(Encounter encounter, int[] rows, int[] oldInit)
+	{
+		int[] newInit = new int[rows.length];
+		for (int i = 0; i < rows.length; i++)
+			newInit[i] = encounter.getInit(rows[i]);
+
+		return new ColumnEvent(ROLL, rows, oldInit, newInit);
+	}
+
+	// Records new current HP for rows, given the HP they had before
+	public static CombatEvent damaged(Encounter encounter, int[] rows, int[] oldHP)
+	{
+		int[] newHP = new int[rows.length];
+		for (int i = 0; i < rows.length; i++)
+			newHP[i] = encounter.getHPCurrent(rows[i]);
+
+		return new ColumnEvent(DAMAGE, rows, oldHP, newHP);
+	}
+
+	public static CombatEvent moved(int from, int to)
+	{
+		return new MoveEvent(from, to);
+	}
+
+	// Records a reordering in which row i took the creature previously at row order[i]
+	public static CombatEvent sorted(int[] order)
+	{
+		return new SortEvent(SORT, 0, order);
+	}
+
+	// Moves the creatures in rows, which must be in ascending order, to rows to onwards, keeping
+	// them in the same order. Only the rows from the first one moved out of or into to the last
+	// are reordered.
+	public static CombatEvent movedRows(Encounter encounter, int[] rows, int to)
+	{
+		int count = rows.length;
+		if (count == 0 || to < 0 || to + count > encounter.size())
+			throw new IndexOutOfBoundsException("Cannot move " + count + " creatures to row " + to + " of "
+					+ encounter.size());
+
+		int first = Math.min(rows[0], to);
+		int last = Math.max(rows[count - 1], to + count - 1);
+		int[] order = new int[last - first + 1];
+
+		// The rows in the range that stay, in order, with the moved rows dropped in at to
+		int write = 0;
+		int moved = 0;
+		for (int row = first; row <= last; row++)
+		{
+			if (moved < count && rows[moved] == row)
+			{
+				moved++;
+				continue;
+			}
+			if (write == to - first)
+				write += count;
+			order[write++] = row - first;
+		}
+		for (int i = 0; i < count; i++)
+			order[to - first + i] = rows[i] - first;
+
+		return new SortEvent(REORDER, first, order);
+	}
+
+	// Records an edit to a row, given the row as it was before. Returns null if the edit did not
+	// change anything.
+	public static CombatEvent edited(Encounter encounter, int row, RowState before)
+	{
+		RowState after = new RowState(encounter, row);
+		return after.equals(before) ? null : new EditEvent(row, before, after);
+	}
+
+	// Records several events, already applied in order, as one change
+	public static CombatEvent compound(List<CombatEvent> events)
+	{
+		return new CompoundEvent(events.toArray(new CombatEvent[events.size()]));
+	}
+
+	// Returns the event as bytes, to be read back by read
+	public byte[] toBytes()
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(bytes))
+		{
+			out.writeByte(type);
+			writeFields(out);
+		}
+		catch (IOException e)
+		{
+			// Nothing to fail when writing to memory
+			throw new IllegalStateException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	// Reads an event written by toBytes, in a journal of the given version, to be applied to an
+	// encounter of size creatures whose next new creature would get id nextId. Throws IOException
+	// if the event is corrupt or names rows or creatures that such an encounter cannot have.
+	public static CombatEvent read(DataInputStream in, int version, int size, int nextId) throws IOException
+	{
+		int type = in.readByte();
+		switch (type)
+		{
+			case ADD:
+			case REMOVE:
+				return RowsEvent.read(type, in, version, size, nextId);
+			case ROLL:
+			case DAMAGE:
+				return ColumnEvent.read(type, in, size);
+			case MOVE:
+			{
+				int from = in.readInt();
+				int to = in.readInt();
+				checkRow(from, size);
+				checkRow(to, size);
+				return new MoveEvent(from, to);
+			}
+			case SORT:
+			case REORDER:
+			{
+				int first = (type == REORDER) ? in.readInt() : 0;
+				int[] order = readInts(in);
+				checkOrder(first, order, size);
+				return new SortEvent(type, first, order);
+			}
+			case EDIT:
+			{
+				int row = in.readInt();
+				checkRow(row, size);
+				return new EditEvent(row, RowState.read(in, version), RowState.read(in, version));
+			}
+			case COMPOUND:
+				return CompoundEvent.readEvents(in, version, size, nextId);
+			default:
+				throw new IOException("Unknown combat event type " + type);
+		}
+	}
+
+	private static void checkRow(int row, int size) throws IOException
+	{
+		if (row < 0 || row >= size)
+			throw new IOException("Row " + row + " out of range for " + size + " creatures in combat event");
+	}
+
+	// Checks that rows are in range, and if ascending is set, in ascending order with no repeats
+	private static void checkRows(int[] rows, int size, boolean ascending) throws IOException
+	{
+		for (int i = 0; i < rows.length; i++)
+		{
+			checkRow(rows[i], size);
+			if (ascending && i > 0 && rows[i] <= rows[i - 1])
+				throw new IOException("Rows out of order in combat event");
+		}
+	}
+
+	// Checks that order reorders rows first onwards of an encounter of size creatures, taking
+	// each of them once
+	private static void checkOrder(int first, int[] order, int size) throws IOException
+	{
+		if (first < 0 || first > size || order.length > size - first)
+			throw new IOException("Rows " + first + " to " + (first + order.length - 1) + " out of range for " + size
+					+ " creatures in combat event");
+
+		BitSet taken = new BitSet(order.length);
+		for (int from : order)
+		{
+			if (from < 0 || from >= order.length || taken.get(from))
+				throw new IOException("Invalid reordering in combat event");
+			taken.set(from);
+		}
+	}
+
+	private static void writeInts(DataOutputStream out, int[] values) throws IOException
+	{
+		out.writeInt(values.length);
+		for (int value : values)
+			out.writeInt(value);
+	}
+
+	private static int[] readInts(DataInputStream in) throws IOException
+	{
+		// Each value takes four bytes, so a corrupt length fails here rather than allocating
+		int length = in.readInt();
+		if (length < 0 || length > in.available() / 4)
+			throw new IOException("Array length " + length + " out of range in combat event");
+
+		int[] values = new int[length];
+		for (int i = 0; i < length; i++)
+			values[i] = in.readInt();
+		return values;
+	}
+
+	private static void writeTemplate(DataOutputStream out, CreatureTemplate template) throws IOException
+	{
+		out.writeUTF(template.getName());
+		out.writeInt(template.getMod());
+		out.writeInt(template.getHPMax());
+		out.writeInt(template.getAC());
+		out.writeInt(template.getBatch());
+	}
+
+	// Templates in journals before version 3 have no batch
+	private static CreatureTemplate readTemplate(DataInputStream in, int version) throws IOException
+	{
+		String name = in.readUTF();
+		int mod = in.readInt();
+		int hpMax = in.readInt();
+		int ac = in.readInt();
+		int batch = (version >= 3) ? in.readInt() : 0;
+		if (batch < 0 || batch == Integer.MAX_VALUE)
+			throw new IOException("Batch " + batch + " out of range in combat event");
+		return new CreatureTemplate(name, mod, hpMax, ac, batch);
+	}
+
+	// Everything about one row that an edit can change
+	public static final class RowState
+	{
+		private final CreatureTemplate template;
+		private final int suffix;
+		private final int init;
+		private final int hpCurrent;
+
+		public RowState(Encounter encounter, int row)
+		{
+			this(encounter.getTemplate(row), encounter.getSuffix(row), encounter.getInit(row),
+					encounter.getHPCurrent(row));
+		}
+
+		private RowState(CreatureTemplate template, int suffix, int init, int hpCurrent)
+		{
+			this.template = template;
+			this.suffix = suffix;
+			this.init = init;
+			this.hpCurrent = hpCurrent;
+		}
+
+		void restore(Encounter encounter, int row)
+		{
+			encounter.setTemplate(row, template);
+			encounter.setSuffix(row, suffix);
+			encounter.setInit(row, init);
+			encounter.setHPCurrent(row, hpCurrent);
+		}
+
+		void write(DataOutputStream out) throws IOException
+		{
+			writeTemplate(out, template);
+			out.writeInt(suffix);
+			out.writeInt(init);
+			out.writeInt(hpCurrent);
+		}
+
+		static RowState read(DataInputStream in, int version) throws IOException
+		{
+			return new RowState(readTemplate(in, version), in.readInt(), in.readInt(), in.readInt());
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			if (!(o instanceof RowState))
+				return false;
+
+			RowState other = (RowState) o;
+			return suffix == other.suffix && init == other.init && hpCurrent == other.hpCurrent
+					&& template.equals(other.template);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			int hash = template.hashCode();
+			hash = 31 * hash + suffix;
+			hash = 31 * hash + init;
+			hash = 31 * hash + hpCurrent;
+			return hash;
+		}
+	}
+
+	// Whole creatures added or removed. Holds each row's final position and contents, with the
+	// templates they use stored once each.
+	private static final class RowsEvent extends CombatEvent
+	{
+		private final int[] rows;
+		private final CreatureTemplate[] templateTable;
+		private final int[] templateIndex;
+		private final int[] suffix;
+		private final int[] init;
+		private final int[] hpCurrent;
+		private final int[] tiebreak;
+		private final int[] creatureIds;
+
+		RowsEvent(int type, Encounter encounter, int[] rows)
+		{
+			super(type);
+			this.rows = rows;
+
+			int count = rows.length;
+			templateIndex = new int[count];
+			suffix = new int[count];
+			init = new int[count];
+			hpCurrent = new int[count];
+			tiebreak = new int[count];
+			creatureIds = new int[count];
+
+			HashMap<CreatureTemplate, Integer> indices = new HashMap<CreatureTemplate, Integer>();
+			for (int i = 0; i < count; i++)
+			{
+				int row = rows[i];
+				CreatureTemplate template = encounter.getTemplate(row);
+				Integer index = indices.get(template);
+				if (index == null)
+				{
+					index = indices.size();
+					indices.put(template, index);
+				}
+
+				templateIndex[i] = index;
+				suffix[i] = encounter.getSuffix(row);
+				init[i] = encounter.getInit(row);
+				hpCurrent[i] = encounter.getHPCurrent(row);
+				tiebreak[i] = encounter.getTiebreak(row);
+				creatureIds[i] = encounter.getCreatureId(row);
+			}
+
+			templateTable = new CreatureTemplate[indices.size()];
+			for (HashMap.Entry<CreatureTemplate, Integer> entry : indices.entrySet())
+				templateTable[entry.getValue()] = entry.getKey();
+		}
+
+		private RowsEvent(int type, int[] rows, CreatureTemplate[] templateTable, int[] templateIndex, int[] suffix,
+				int[] init, int[] hpCurrent, int[] tiebreak, int[] creatureIds)
+		{
+			super(type);
+			this.rows = rows;
+			this.templateTable = templateTable;
+			this.templateIndex = templateIndex;
+			this.suffix = suffix;
+			this.init = init;
+			this.hpCurrent = hpCurrent;
+			this.tiebreak = tiebreak;
+			this.creatureIds = creatureIds;
+		}
+
+		@Override
+		public void apply(Encounter encounter)
+		{
+			if (getType() == ADD)
+				insert(encounter);
+			else
+				remove(encounter);
+		}
+
+		@Override
+		public void revert(Encounter encounter)
+		{
+			if (getType() == ADD)
+				remove(encounter);
+			else
+				insert(encounter);
+		}
+
+		private void insert(Encounter encounter)
+		{
+			encounter.insertRows(rows, templateTable, templateIndex, suffix, init, hpCurrent, tiebreak, creatureIds,
+					rows.length);
+		}
+
+		private void remove(Encounter encounter)
+		{
+			BitSet removed = new BitSet();
+			for (int row : rows)
+				removed.set(row);
+			encounter.removeAll(removed);
+		}
+
+		@Override
+		int sizeAfter(int size)
+		{
+			return (getType() == ADD) ? size + rows.length : size - rows.length;
+		}
+
+		@Override
+		int getMaxCreatureId()
+		{
+			int maxId = 0;
+			for (int id : creatureIds)
+				maxId = Math.max(maxId, id);
+			return maxId;
+		}
+
+		@Override
+		void writeFields(DataOutputStream out) throws IOException
+		{
+			out.writeInt(templateTable.length);
+			for (CreatureTemplate template : templateTable)
+				writeTemplate(out, template);
+
+			writeInts(out, rows);
+			writeInts(out, templateIndex);
+			writeInts(out, suffix);
+			writeInts(out, init);
+			writeInts(out, hpCurrent);
+			writeInts(out, tiebreak);
+			writeInts(out, creatureIds);
+		}
+
+		// Added rows are where they end up, among size + count creatures, and removed rows where
+		// they are, among size. Added creatures may be new, and take the next count ids.
+		static RowsEvent read(int type, DataInputStream in, int version, int size, int nextId) throws IOException
+		{
+			int numTemplates = in.readInt();
+			if (numTemplates < 0 || numTemplates > in.available())
+				throw new IOException("Template count " + numTemplates + " out of range in combat event");
+
+			CreatureTemplate[] templateTable = new CreatureTemplate[numTemplates];
+			for (int t = 0; t < numTemplates; t++)
+				templateTable[t] = readTemplate(in, version);
+
+			int[] rows = readInts(in);
+			int[] templateIndex = readInts(in);
+			int[] suffix = readInts(in);
+			int[] init = readInts(in);
+			int[] hpCurrent = readInts(in);
+			int[] tiebreak = readInts(in);
+
+			// Creatures in version 1 journals get new ids when they are added
+			int[] creatureIds = (version >= 2) ? readInts(in) : new int[rows.length];
+
+			int count = rows.length;
+			if (templateIndex.length != count || suffix.length != count || init.length != count
+					|| hpCurrent.length != count || tiebreak.length != count || creatureIds.length != count)
+				throw new IOException("Mismatched row columns in combat event");
+			for (int index : templateIndex)
+			{
+				if (index < 0 || index >= numTemplates)
+					throw new IOException("Template index " + index + " out of range in combat event");
+			}
+			long idLimit = (type == ADD) ? (long) nextId + count : nextId;
+			for (int id : creatureIds)
+			{
+				if (id < 0 || id >= idLimit)
+					throw new IOException("Creature id " + id + " out of range in combat event");
+			}
+			checkRows(rows, (type == ADD) ? size + count : size, true);
+
+			return new RowsEvent(type, rows, templateTable, templateIndex, suffix, init, hpCurrent, tiebreak, creatureIds);
+		}
+	}
+
+	// New values for one numeric column of some rows: initiative for rolls, current HP for damage
+	private static final class ColumnEvent extends CombatEvent
+	{
+		private final int[] rows;
+		private final int[] oldValues;
+		private final int[] newValues;
+
+		ColumnEvent(int type, int[] rows, int[] oldValues, int[] newValues)
+		{
+			super(type);
+			this.rows = rows;
+			this.oldValues = oldValues;
+			this.newValues = newValues;
+		}
+
+		@Override
+		public void apply(Encounter encounter)
+		{
+			set(encounter, newValues);
+		}
+
+		@Override
+		public void revert(Encounter encounter)
+		{
+			set(encounter, oldValues);
+		}
+
+		private void set(Encounter encounter, int[] values)
+		{
+			if (getType() == ROLL)
+			{
+				for (int i = 0; i < rows.length; i++)
+					encounter.setInit(rows[i], values[i]);
+			}
+			else
+			{
+				for (int i = 0; i < rows.length; i++)
+					encounter.setHPCurrent(rows[i], values[i]);
+			}
+		}
+
+		@Override
+		void writeFields(DataOutputStream out) throws IOException
+		{
+			writeInts(out, rows);
+			writeInts(out, oldValues);
+			writeInts(out, newValues);
+		}
+
+		static ColumnEvent read(int type, DataInputStream in, int size) throws IOException
+		{
+			int[] rows = readInts(in);
+			int[] oldValues = readInts(in);
+			int[] newValues = readInts(in);
+			if (oldValues.length != rows.length || newValues.length != rows.length)
+				throw new IOException("Mismatched row columns in combat event");
+			checkRows(rows, size, false);
+
+			return new ColumnEvent(type, rows, oldValues, newValues);
+		}
+	}
+
+	private static final class MoveEvent extends CombatEvent
+	{
+		private final int from;
+		private final int to;
+
+		MoveEvent(int from, int to)
+		{
+			super(MOVE);
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		public void apply(Encounter encounter)
+		{
+			encounter.move(from, to);
+		}
+
+		@Override
+		public void revert(Encounter encounter)
+		{
+			encounter.move(to, from);
+		}
+
+		@Override
+		void writeFields(DataOutputStream out) throws IOException
+		{
+			out.writeInt(from);
+			out.writeInt(to);
+		}
+	}
+
+	// A reordering of the rows from first onwards, of the whole encounter for a sort
+	private static final class SortEvent extends CombatEvent
+	{
+		private final int first;
+		private final int[] order;
+
+		SortEvent(int type, int first, int[] order)
+		{
+			super(type);
+			this.first = first;
+			this.order = order;
+		}
+
+		@Override
+		public void apply(Encounter encounter)
+		{
+			encounter.permute(first, order);
+		}
+
+		@Override
+		public void revert(Encounter encounter)
+		{
+			int[] inverse = new int[order.length];
+			for (int i = 0; i < order.length; i++)
+				inverse[order[i]] = i;
+			encounter.permute(first, inverse);
+		}
+
+		@Override
+		void writeFields(DataOutputStream out) throws IOException
+		{
+			if (getType() == REORDER)
+				out.writeInt(first);
+			writeInts(out, order);
+		}
+	}
+
+	private static final class EditEvent extends CombatEvent
+	{
+		private final int row;
+		private final RowState before;
+		private final RowState after;
+
+		EditEvent(int row, RowState before, RowState after)
+		{
+			super(EDIT);
+			this.row = row;
+			this.before = before;
+			this.after = after;
+		}
+
+		@Override
+		public void apply(Encounter encounter)
+		{
+			after.restore(encounter, row);
+		}
+
+		@Override
+		public void revert(Encounter encounter)
+		{
+			before.restore(encounter, row);
+		}
+
+		@Override
+		void writeFields(DataOutputStream out) throws IOException
+		{
+			out.writeInt(row);
+			before.write(out);
+			after.write(out);
+		}
+	}
+
+	// Events made by one command, applied in order and reverted in reverse
+	private static final class CompoundEvent extends CombatEvent
+	{
+		private final CombatEvent[] events;
+
+		CompoundEvent(CombatEvent[] events)
+		{
+			super(COMPOUND);
+			this.events = events;
+		}
+
+		@Override
+		public void apply(Encounter encounter)
+		{
+			for (CombatEvent event : events)
+				event.apply(encounter);
+		}
+
+		@Override
+		public void revert(Encounter encounter)
+		{
+			for (int i = events.length - 1; i >= 0; i--)
+				events[i].revert(encounter);
+		}
+
+		@Override
+		int sizeAfter(int size)
+		{
+			for (CombatEvent event : events)
+				size = event.sizeAfter(size);
+			return size;
+		}
+
+		@Override
+		int getMaxCreatureId()
+		{
+			int maxId = 0;
+			for (CombatEvent event : events)
+				maxId = Math.max(maxId, event.getMaxCreatureId());
+			return maxId;
+		}
+
+		@Override
+		void writeFields(DataOutputStream out) throws IOException
+		{
+			out.writeInt(events.length);
+			for (CombatEvent event : events)
+			{
+				out.writeByte(event.getType());
+				event.writeFields(out);
+			}
+		}
+
+		// Each event is checked against the encounter as the ones before it leave it
+		static CompoundEvent readEvents(DataInputStream in, int version, int size, int nextId) throws IOException
+		{
+			int count = in.readInt();
+			if (count < 0 || count > in.available())
+				throw new IOException("Event count " + count + " out of range in combat event");
+
+			CombatEvent[] events = new CombatEvent[count];
+			for (int i = 0; i < count; i++)
+			{
+				events[i] = CombatEvent.read(in, version, size, nextId);
+				size = events[i].sizeAfter(size);
+				nextId = Math.max(nextId, events[i].getMaxCreatureId() + 1);
+			}
+			return new CompoundEvent(events);
+		}
+	}
+}
@@ -0,0 +1,631 @@
+/* ********************************************************************************************
+ * CombatJournal.java
+ *
+ * The history of an encounter: every change made to it, in order, as CombatEvents. Changes made
+ * through the journal are applied to the encounter and recorded, so they can be undone and redone
+ * one event at a time, and a whole session can be replayed from its journal file.
+ *
+ * Every SNAPSHOT_INTERVAL events the journal also keeps a snapshot of the encounter in the
+ * binary encounter format, so replaying a journal file only applies the events since the
+ * snapshot nearest its end.
+ *
+ * A command that makes several changes, such as a roll followed by a sort, brackets them with
+ * beginChange and endChange, and they are recorded as one compound event that is undone and
+ * redone as a whole. Edits typed into the same cell one after another extend the edit before
+ * them rather than adding to the history, so undo takes back the whole edit at once.
+ *
+ * The journal file is append-only:
+ *
+ *     header        magic, version
+ *     records       a type byte, a payload length, then the payload, one of
+ *                       START        a snapshot the history starts from
+ *                       CHECKPOINT   the number of events it follows, then a snapshot
+ *                       EVENT        an event, as written by CombatEvent.toBytes
+ *                       UNDO, REDO   no payload
+ *
+ * Records are encoded on the calling thread and appended by a background writer, so the event
+ * loop never waits on the disk.
+ * ******************************************************************************************** */
+
+package tracker;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+public class CombatJournal implements Closeable
+{
+
+	// "JRNL" in ASCII
+	private static final int MAGIC = 0x4A524E4C;
+
+	public static final int VERSION = 4;
+
+	private static final int HEADER_BYTES = 4 + 4;
+	private static final int RECORD_HEADER_BYTES = 1 + 4;
+
+	// Record types
+	private static final byte START = 1;
+	private static final byte CHECKPOINT = 2;
+	private static final byte EVENT = 3;
+	private static final byte UNDO = 4;
+	private static final byte REDO = 5;
+
+	// Number of events between snapshots
+	public static final int SNAPSHOT_INTERVAL = 256;
+
+	private final Encounter encounter;
+
+	// Every event since the history started; the first position of them are applied
+	private final ArrayList<CombatEvent> history;
+	private int position;
+
+	// The encounter as it was after each snapshotted number of events, always including 0
+	private final TreeMap<Integer, byte[]> snapshots;
+
+	// Appends records to the journal file; both null if the journal is only kept in memory
+	private final FileChannel channel;
+	private final ExecutorService writer;
+
+	// First error hit by the writer, after which nothing more is written
+	private volatile IOException writeError;
+
+	// Events of the change under way, to be recorded as one, and how deeply its beginChange
+	// calls are nested; null and 0 when no change is under way
+	private ArrayList<CombatEvent> change;
+	private int changeDepth;
+
+	// The edit last recorded, the cell it was made to and the row as it was before it, which
+	// further edits of the same cell extend for as long as it is the newest event
+	private CombatEvent lastEdit;
+	private int lastEditRow;
+	private int lastEditColumn;
+	private CombatEvent.RowState lastEditBefore;
+
+	// Keeps the history of encounter in memory only
+	public CombatJournal(Encounter encounter)
+	{
+		this.encounter = encounter;
+		history = new ArrayList<CombatEvent>();
+		snapshots = new TreeMap<Integer, byte[]>();
+		channel = null;
+		writer = null;
+
+		restart();
+	}
+
+	// Keeps the history of encounter and also writes it to file, replacing anything already there
+	public CombatJournal(Encounter encounter, Path file) throws IOException
+	{
+		this.encounter = encounter;
+		history = new ArrayList<CombatEvent>();
+		snapshots = new TreeMap<Integer, byte[]>();
+
+		channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		writer = Executors.newSingleThreadExecutor(r -> {
+			Thread thread = new Thread(r, "Combat journal writer");
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+		header.putInt(MAGIC);
+		header.putInt(VERSION);
+		header.flip();
+		append(header);
+
+		restart();
+	}
+
+	// Starts a new history from the encounter as it is now, for when it has been replaced
+	// wholesale, such as by opening a saved encounter
+	public void restart()
+	{
+		history.clear();
+		position = 0;
+		snapshots.clear();
+
+		byte[] snapshot = EncounterFile.write(encounter).array();
+		snapshots.put(0, snapshot);
+		log(START, snapshot);
+	}
+
+	public Encounter getEncounter()
+	{
+		return encounter;
+	}
+
+	// Number of events in the history, including any that have been undone
+	public int size()
+	{
+		return history.size();
+	}
+
+	// Number of events currently applied
+	public int getPosition()
+	{
+		return position;
+	}
+
+	public boolean canUndo()
+	{
+		return position > 0;
+	}
+
+	public boolean canRedo()
+	{
+		return position < history.size();
+	}
+
+	// Applies an event and adds it to the history, dropping any events that had been undone
+	public void perform(CombatEvent event)
+	{
+		event.apply(encounter);
+		record(event);
+	}
+
+	// Adds an event that has already been applied to the history, dropping any events that had
+	// been undone. During a change the event is held until the change ends.
+	public void record(CombatEvent event)
+	{
+		if (change != null)
+		{
+			change.add(event);
+			return;
+		}
+
+		if (position < history.size())
+		{
+			history.subList(position, history.size()).clear();
+			snapshots.tailMap(position, false).clear();
+		}
+
+		history.add(event);
+		position++;
+		logEvent(event);
+
+		if (position % SNAPSHOT_INTERVAL == 0)
+			checkpoint();
+	}
+
+	// Starts a change made of several events, which are recorded as one when the matching
+	// endChange is called. Changes may be nested; only the outermost one is recorded.
+	public void beginChange()
+	{
+		if (changeDepth++ == 0)
+			change = new ArrayList<CombatEvent>();
+	}
+
+	// Ends the change started by the matching beginChange, recording its events as one if this
+	// is the outermost change
+	public void endChange()
+	{
+		if (changeDepth == 0)
+			throw new IllegalStateException("No change under way");
+		if (--changeDepth > 0)
+			return;
+
+		ArrayList<CombatEvent> events = change;
+		change = null;
+		if (events.size() == 1)
+			record(events.get(0));
+		else if (events.size() > 1)
+			record(CombatEvent.compound(events));
+	}
+
+	// Records creatures from row first onwards, which have just been appended to the encounter
+	public void recordAdded(int first)
+	{
+		if (first < encounter.size())
+			record(CombatEvent.added(encounter, first));
+	}
+
+	// Removes every creature whose row is set in rows and returns the number removed
+	public int removeAll(BitSet rows)
+	{
+		CombatEvent event = CombatEvent.removing(encounter, rows);
+		int numRemoved = encounter.removeAll(rows);
+		if (numRemoved > 0)
+			record(event);
+		return numRemoved;
+	}
+
+	// Rolls initiative for every row set in rows and returns the rows rolled for
+	public int[] rollInitiative(InitiativeRoller roller, BitSet rows, int mode)
+	{
+		return rollInitiative(roller, rows, mode, null);
+	}
+
+	// As above, rolling once for each of groups unless groups is null
+	public int[] rollInitiative(InitiativeRoller roller, BitSet rows, int mode, InitiativeGroups groups)
+	{
+		int[] rolledRows = rows.stream().toArray();
+		int[] oldInit = new int[rolledRows.length];
+		for (int i = 0; i < rolledRows.length; i++)
+			oldInit[i] = encounter.getInit(rolledRows[i]);
+
+		if (groups == null)
+			roller.rollInitiative(encounter, rows, mode);
+		else
+			roller.rollInitiativeByGroup(encounter, rows, mode, groups);
+		if (rolledRows.length > 0)
+			record(CombatEvent.rolled(encounter, rolledRows, oldInit));
+		return rolledRows;
+	}
+
+	// Takes amount off the current HP of every row set in rows; a negative amount heals
+	public void damage(BitSet rows, int amount)
+	{
+		int[] damagedRows = rows.stream().toArray();
+		if (damagedRows.length == 0)
+			return;
+
+		int[] newHP = new int[damagedRows.length];
+		for (int i = 0; i < damagedRows.length; i++)
+			newHP[i] = encounter.getHPCurrent(damagedRows[i]) - amount;
+		setHP(damagedRows, newHP);
+	}
+
+	// Sets the current HP of each of rows to the matching entry of newHP, as one change
+	public void setHP(int[] rows, int[] newHP)
+	{
+		if (rows.length == 0)
+			return;
+
+		int[] oldHP = new int[rows.length];
+		for (int i = 0; i < rows.length; i++)
+		{
+			oldHP[i] = encounter.getHPCurrent(rows[i]);
+			encounter.setHPCurrent(rows[i], newHP[i]);
+		}
+		record(CombatEvent.damaged(encounter, rows, oldHP));
+	}
+
+	public void move(int from, int to)
+	{
+		if (from != to)
+			perform(CombatEvent.moved(from, to));
+	}
+
+	// Moves the creatures in rows, in ascending order, together to rows to onwards
+	public void moveRows(int[] rows, int to)
+	{
+		if (rows.length > 0)
+			perform(CombatEvent.movedRows(encounter, rows, to));
+	}
+
+	public int[] sortByInitiative()
+	{
+		int[] order = encounter.sortByInitiative();
+		record(CombatEvent.sorted(order));
+		return order;
+	}
+
+	// Sorts with each group acting together, as Encounter.sortByGroup does
+	public int[] sortByGroup()
+	{
+		int[] order = encounter.sortByGroup();
+		record(CombatEvent.sorted(order));
+		return order;
+	}
+
+	// Parses text into a cell as Encounter.setText does, recording the edit if it changed anything.
+	// An edit of the cell the newest event edited replaces that event with one edit from the
+	// cell's text before it to the text now, or undoes it if the text is back where it started.
+	public boolean setText(int row, int column, String text)
+	{
+		boolean extending = isLastEdit(row) && column == lastEditColumn;
+		CombatEvent.RowState before = extending ? lastEditBefore : new CombatEvent.RowState(encounter, row);
+		if (!encounter.setText(row, column, text))
+			return false;
+
+		CombatEvent event = CombatEvent.edited(encounter, row, before);
+		if (extending)
+		{
+			// Either way the encounter already holds the text, so nothing is applied or reverted
+			position--;
+			log(UNDO, null);
+			lastEdit = null;
+			if (event == null)
+				return true;
+
+			history.remove(position);
+			snapshots.tailMap(position, false).clear();
+		}
+
+		if (event != null)
+		{
+			record(event);
+			lastEdit = event;
+			lastEditRow = row;
+			lastEditColumn = column;
+			lastEditBefore = before;
+		}
+		return true;
+	}
+
+	// Starts a change as beginChange does, taking the newest event into it if it is an edit of
+	// row, so that what follows is undone and redone along with the edit, such as moving the
+	// edited creature to its place in turn order
+	public void beginChangeAfterEdit(int row)
+	{
+		boolean afterEdit = isLastEdit(row);
+		beginChange();
+		if (!afterEdit)
+			return;
+
+		// Recorded again when the change ends
+		change.add(history.remove(--position));
+		snapshots.tailMap(position, false).clear();
+		log(UNDO, null);
+		lastEdit = null;
+	}
+
+	// Whether the newest event, with nothing undone since, is an edit of row made through setText
+	private boolean isLastEdit(int row)
+	{
+		return lastEdit != null && row == lastEditRow && change == null && position > 0
+				&& position == history.size() && history.get(position - 1) == lastEdit;
+	}
+
+	public void undo()
+	{
+		if (!canUndo())
+			return;
+
+		history.get(--position).revert(encounter);
+		log(UNDO, null);
+	}
+
+	public void redo()
+	{
+		if (!canRedo())
+			return;
+
+		history.get(position++).apply(encounter);
+		log(REDO, null);
+	}
+
+	// Replaces the encounter and its history with those in a journal file, as they were when the
+	// file was last written, and records them in this journal. A record cut off at the end of the
+	// file, such as by a crash part way through writing it, is ignored.
+	public void replay(Path file) throws IOException
+	{
+		ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+		if (buffer.remaining() < HEADER_BYTES || buffer.getInt() != MAGIC)
+			throw new IOException(file + " is not a combat journal");
+
+		int version = buffer.getInt();
+		if (version > VERSION)
+			throw new IOException(file + " was written by a newer version of the tracker (format " + version + ")");
+
+		// Work out the final history without applying anything, then jump straight to its end
+		// from the nearest snapshot
+		ArrayList<CombatEvent> events = new ArrayList<CombatEvent>();
+		TreeMap<Integer, byte[]> eventSnapshots = new TreeMap<Integer, byte[]>();
+		int eventPosition = 0;
+
+		// Number of creatures after each number of events, and the next creature id after all of
+		// them, which each event read is checked against
+		int[] sizes = new int[1];
+		int nextId = 1;
+
+		while (buffer.remaining() >= RECORD_HEADER_BYTES)
+		{
+			byte type = buffer.get();
+			int length = buffer.getInt();
+			if (length < 0 || length > buffer.remaining())
+				break;
+
+			byte[] payload = new byte[length];
+			buffer.get(payload);
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+
+			switch (type)
+			{
+				case START:
+					events.clear();
+					eventSnapshots.clear();
+					eventPosition = 0;
+					eventSnapshots.put(0, payload);
+					sizes[0] = EncounterFile.readSize(ByteBuffer.wrap(payload), file.toString());
+					nextId = EncounterFile.readNextCreatureId(ByteBuffer.wrap(payload), file.toString());
+					break;
+				case CHECKPOINT:
+				{
+					int snapshotPosition = in.readInt();
+					byte[] snapshot = new byte[length - 4];
+					in.readFully(snapshot);
+					if (snapshotPosition < 1 || snapshotPosition > events.size()
+							|| EncounterFile.readSize(ByteBuffer.wrap(snapshot), file.toString()) != sizes[snapshotPosition])
+						throw new IOException(file + " has a snapshot that does not match its events");
+					eventSnapshots.put(snapshotPosition, snapshot);
+					break;
+				}
+				case EVENT:
+				{
+					if (!eventSnapshots.containsKey(0))
+						throw new IOException(file + " does not start from an encounter");
+					if (eventPosition < events.size())
+					{
+						events.subList(eventPosition, events.size()).clear();
+						eventSnapshots.tailMap(eventPosition, false).clear();
+					}
+					CombatEvent event = CombatEvent.read(in, version, sizes[eventPosition], nextId);
+					nextId = Math.max(nextId, event.getMaxCreatureId() + 1);
+					events.add(event);
+					eventPosition++;
+					if (eventPosition == sizes.length)
+						sizes = Arrays.copyOf(sizes, 2 * sizes.length);
+					sizes[eventPosition] = event.sizeAfter(sizes[eventPosition - 1]);
+					break;
+				}
+				case UNDO:
+					if (eventPosition > 0)
+						eventPosition--;
+					break;
+				case REDO:
+					if (eventPosition < events.size())
+						eventPosition++;
+					break;
+				default:
+					throw new IOException(file + " has an unknown record type " + type);
+			}
+		}
+
+		if (!eventSnapshots.containsKey(0))
+			throw new IOException(file + " does not start from an encounter");
+
+		Map.Entry<Integer, byte[]> start = eventSnapshots.floorEntry(eventPosition);
+		EncounterFile.read(ByteBuffer.wrap(start.getValue()), encounter, file.toString());
+		for (int i = start.getKey(); i < eventPosition; i++)
+			events.get(i).apply(encounter);
+
+		// Take on the replayed history, writing it out as if it had happened here
+		history.clear();
+		history.addAll(events);
+		position = eventPosition;
+		snapshots.clear();
+		snapshots.putAll(eventSnapshots);
+
+		log(START, snapshots.get(0));
+		for (CombatEvent event : history)
+			logEvent(event);
+		for (Map.Entry<Integer, byte[]> entry : snapshots.tailMap(0, false).entrySet())
+			logCheckpoint(entry.getKey(), entry.getValue());
+		for (int i = position; i < history.size(); i++)
+			log(UNDO, null);
+	}
+
+	// Waits until every record so far has been written and forced to disk
+	public void flush() throws IOException
+	{
+		if (writer == null)
+			return;
+
+		try
+		{
+			writer.submit(() -> {
+				if (writeError == null)
+					channel.force(false);
+				return null;
+			}).get();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while flushing the combat journal", e);
+		}
+		catch (ExecutionException e)
+		{
+			throw new IOException("Could not flush the combat journal", e.getCause());
+		}
+
+		if (writeError != null)
+			throw writeError;
+	}
+
+	// Writes out anything still pending and closes the journal file
+	@Override
+	public void close() throws IOException
+	{
+		if (writer == null)
+			return;
+
+		try
+		{
+			flush();
+		}
+		finally
+		{
+			writer.shutdown();
+			try
+			{
+				writer.awaitTermination(1, TimeUnit.MINUTES);
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+			channel.close();
+		}
+	}
+
+	// Keeps a snapshot of the encounter at the current position
+	private void checkpoint()
+	{
+		byte[] snapshot = EncounterFile.write(encounter).array();
+		snapshots.put(position, snapshot);
+		logCheckpoint(position, snapshot);
+	}
+
+	// Events are only encoded when there is a file to write them to
+	private void logEvent(CombatEvent event)
+	{
+		if (writer == null)
+			return;
+
+		log(EVENT, event.toBytes());
+	}
+
+	private void logCheckpoint(int snapshotPosition, byte[] snapshot)
+	{
+		if (writer == null)
+			return;
+
+		byte[] payload = new byte[4 + snapshot.length];
+		ByteBuffer.wrap(payload).putInt(snapshotPosition).put(snapshot);
+		log(CHECKPOINT, payload);
+	}
+
+	// Queues a record to be appended to the journal file
+	private void log(byte type, byte[] payload)
+	{
+		if (writer == null)
+			return;
+
+		int length = (payload == null) ? 0 : payload.length;
+		ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_BYTES + length);
+		record.put(type);
+		record.putInt(length);
+		if (payload != null)
+			record.put(payload);
+		record.flip();
+
+		append(record);
+	}
+
+	private void append(ByteBuffer record)
+	{
+		writer.execute(() -> {
+			if (writeError != null)
+				return;
+
+			try
+			{
+				while (record.hasRemaining())
+					channel.write(record);
+			}
+			catch (IOException e)
+			{
+				writeError = e;
+			}
+		});
+	}
+}
@@ -0,0 +1,114 @@
+/* ********************************************************************************************
+ * CreatureTemplate.java
+ *
+ * The stats a creature shares with its copies: name, initiative modifier, maximum HP and armor
+ * class, and the batch of creatures it was added with. Templates are immutable, so any number
+ * of rows can share one; changing a stat on a single row gives that row a new template instead.
+ * ******************************************************************************************** */
+
+package tracker;
+
+public final class CreatureTemplate
+{
+
+	private final String name;
+	private final int mod;
+	private final int hpMax;
+	private final int ac;
+
+	// Creatures added together share a batch number, even where they rolled different HP, and
+	// separate additions of the same creature get different ones; 0 for none
+	private final int batch;
+
+	public CreatureTemplate(String name, int mod, int hpMax, int ac)
+	{
+		this(name, mod, hpMax, ac, 0);
+	}
+
+	public CreatureTemplate(String name, int mod, int hpMax, int ac, int batch)
+	{
+		if (name == null)
+			throw new NullPointerException("name");
+
+		this.name = name;
+		this.mod = mod;
+		this.hpMax = hpMax;
+		this.ac = ac;
+		this.batch = batch;
+	}
+
+	public String getName()
+	{
+		return name;
+	}
+
+	public int getMod()
+	{
+		return mod;
+	}
+
+	public int getHPMax()
+	{
+		return hpMax;
+	}
+
+	public int getAC()
+	{
+		return ac;
+	}
+
+	public int getBatch()
+	{
+		return batch;
+	}
+
+	public CreatureTemplate withName(String newName)
+	{
+		return new CreatureTemplate(newName, mod, hpMax, ac, batch);
+	}
+
+	public CreatureTemplate withMod(int newMod)
+	{
+		return new CreatureTemplate(name, newMod, hpMax, ac, batch);
+	}
+
+	public CreatureTemplate withHPMax(int newHPMax)
+	{
+		return new CreatureTemplate(name, mod, newHPMax, ac, batch);
+	}
+
+	public CreatureTemplate withAC(int newAC)
+	{
+		return new CreatureTemplate(name, mod, hpMax, newAC, batch);
+	}
+
+	@Override
+	public boolean equals(Object o)
+	{
+		if (this == o)
+			return true;
+		if (!(o instanceof CreatureTemplate))
+			return false;
+
+		CreatureTemplate other = (CreatureTemplate) o;
+		return mod == other.mod && hpMax == other.hpMax && ac == other.ac && batch == other.batch
+				&& name.equals(other.name);
+	}
+
+	@Override
+	public int hashCode()
+	{
+		int hash = name.hashCode();
+		hash = 31 * hash + mod;
+		hash = 31 * hash + hpMax;
+		hash = 31 * hash + ac;
+		hash = 31 * hash + batch;
+		return hash;
+	}
+
+	@Override
+	public String toString()
+	{
+		return name + " (mod " + mod + ", HP " + hpMax + ", AC " + ac + ")";
+	}
+}
@@ -0,0 +1,275 @@
+/* ********************************************************************************************
+ * DiceExpression.java
+ *
+ * A dice roll written out as text, such as "2d8+4", "4d6kh3" or "1d20+mod", compiled once into
+ * a flat list of terms and then rolled as many times as needed without looking at the text
+ * again.
+ *
+ * An expression is a sum of terms, each added or subtracted: a number; NdS, the total of N dice
+ * with S sides (N defaults to 1); NdSkhK or NdSklK, the total of the highest or lowest K of
+ * them; or mod, the modifier of the creature rolling. Spaces and case are ignored.
+ *
+ * Compiled expressions are cached by their text, so asking for the same expression again, even
+ * for thousands of creatures, returns the same object. Since that object is shared, it holds
+ * nothing that changes while rolling, and any number of threads may roll it at once. Rolling
+ * does not allocate: terms that keep some of their dice sort them in a scratch array owned by
+ * the thread rolling. A total too large for an int, which only a huge modifier can give, is
+ * clamped to the int range.
+ * ******************************************************************************************** */
+
+package tracker;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+
+public final class DiceExpression
+{
+
+	// Limits on each term and on the expression as a whole. The number terms and the dice terms
+	// may each total at most half of an int, so every roll but for the modifier fits in an int.
+	private static final int MAX_DICE = 1000;
+	private static final int MAX_SIDES = 1000000;
+	private static final int MAX_TERMS = 64;
+	private static final long MAX_TOTAL = Integer.MAX_VALUE / 2;
+
+	// Compiled expressions are no longer cached once there are this many
+	private static final int MAX_CACHED = 1024;
+
+	private static final ConcurrentHashMap<String, DiceExpression> cache = new ConcurrentHashMap<String, DiceExpression>();
+
+	// Dice rolled for a term that keeps some of them, big enough for any term
+	private static final ThreadLocal<int[]> scratch = ThreadLocal.withInitial(() -> new int[MAX_DICE]);
+
+	private final String text;
+
+	// Dice terms: how many dice, how many sides, +1 or -1, and how many to keep (positive for the
+	// highest, negative for the lowest, 0 for all)
+	private final int[] count;
+	private final int[] sides;
+	private final int[] sign;
+	private final int[] keep;
+
+	// Sum of the number terms, and of the signs of the mod terms
+	private final int constant;
+	private final int modMultiplier;
+
+	private DiceExpression(String text, int[] count, int[] sides, int[] sign, int[] keep, int constant,
+			int modMultiplier)
+	{
+		this.text = text;
+		this.count = count;
+		this.sides = sides;
+		this.sign = sign;
+		this.keep = keep;
+		this.constant = constant;
+		this.modMultiplier = modMultiplier;
+	}
+
+	// Returns the compiled form of text, compiling it only if it has not been seen before.
+	// Throws IllegalArgumentException if text is not a dice expression.
+	public static DiceExpression compile(String text)
+	{
+		DiceExpression expression = cache.get(text);
+		if (expression != null)
+			return expression;
+
+		expression = parse(text);
+		if (cache.size() < MAX_CACHED)
+			cache.putIfAbsent(text, expression);
+		return expression;
+	}
+
+	// Returns true if text compiles
+	public static boolean isValid(String text)
+	{
+		if (text == null)
+			return false;
+
+		try
+		{
+			compile(text);
+			return true;
+		}
+		catch (IllegalArgumentException e)
+		{
+			return false;
+		}
+	}
+
+	// Whether the expression always gives the same result, i.e. has no dice
+	public boolean isConstant()
+	{
+		return count.length == 0;
+	}
+
+	// Rolls the expression for a creature with the given modifier
+	public int roll(SplittableRandom random, int mod)
+	{
+		return roll(random, mod, InitiativeRoller.NORMAL);
+	}
+
+	// Rolls the expression, with any single d20 rolled with advantage or disadvantage as given by
+	// one of the InitiativeRoller modes
+	public int roll(SplittableRandom random, int mod, int mode)
+	{
+		// The dice and numbers fit in an int, but "mod+mod+..." times a large modifier may not
+		long total = constant + (long) modMultiplier * mod;
+		for (int i = 0; i < count.length; i++)
+			total += sign[i] * rollTerm(i, random, mode);
+		return (int) Math.max(Integer.MIN_VALUE, Math.min(total, Integer.MAX_VALUE));
+	}
+
+	@Override
+	public String toString()
+	{
+		return text;
+	}
+
+	private int rollTerm(int term, SplittableRandom random, int mode)
+	{
+		int n = count[term];
+		int s = sides[term];
+		int k = keep[term];
+
+		if (k == 0)
+		{
+			if (n == 1 && s == 20 && mode != InitiativeRoller.NORMAL)
+				return InitiativeRoller.rollD20(random, mode);
+
+			int total = 0;
+			for (int i = 0; i < n; i++)
+				total += random.nextInt(s) + 1;
+			return total;
+		}
+
+		int[] scratch = DiceExpression.scratch.get();
+		for (int i = 0; i < n; i++)
+			scratch[i] = random.nextInt(s) + 1;
+		Arrays.sort(scratch, 0, n);
+
+		int total = 0;
+		if (k > 0)
+		{
+			for (int i = n - Math.min(k, n); i < n; i++)
+				total += scratch[i];
+		}
+		else
+		{
+			for (int i = 0; i < Math.min(-k, n); i++)
+				total += scratch[i];
+		}
+		return total;
+	}
+
+	private static DiceExpression parse(String text)
+	{
+		String expression = text.replace(" ", "").toLowerCase();
+		if (expression.isEmpty())
+			throw new IllegalArgumentException("Empty dice expression");
+
+		int[] count = new int[MAX_TERMS];
+		int[] sides = new int[MAX_TERMS];
+		int[] sign = new int[MAX_TERMS];
+		int[] keep = new int[MAX_TERMS];
+		int numDice = 0;
+		long constant = 0;
+		long diceTotal = 0;
+		int modMultiplier = 0;
+
+		int length = expression.length();
+		int i = 0;
+		while (i < length)
+		{
+			int termSign = 1;
+			char c = expression.charAt(i);
+			if (c == '+' || c == '-')
+			{
+				termSign = (c == '-') ? -1 : 1;
+				i++;
+			}
+			else if (i > 0)
+				throw invalid(text);
+
+			if (expression.startsWith("mod", i))
+			{
+				modMultiplier += termSign;
+				i += 3;
+				continue;
+			}
+
+			int start = i;
+			i = skipDigits(expression, i);
+			long number = (i > start) ? parseNumber(expression, start, i, text) : -1;
+
+			if (i == length || expression.charAt(i) != 'd')
+			{
+				if (number < 0)
+					throw invalid(text);
+				constant += termSign * number;
+				if (Math.abs(constant) > MAX_TOTAL)
+					throw new IllegalArgumentException("Dice expression \"" + text + "\" is too large");
+				continue;
+			}
+
+			// Dice: [N]dS, then an optional khK or klK
+			long n = (number < 0) ? 1 : number;
+			start = ++i;
+			i = skipDigits(expression, i);
+			if (i == start)
+				throw invalid(text);
+			long s = parseNumber(expression, start, i, text);
+
+			int k = 0;
+			if (expression.startsWith("kh", i) || expression.startsWith("kl", i))
+			{
+				boolean highest = expression.charAt(i + 1) == 'h';
+				start = i += 2;
+				i = skipDigits(expression, i);
+				if (i == start)
+					throw invalid(text);
+				long kept = parseNumber(expression, start, i, text);
+				if (kept < 1 || kept > n)
+					throw new IllegalArgumentException("Cannot keep " + kept + " of " + n + " dice in \"" + text + "\"");
+				k = (int) (highest ? kept : -kept);
+			}
+
+			if (n < 1 || n > MAX_DICE || s < 1 || s > MAX_SIDES)
+				throw new IllegalArgumentException("Unsupported dice " + n + "d" + s + " in \"" + text + "\"");
+			if (numDice == MAX_TERMS)
+				throw new IllegalArgumentException("Too many dice terms in \"" + text + "\"");
+			diceTotal += n * s;
+			if (diceTotal > MAX_TOTAL)
+				throw new IllegalArgumentException("Dice expression \"" + text + "\" is too large");
+
+			count[numDice] = (int) n;
+			sides[numDice] = (int) s;
+			sign[numDice] = termSign;
+			keep[numDice] = k;
+			numDice++;
+		}
+
+		return new DiceExpression(text, Arrays.copyOf(count, numDice), Arrays.copyOf(sides, numDice),
+				Arrays.copyOf(sign, numDice), Arrays.copyOf(keep, numDice), (int) constant, modMultiplier);
+	}
+
+	private static int skipDigits(String expression, int i)
+	{
+		while (i < expression.length() && expression.charAt(i) >= '0' && expression.charAt(i) <= '9')
+			i++;
+		return i;
+	}
+
+	private static long parseNumber(String expression, int start, int end, String text)
+	{
+		long value = CellCodec.parse(expression.subSequence(start, end));
+		if (value == CellCodec.INVALID)
+			throw new IllegalArgumentException("Number too large in dice expression \"" + text + "\"");
+		return value;
+	}
+
+	private static IllegalArgumentException invalid(String text)
+	{
+		return new IllegalArgumentException("Not a number or dice expression: \"" + text + "\"");
+	}
+}
@@ -0,0 +1,274 @@
+/* ********************************************************************************************
+ * DisplayRows.java
+ *
+ * Maps the rows of the tracker's table to the encounter's rows, so the table can show fewer
+ * rows than the encounter has: only the creatures whose names match a filter, such as "orc"
+ * for every Orc Archer copy, and in group initiative mode one row for each group of identical
+ * creatures (see InitiativeGroups) until it is expanded to show them all.
+ *
+ * Shown rows keep the encounter's turn order, so the mapping is an ascending array of
+ * encounter rows, and finding where a creature is shown is a binary search. A collapsed group
+ * is shown by its first creature that the filter lets through, whose name cell carries the
+ * group's size and total HP, and that row stands for the rest. With nothing filtered out or
+ * grouped, the table's rows are the encounter's rows and no array is kept.
+ *
+ * The mapping is only worked out again when the filter, grouping or expanded groups change, or
+ * creatures are added, removed or moved (see Encounter.getRowsVersion). Filtering alone costs as
+ * much as the number of creatures that match, since they come from the encounter's name index;
+ * grouping looks at every row once.
+ * ******************************************************************************************** */
+
+package tracker;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+
+public class DisplayRows
+{
+
+	private final Encounter encounter;
+
+	// Start of a word in the names of the creatures shown, or null to show every creature
+	private String filter;
+
+	// Whether identical creatures are grouped, the groups, or null until worked out, and the
+	// keys of the groups the user has expanded, which outlast the groups being worked out again
+	private boolean grouped;
+	private InitiativeGroups groups;
+	private final HashSet<CreatureTemplate> expanded;
+
+	// Encounter row shown in each table row, in ascending order, of which the first size are
+	// used; null while every creature is shown in its own row
+	private int[] rowAt;
+	private int size;
+
+	// Per group: table row of its first creature shown, or -1, and whether the rest are hidden
+	private int[] headOf;
+	private boolean[] collapsed;
+
+	// Encounter's rows version when the mapping was worked out, and whether the mapping must be
+	// worked out again whatever the version
+	private int rowsVersion;
+	private boolean stale;
+
+	public DisplayRows(Encounter encounter)
+	{
+		this.encounter = encounter;
+		expanded = new HashSet<CreatureTemplate>();
+	}
+
+	// Shows only the creatures with a word in their name that starts with query, as
+	// Encounter.findByName matches them, from the next update. A blank query shows every creature.
+	public void setFilter(String query)
+	{
+		filter = query.trim().isEmpty() ? null : query;
+		stale = true;
+	}
+
+	// Shows each group of identical creatures in one row, unless expanded, from the next update
+	public void setGrouped(boolean enabled)
+	{
+		grouped = enabled;
+		stale = true;
+	}
+
+	public boolean isGrouped()
+	{
+		return grouped;
+	}
+
+	// Groups as of the last update, or null if not grouped
+	public InitiativeGroups getGroups()
+	{
+		return groups;
+	}
+
+	// Whether every creature is shown, in its own row, so table rows are encounter rows
+	public boolean isIdentity()
+	{
+		return rowAt == null;
+	}
+
+	// Works out the mapping again if it has changed since the last update, and if grouped,
+	// the groups as well when regroup is set, such as when every row is being redrawn anyway.
+	// Returns true if the mapping was worked out again, in which case every table row may show
+	// a different creature.
+	public boolean update(boolean regroup)
+	{
+		boolean moved = rowsVersion != encounter.getRowsVersion();
+		boolean changed = grouped ? (groups == null || regroup || moved) : (rowAt != null && moved);
+		if (!stale && !changed)
+			return false;
+
+		stale = false;
+		rowsVersion = encounter.getRowsVersion();
+		int[] matches = (filter == null) ? null : encounter.findByName(filter);
+		if (!grouped)
+		{
+			groups = null;
+			rowAt = matches;
+			size = (matches == null) ? 0 : matches.length;
+			return true;
+		}
+
+		groups = InitiativeGroups.of(encounter);
+		int numGroups = groups.getNumGroups();
+		headOf = new int[numGroups];
+		Arrays.fill(headOf, -1);
+		collapsed = new boolean[numGroups];
+		for (int group = 0; group < numGroups; group++)
+			collapsed[group] = groups.getSize(group) > 1 && !expanded.contains(groups.getKey(group));
+
+		int numMatches = (matches == null) ? encounter.size() : matches.length;
+		rowAt = new int[numMatches];
+		size = 0;
+		for (int i = 0; i < numMatches; i++)
+		{
+			int row = (matches == null) ? i : matches[i];
+			int group = groups.getGroup(row);
+			if (headOf[group] < 0)
+				headOf[group] = size;
+			else if (collapsed[group])
+				continue;
+			rowAt[size++] = row;
+		}
+		return true;
+	}
+
+	// Brings the group totals up to date with whatever creature is now in row, as
+	// InitiativeGroups.update does. Returns false if it has moved into another group, such as by
+	// being renamed, in which case the rows shown must be worked out again with update(true).
+	public boolean updateGroup(int row)
+	{
+		return groups == null || groups.update(encounter, row);
+	}
+
+	// Expands the collapsed group shown with its totals in a table row, or collapses it if
+	// expanded, from the next update. Returns false, changing nothing, if the row shows no group.
+	public boolean toggleGroup(int displayRow)
+	{
+		int row = getRow(displayRow);
+		if (!isSummary(row))
+			return false;
+
+		CreatureTemplate key = groups.getKey(groups.getGroup(row));
+		if (!expanded.remove(key))
+			expanded.add(key);
+		stale = true;
+		return true;
+	}
+
+	// Number of table rows
+	public int size()
+	{
+		return (rowAt == null) ? encounter.size() : size;
+	}
+
+	// Encounter row shown in a table row
+	public int getRow(int displayRow)
+	{
+		return (rowAt == null) ? displayRow : rowAt[displayRow];
+	}
+
+	// Table row an encounter row is shown in by itself, or -1 if it is not shown, or only as part
+	// of a collapsed group
+	public int getDisplayRow(int row)
+	{
+		if (rowAt == null)
+			return (row < encounter.size()) ? row : -1;
+
+		int displayRow = Arrays.binarySearch(rowAt, 0, size, row);
+		return (displayRow >= 0) ? displayRow : -1;
+	}
+
+	// Table row that shows changes to an encounter row: its own, or its collapsed group's, or -1
+	public int getDisplayRowShowing(int row)
+	{
+		if (groups != null && row < groups.getNumRows())
+		{
+			int group = groups.getGroup(row);
+			if (collapsed[group])
+				return headOf[group];
+		}
+		return getDisplayRow(row);
+	}
+
+	// Table row showing the totals of an encounter row's group, or -1 if the group has no other
+	// creatures or none of them are shown
+	public int getSummaryRow(int row)
+	{
+		if (groups == null || row >= groups.getNumRows())
+			return -1;
+
+		int group = groups.getGroup(row);
+		return (groups.getSize(group) > 1) ? headOf[group] : -1;
+	}
+
+	// Whether an encounter row is shown with the totals of its group
+	public boolean isSummary(int row)
+	{
+		int summaryRow = getSummaryRow(row);
+		return summaryRow >= 0 && rowAt[summaryRow] == row;
+	}
+
+	// Encounter rows, in ascending order, shown in the given table rows, counting every creature
+	// in a collapsed group that the filter lets through
+	public int[] getRows(int[] displayRows)
+	{
+		int[] rows = new int[displayRows.length];
+		BitSet collapsedGroups = new BitSet();
+		for (int i = 0; i < displayRows.length; i++)
+		{
+			rows[i] = getRow(displayRows[i]);
+			if (isSummary(rows[i]) && collapsed[groups.getGroup(rows[i])])
+				collapsedGroups.set(groups.getGroup(rows[i]));
+		}
+		if (collapsedGroups.isEmpty())
+		{
+			Arrays.sort(rows);
+			return rows;
+		}
+
+		// The mapping leaves out the rest of a collapsed group, so they are found again
+		BitSet found = new BitSet();
+		for (int row : rows)
+			found.set(row);
+		int[] matches = (filter == null) ? null : encounter.findByName(filter);
+		int numMatches = (matches == null) ? encounter.size() : matches.length;
+		for (int i = 0; i < numMatches; i++)
+		{
+			int row = (matches == null) ? i : matches[i];
+			if (collapsedGroups.get(groups.getGroup(row)))
+				found.set(row);
+		}
+		return found.stream().toArray();
+	}
+
+	// Text of a table row's cells
+	public String[] getRowText(int displayRow)
+	{
+		int row = getRow(displayRow);
+		String[] text = encounter.getRowText(row);
+		if (isSummary(row))
+			text[Encounter.NAME] = getSummaryText(row);
+		return text;
+	}
+
+	public String getText(int displayRow, int column)
+	{
+		int row = getRow(displayRow);
+		if (column == Encounter.NAME && isSummary(row))
+			return getSummaryText(row);
+		return encounter.getText(row, column);
+	}
+
+	// Name cell of a row shown with its group's size and total HP, marked with whether the group
+	// can be expanded or collapsed
+	private String getSummaryText(int row)
+	{
+		int group = groups.getGroup(row);
+		return (collapsed[group] ? "[+] " : "[-] ") + encounter.getName(row) + "  (" + groups.getSize(group)
+				+ " in group, " + groups.getHPCurrent(group) + "/" + groups.getHPMax(group) + " HP)";
+	}
+}
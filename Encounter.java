@@ -0,0 +1,939 @@
+/* ********************************************************************************************
+ * Encounter.java
+ *
+ * The creatures taking part in a combat, in turn order. This is the data behind the tracker's
+ * table; the table only renders it.
+ *
+ * Each column is held as a parallel primitive array indexed by row. The stats a creature shares
+ * with its copies (name, modifier, max HP, AC) live in an interned CreatureTemplate, so a row
+ * only stores its template id, its copy number, and the fields that differ between copies.
+ * Numeric cells are parsed once when they are edited, never when they are read.
+ *
+ * Names are kept in a NameIndex by creature id as creatures are added, removed and renamed, and
+ * the row of each creature id is kept as rows move, so finding creatures by name or by id never
+ * has to look through every row.
+ * ******************************************************************************************** */
+
+package tracker;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.SplittableRandom;
+
+public class Encounter
+{
+
+	// Column indices, matching the order of the columns in the tracker's table
+	public static final int NAME = 0;
+	public static final int INIT = 1;
+	public static final int MOD = 2;
+	public static final int HP_CURRENT = 3;
+	public static final int HP_MAX = 4;
+	public static final int AC = 5;
+	public static final int NUM_COLUMNS = 6;
+
+	// Initiative of a creature that has not rolled yet
+	public static final int NO_INIT = InitiativeSorter.NO_INIT;
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	private final InternPool<CreatureTemplate> templates;
+
+	private int size;
+
+	private int[] templateIds;
+
+	// Number appended to the template's name, e.g. the 3 in "Goblin 3"; 0 for none
+	private int[] suffix;
+
+	private int[] init;
+	private int[] hpCurrent;
+
+	// Per-creature roll used to break initiative and modifier ties when sorting
+	private int[] tiebreak;
+
+	// Rows that are checked, kept in step with the columns as rows move so that checking,
+	// counting and collecting checked rows work a word of rows at a time
+	private final BitSet checked;
+
+	// Number that identifies a creature for as long as it is in the encounter, wherever its row
+	// moves to. Ids start at 1 and are never reused within an encounter.
+	private int[] creatureIds;
+	private int nextCreatureId;
+
+	// Row of each creature by id, or -1 for ids not in the encounter
+	private int[] rowOfId;
+
+	// Counts the changes to which creature is in which row, so views of the rows can tell when
+	// they must be worked out again
+	private int rowsVersion;
+
+	// Batch number for the next creatures added together, above that of every template used
+	private int nextBatch;
+
+	// Every creature's name, by creature id
+	private final NameIndex names;
+
+	private long seed;
+	private SplittableRandom tiebreakRandom;
+
+	public Encounter()
+	{
+		this(new Random().nextLong());
+	}
+
+	// Creates an empty encounter whose tiebreak rolls are drawn from seed, so adding the same
+	// creatures in the same order always sorts them the same way
+	public Encounter(long seed)
+	{
+		this.seed = seed;
+		tiebreakRandom = new SplittableRandom(seed);
+		templates = new InternPool<CreatureTemplate>();
+
+		templateIds = new int[INITIAL_CAPACITY];
+		suffix = new int[INITIAL_CAPACITY];
+		init = new int[INITIAL_CAPACITY];
+		hpCurrent = new int[INITIAL_CAPACITY];
+		tiebreak = new int[INITIAL_CAPACITY];
+		checked = new BitSet(INITIAL_CAPACITY);
+		creatureIds = new int[INITIAL_CAPACITY];
+		nextCreatureId = 1;
+		rowOfId = new int[INITIAL_CAPACITY];
+		Arrays.fill(rowOfId, -1);
+		nextBatch = 1;
+		names = new NameIndex();
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	public long getSeed()
+	{
+		return seed;
+	}
+
+	// A number that changes whenever creatures are added, removed or moved between rows, and
+	// stays the same while only their cells change
+	public int getRowsVersion()
+	{
+		return rowsVersion;
+	}
+
+	// Appends a creature at full HP, in a batch of its own, and returns its row
+	public int add(String name, int newInit, int newMod, int newHP, int newAC)
+	{
+		return addCopies(new CreatureTemplate(name, newMod, newHP, newAC, newBatch()), newInit, 0, 1);
+	}
+
+	// Returns a batch number no template in the encounter has yet, for creatures about to be
+	// added together
+	public int newBatch()
+	{
+		return nextBatch++;
+	}
+
+	// Appends count copies of a template at full HP, all sharing the template, and returns the
+	// row of the first. The copies are numbered from firstSuffix upwards, or left unnumbered if
+	// firstSuffix is 0.
+	public int addCopies(CreatureTemplate template, int newInit, int firstSuffix, int count)
+	{
+		if (count < 1)
+			throw new IllegalArgumentException("Must add at least one creature, not " + count);
+
+		ensureCapacity(size + count);
+
+		int id = intern(template);
+		templates.retain(id, count - 1);
+
+		int first = size;
+		for (int row = first; row < first + count; row++)
+		{
+			templateIds[row] = id;
+			suffix[row] = (firstSuffix == 0) ? 0 : firstSuffix + row - first;
+			init[row] = newInit;
+			hpCurrent[row] = template.getHPMax();
+			tiebreak[row] = tiebreakRandom.nextInt();
+			creatureIds[row] = nextCreatureId++;
+		}
+		size += count;
+		placeIds(first, size);
+		indexNames(first, size);
+
+		return first;
+	}
+
+	// Removes a creature, shifting the rows below it up by one
+	public void remove(int row)
+	{
+		checkRow(row);
+		names.remove(creatureIds[row], getName(row));
+		templates.release(templateIds[row]);
+		rowOfId[creatureIds[row]] = -1;
+
+		int numMoved = size - row - 1;
+		for (int[] column : columns())
+			System.arraycopy(column, row + 1, column, row, numMoved);
+
+		for (int i = row; i < size - 1; i++)
+			checked.set(i, checked.get(i + 1));
+		checked.clear(size - 1);
+
+		size--;
+		placeIds(row, size);
+	}
+
+	// Removes every creature whose row is set in rows, compacting the remaining rows in a single
+	// pass. Returns the number of creatures removed.
+	public int removeAll(BitSet rows)
+	{
+		int first = rows.nextSetBit(0);
+		if (first < 0 || first >= size)
+			return 0;
+
+		for (int i = rows.nextSetBit(first); i >= 0 && i < size; i = rows.nextSetBit(i + 1))
+		{
+			names.remove(creatureIds[i], getName(i));
+			templates.release(templateIds[i]);
+			rowOfId[creatureIds[i]] = -1;
+		}
+
+		int newSize = first;
+		for (int[] column : columns())
+		{
+			int write = first;
+			for (int read = first + 1; read < size; read++)
+			{
+				if (!rows.get(read))
+					column[write++] = column[read];
+			}
+			newSize = write;
+		}
+
+		// Each checked row that stays moves up by the number of removed rows above it
+		int removedAbove = 0;
+		int removed = first;
+		for (int i = checked.nextSetBit(first); i >= 0 && i < size; i = checked.nextSetBit(i + 1))
+		{
+			for (; removed >= 0 && removed < i; removed = rows.nextSetBit(removed + 1))
+				removedAbove++;
+			checked.clear(i);
+			if (removed != i)
+				checked.set(i - removedAbove);
+		}
+
+		int numRemoved = size - newSize;
+		size = newSize;
+		placeIds(first, size);
+		return numRemoved;
+	}
+
+	public void clear()
+	{
+		for (int i = 0; i < size; i++)
+		{
+			templates.release(templateIds[i]);
+			rowOfId[creatureIds[i]] = -1;
+		}
+
+		checked.clear();
+		names.clear();
+		size = 0;
+		rowsVersion++;
+	}
+
+	// Removes every creature and starts drawing tiebreak rolls from a new seed, and numbering
+	// creatures from 1 again
+	public void reset(long newSeed)
+	{
+		clear();
+		seed = newSeed;
+		tiebreakRandom = new SplittableRandom(newSeed);
+		nextCreatureId = 1;
+		nextBatch = 1;
+	}
+
+	// Appends count rows exactly as given, for restoring creatures that were saved earlier rather
+	// than adding new ones. Row i uses templateTable[templateIndex[i]] and keeps its saved
+	// tiebreak roll, and its saved id unless newCreatureIds is null. Returns the first row added.
+	public int addRows(CreatureTemplate[] templateTable, int[] templateIndex, int[] newSuffix, int[] newInit,
+			int[] newHPCurrent, int[] newTiebreak, int[] newCreatureIds, int count)
+	{
+		ensureCapacity(size + count);
+
+		int[] ids = internTemplates(templateTable, templateIndex, count);
+
+		int first = size;
+		for (int i = 0; i < count; i++)
+		{
+			int row = first + i;
+			templateIds[row] = ids[templateIndex[i]];
+			suffix[row] = newSuffix[i];
+			init[row] = newInit[i];
+			hpCurrent[row] = newHPCurrent[i];
+			tiebreak[row] = newTiebreak[i];
+			creatureIds[row] = (newCreatureIds == null) ? nextCreatureId++ : newCreatureIds[i];
+			nextCreatureId = Math.max(nextCreatureId, creatureIds[row] + 1);
+		}
+		size += count;
+		placeIds(first, size);
+		indexNames(first, size);
+
+		return first;
+	}
+
+	// Inserts count rows exactly as given so that row i ends up at rowIndex[i], which must be in
+	// ascending order. Used to put back creatures that were removed; the other rows keep their
+	// order and shift down around the inserted ones in a single pass. Each creature keeps its id
+	// from newCreatureIds, or is given a new one where that is 0.
+	public void insertRows(int[] rowIndex, CreatureTemplate[] templateTable, int[] templateIndex, int[] newSuffix,
+			int[] newInit, int[] newHPCurrent, int[] newTiebreak, int[] newCreatureIds, int count)
+	{
+		if (count == 0)
+			return;
+		if (rowIndex[0] < 0 || rowIndex[count - 1] >= size + count)
+			throw new IndexOutOfBoundsException("Rows " + rowIndex[0] + " to " + rowIndex[count - 1]
+					+ " out of range for " + (size + count) + " creatures");
+
+		ensureCapacity(size + count);
+
+		int[] ids = internTemplates(templateTable, templateIndex, count);
+		int[] newTemplateIds = new int[count];
+		int[] insertedIds = new int[count];
+		for (int i = 0; i < count; i++)
+		{
+			newTemplateIds[i] = ids[templateIndex[i]];
+			insertedIds[i] = (newCreatureIds[i] > 0) ? newCreatureIds[i] : nextCreatureId++;
+			nextCreatureId = Math.max(nextCreatureId, insertedIds[i] + 1);
+		}
+
+		int[][] columns = columns();
+		int[][] inserted = { newTemplateIds, newSuffix, newInit, newHPCurrent, newTiebreak, insertedIds };
+
+		// Fill each column from the bottom up, stopping once every new row is in place
+		for (int c = 0; c < columns.length; c++)
+		{
+			int[] column = columns[c];
+			int read = size - 1;
+			int next = count - 1;
+			for (int write = size + count - 1; next >= 0; write--)
+			{
+				if (rowIndex[next] == write)
+					column[write] = inserted[c][next--];
+				else
+					column[write] = column[read--];
+			}
+		}
+
+		// Checked rows move down past the inserted rows above them, from the bottom up so none is
+		// overwritten; the inserted rows are unchecked
+		int next = count - 1;
+		for (int i = checked.previousSetBit(size - 1); i >= 0; i = checked.previousSetBit(i - 1))
+		{
+			while (next >= 0 && rowIndex[next] > i + next)
+				next--;
+			checked.clear(i);
+			checked.set(i + next + 1);
+		}
+		size += count;
+		placeIds(rowIndex[0], size);
+
+		for (int i = 0; i < count; i++)
+			names.add(insertedIds[i], getName(rowIndex[i]));
+	}
+
+	// Moves a creature from one row to another, shifting the rows in between
+	public void move(int from, int to)
+	{
+		checkRow(from);
+		checkRow(to);
+		if (from == to)
+			return;
+
+		for (int[] column : columns())
+		{
+			int moved = column[from];
+			if (from < to)
+				System.arraycopy(column, from + 1, column, from, to - from);
+			else
+				System.arraycopy(column, to, column, to + 1, from - to);
+			column[to] = moved;
+		}
+
+		boolean movedChecked = checked.get(from);
+		if (from < to)
+		{
+			for (int i = from; i < to; i++)
+				checked.set(i, checked.get(i + 1));
+		}
+		else
+		{
+			for (int i = from; i > to; i--)
+				checked.set(i, checked.get(i - 1));
+		}
+		checked.set(to, movedChecked);
+		placeIds(Math.min(from, to), Math.max(from, to) + 1);
+	}
+
+	public void swap(int row1, int row2)
+	{
+		checkRow(row1);
+		checkRow(row2);
+
+		for (int[] column : columns())
+		{
+			int temp = column[row1];
+			column[row1] = column[row2];
+			column[row2] = temp;
+		}
+
+		boolean checked1 = checked.get(row1);
+		checked.set(row1, checked.get(row2));
+		checked.set(row2, checked1);
+
+		placeIds(row1, row1 + 1);
+		placeIds(row2, row2 + 1);
+	}
+
+	// Puts the creatures in turn order and returns the permutation that was applied:
+	// the creature now at row i was previously at row order[i]
+	public int[] sortByInitiative()
+	{
+		int[] mods = new int[size];
+		for (int i = 0; i < size; i++)
+			mods[i] = templates.get(templateIds[i]).getMod();
+
+		int[] order = InitiativeSorter.sortOrder(init, mods, tiebreak, size);
+		permute(order);
+		return order;
+	}
+
+	// Puts the creatures in turn order with the creatures of each InitiativeGroups group acting
+	// together, on the keys of the group's first row, and returns the permutation applied as
+	// sortByInitiative does. A creature whose initiative has been set apart from the rest of its
+	// group sorts with the others that have the same initiative.
+	public int[] sortByGroup()
+	{
+		int[] order = groupOrder();
+		permute(order);
+		return order;
+	}
+
+	// Returns true if every creature is in turn order, as sortByGroup would leave them
+	public boolean isInGroupOrder()
+	{
+		int[] order = groupOrder();
+		for (int i = 0; i < size; i++)
+		{
+			if (order[i] != i)
+				return false;
+		}
+		return true;
+	}
+
+	// The order sortByGroup puts the rows in
+	private int[] groupOrder()
+	{
+		InitiativeGroups groups = InitiativeGroups.of(this);
+		int numGroups = groups.getNumGroups();
+
+		// Rows sort in units of one group and one initiative. Most groups have a single
+		// initiative, so the map is only needed for the creatures that differ from the rest.
+		int[] unitOf = new int[size];
+		int[] groupInit = new int[numGroups];
+		int[] groupUnit = new int[numGroups];
+		Arrays.fill(groupUnit, -1);
+		HashMap<Long, Integer> otherUnits = new HashMap<Long, Integer>();
+		int numUnits = 0;
+		for (int row = 0; row < size; row++)
+		{
+			int group = groups.getGroup(row);
+			if (groupUnit[group] < 0)
+			{
+				groupUnit[group] = numUnits++;
+				groupInit[group] = init[row];
+			}
+
+			if (init[row] == groupInit[group])
+				unitOf[row] = groupUnit[group];
+			else
+			{
+				Long key = ((long) group << 32) | (init[row] & 0xFFFFFFFFL);
+				Integer unit = otherUnits.get(key);
+				if (unit == null)
+				{
+					unit = numUnits++;
+					otherUnits.put(key, unit);
+				}
+				unitOf[row] = unit;
+			}
+		}
+
+		int[] mods = new int[size];
+		for (int i = 0; i < size; i++)
+			mods[i] = templates.get(templateIds[i]).getMod();
+
+		return InitiativeSorter.groupSortOrder(unitOf, numUnits, init, mods, tiebreak, size);
+	}
+
+	// Returns true if every creature is in turn order, as sortByInitiative would leave them
+	public boolean isInTurnOrder()
+	{
+		for (int i = 1; i < size; i++)
+		{
+			if (precedes(i, i - 1))
+				return false;
+		}
+		return true;
+	}
+
+	// Returns the row a creature belongs in, taking every other creature to be in turn order
+	// already. Used to put back a single creature whose initiative or modifier has changed with
+	// a binary search instead of a full sort; moving it there with move(row, result) leaves the
+	// whole encounter in turn order.
+	public int turnOrderRow(int row)
+	{
+		return turnOrderRow(row, size);
+	}
+
+	// As turnOrderRow(row), but only among the rows before end, which must include row. Used to
+	// place new creatures one at a time at the bottom of the encounter.
+	public int turnOrderRow(int row, int end)
+	{
+		checkRow(row);
+		if (end <= row || end > size)
+			throw new IndexOutOfBoundsException("End " + end + " out of range for row " + row + " of " + size);
+
+		// Search the other rows as if row had been taken out: position i is row i below row and
+		// row i + 1 from row onwards. Creatures with equal keys stay ahead of the moved one.
+		int low = 0;
+		int high = end - 1;
+		while (low < high)
+		{
+			int middle = (low + high) >>> 1;
+			int other = (middle < row) ? middle : middle + 1;
+
+			if (precedes(row, other))
+				high = middle;
+			else
+				low = middle + 1;
+		}
+		return low;
+	}
+
+	// Returns true if the creature in row a acts before the one in row b
+	private boolean precedes(int a, int b)
+	{
+		return InitiativeSorter.precedes(init[a], getMod(a), tiebreak[a], init[b], getMod(b), tiebreak[b]);
+	}
+
+	// Reorders every column so that row i takes the creature previously at row order[i]
+	public void permute(int[] order)
+	{
+		if (order.length != size)
+			throw new IllegalArgumentException("Order has " + order.length + " rows but there are " + size + " creatures");
+
+		permute(0, order);
+	}
+
+	// Reorders the rows from first onwards that order covers, so that row first + i takes the
+	// creature previously at row first + order[i]. Rows outside the range are not touched.
+	public void permute(int first, int[] order)
+	{
+		int length = order.length;
+		if (first < 0 || first + length > size)
+			throw new IndexOutOfBoundsException("Rows " + first + " to " + (first + length - 1) + " out of range for "
+					+ size + " creatures");
+
+		int[] buffer = new int[length];
+
+		for (int[] column : columns())
+		{
+			for (int i = 0; i < length; i++)
+				buffer[i] = column[first + order[i]];
+			System.arraycopy(buffer, 0, column, first, length);
+		}
+
+		if (checked.nextSetBit(first) >= 0)
+		{
+			BitSet permuted = new BitSet(length);
+			for (int i = 0; i < length; i++)
+			{
+				if (checked.get(first + order[i]))
+					permuted.set(i);
+			}
+			for (int i = 0; i < length; i++)
+				checked.set(first + i, permuted.get(i));
+		}
+
+		placeIds(first, first + length);
+	}
+
+	public CreatureTemplate getTemplate(int row)
+	{
+		checkRow(row);
+		return templates.get(templateIds[row]);
+	}
+
+	// Returns the copy number shown after the creature's name, or 0 if it has none
+	public int getSuffix(int row)
+	{
+		checkRow(row);
+		return suffix[row];
+	}
+
+	public String getName(int row)
+	{
+		String name = getTemplate(row).getName();
+		return (suffix[row] == 0) ? name : name + " " + suffix[row];
+	}
+
+	public int getInit(int row)
+	{
+		checkRow(row);
+		return init[row];
+	}
+
+	public boolean hasInit(int row)
+	{
+		return getInit(row) != NO_INIT;
+	}
+
+	public int getMod(int row)
+	{
+		return getTemplate(row).getMod();
+	}
+
+	public int getHPCurrent(int row)
+	{
+		checkRow(row);
+		return hpCurrent[row];
+	}
+
+	public int getHPMax(int row)
+	{
+		return getTemplate(row).getHPMax();
+	}
+
+	public int getAC(int row)
+	{
+		return getTemplate(row).getAC();
+	}
+
+	public int getTiebreak(int row)
+	{
+		checkRow(row);
+		return tiebreak[row];
+	}
+
+	// The id the next creature added will get
+	public int getNextCreatureId()
+	{
+		return nextCreatureId;
+	}
+
+	// Makes sure no creature added from now on gets an id below next, for restoring an encounter
+	// whose removed creatures' ids must not be handed out again
+	public void reserveCreatureIds(int next)
+	{
+		nextCreatureId = Math.max(nextCreatureId, next);
+	}
+
+	public int getCreatureId(int row)
+	{
+		checkRow(row);
+		return creatureIds[row];
+	}
+
+	// Returns the row of the creature with the given id, or -1 if it is not in the encounter
+	public int findCreature(int id)
+	{
+		return (id > 0 && id < rowOfId.length) ? rowOfId[id] : -1;
+	}
+
+	public boolean isChecked(int row)
+	{
+		checkRow(row);
+		return checked.get(row);
+	}
+
+	public void setChecked(int row, boolean value)
+	{
+		checkRow(row);
+		checked.set(row, value);
+	}
+
+	// Returns a copy of the rows that are checked
+	public BitSet getCheckedRows()
+	{
+		return (BitSet) checked.clone();
+	}
+
+	public int getNumChecked()
+	{
+		return checked.cardinality();
+	}
+
+	public void setAllChecked(boolean value)
+	{
+		if (value)
+			checked.set(0, size);
+		else
+			checked.clear();
+	}
+
+	// Renaming a copy replaces its whole name, number included
+	public void setName(int row, String name)
+	{
+		String oldName = getName(row);
+		replaceTemplate(row, getTemplate(row).withName(name));
+		suffix[row] = 0;
+		renamed(row, oldName);
+	}
+
+	// Sets the copy number shown after the creature's name; 0 for none
+	public void setSuffix(int row, int value)
+	{
+		checkRow(row);
+		if (value == suffix[row])
+			return;
+
+		String oldName = getName(row);
+		suffix[row] = value;
+		renamed(row, oldName);
+	}
+
+	public void setInit(int row, int value)
+	{
+		checkRow(row);
+		init[row] = value;
+	}
+
+	public void setMod(int row, int value)
+	{
+		setTemplate(row, getTemplate(row).withMod(value));
+	}
+
+	public void setHPCurrent(int row, int value)
+	{
+		checkRow(row);
+		hpCurrent[row] = value;
+	}
+
+	public void setHPMax(int row, int value)
+	{
+		setTemplate(row, getTemplate(row).withHPMax(value));
+	}
+
+	public void setAC(int row, int value)
+	{
+		setTemplate(row, getTemplate(row).withAC(value));
+	}
+
+	// Points one row at a different template, leaving any other rows that shared the old one as
+	// they were
+	public void setTemplate(int row, CreatureTemplate template)
+	{
+		checkRow(row);
+		if (template.getName().equals(getTemplate(row).getName()))
+		{
+			replaceTemplate(row, template);
+			return;
+		}
+
+		String oldName = getName(row);
+		replaceTemplate(row, template);
+		renamed(row, oldName);
+	}
+
+	// Returns the rows, in order, of the creatures with a word in their name that starts with
+	// query, as NameIndex.find matches them. A blank query finds every creature.
+	public int[] findByName(String query)
+	{
+		int[] rows;
+		if (query.trim().isEmpty())
+		{
+			rows = new int[size];
+			for (int i = 0; i < size; i++)
+				rows[i] = i;
+			return rows;
+		}
+
+		int[] ids = names.find(query, id -> getName(rowOfId[id]));
+		rows = new int[ids.length];
+		for (int i = 0; i < ids.length; i++)
+			rows[i] = rowOfId[ids[i]];
+		Arrays.sort(rows);
+		return rows;
+	}
+
+	// Returns the text shown in a cell of the table
+	public String getText(int row, int column)
+	{
+		switch (column)
+		{
+			case NAME:
+				return getName(row);
+			case INIT:
+				return hasInit(row) ? CellCodec.format(init[row]) : "";
+			case MOD:
+				return CellCodec.format(getMod(row));
+			case HP_CURRENT:
+				return CellCodec.format(getHPCurrent(row));
+			case HP_MAX:
+				return CellCodec.format(getHPMax(row));
+			case AC:
+				return CellCodec.format(getAC(row));
+			default:
+				throw new IndexOutOfBoundsException("No column " + column);
+		}
+	}
+
+	// Returns the text of every cell in a row, in column order
+	public String[] getRowText(int row)
+	{
+		String[] text = new String[NUM_COLUMNS];
+		for (int column = 0; column < NUM_COLUMNS; column++)
+			text[column] = getText(row, column);
+		return text;
+	}
+
+	// Parses text into a cell. Returns false and leaves the cell unchanged if a numeric cell is
+	// given text that is not a number. A blank initiative clears the creature's roll.
+	public boolean setText(int row, int column, String text)
+	{
+		if (column == NAME)
+		{
+			setName(row, text);
+			return true;
+		}
+
+		if (column == INIT && text.isEmpty())
+		{
+			setInit(row, NO_INIT);
+			return true;
+		}
+
+		long parsed = CellCodec.parse(text);
+		if (parsed == CellCodec.INVALID)
+			return false;
+
+		int value = (int) parsed;
+		switch (column)
+		{
+			case INIT:
+				setInit(row, value);
+				break;
+			case MOD:
+				setMod(row, value);
+				break;
+			case HP_CURRENT:
+				setHPCurrent(row, value);
+				break;
+			case HP_MAX:
+				setHPMax(row, value);
+				break;
+			case AC:
+				setAC(row, value);
+				break;
+			default:
+				throw new IndexOutOfBoundsException("No column " + column);
+		}
+		return true;
+	}
+
+	private void replaceTemplate(int row, CreatureTemplate template)
+	{
+		int oldId = templateIds[row];
+		templateIds[row] = intern(template);
+		templates.release(oldId);
+	}
+
+	// Interns a template, keeping batch numbers handed out later clear of its batch
+	private int intern(CreatureTemplate template)
+	{
+		nextBatch = Math.max(nextBatch, template.getBatch() + 1);
+		return templates.intern(template);
+	}
+
+	// Updates the name index after a row's name may have changed from oldName
+	private void renamed(int row, String oldName)
+	{
+		String newName = getName(row);
+		if (!newName.equals(oldName))
+			names.rename(creatureIds[row], oldName, newName);
+	}
+
+	// Points the ids of rows first to end - 1 at their rows, after creatures have been added,
+	// removed or moved
+	private void placeIds(int first, int end)
+	{
+		rowsVersion++;
+		for (int row = first; row < end; row++)
+		{
+			int id = creatureIds[row];
+			if (id >= rowOfId.length)
+			{
+				int oldLength = rowOfId.length;
+				rowOfId = Arrays.copyOf(rowOfId, Math.max(id + 1, 2 * oldLength));
+				Arrays.fill(rowOfId, oldLength, rowOfId.length, -1);
+			}
+			rowOfId[id] = row;
+		}
+	}
+
+	// Adds the names of rows first to end - 1 to the name index
+	private void indexNames(int first, int end)
+	{
+		for (int row = first; row < end; row++)
+			names.add(creatureIds[row], getName(row));
+	}
+
+	// Interns the templates used by the first count entries of templateIndex, once each however
+	// many rows use them, and returns the id of each entry in templateTable
+	private int[] internTemplates(CreatureTemplate[] templateTable, int[] templateIndex, int count)
+	{
+		int[] ids = new int[templateTable.length];
+		int[] uses = new int[templateTable.length];
+		for (int i = 0; i < count; i++)
+			uses[templateIndex[i]]++;
+		for (int t = 0; t < templateTable.length; t++)
+		{
+			if (uses[t] > 0)
+			{
+				ids[t] = intern(templateTable[t]);
+				templates.retain(ids[t], uses[t] - 1);
+			}
+		}
+		return ids;
+	}
+
+	// Every per-row array, so that structural changes move all columns together
+	private int[][] columns()
+	{
+		return new int[][] { templateIds, suffix, init, hpCurrent, tiebreak, creatureIds };
+	}
+
+	private void ensureCapacity(int capacity)
+	{
+		if (capacity <= templateIds.length)
+			return;
+
+		int newCapacity = Math.max(capacity, templateIds.length * 2);
+		templateIds = Arrays.copyOf(templateIds, newCapacity);
+		suffix = Arrays.copyOf(suffix, newCapacity);
+		init = Arrays.copyOf(init, newCapacity);
+		hpCurrent = Arrays.copyOf(hpCurrent, newCapacity);
+		tiebreak = Arrays.copyOf(tiebreak, newCapacity);
+		creatureIds = Arrays.copyOf(creatureIds, newCapacity);
+	}
+
+	private void checkRow(int row)
+	{
+		if (row < 0 || row >= size)
+			throw new IndexOutOfBoundsException("Row " + row + " out of range for " + size + " creatures");
+	}
+}
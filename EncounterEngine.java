@@ -0,0 +1,456 @@
+/* ********************************************************************************************
+ * EncounterEngine.java
+ *
+ * Runs an encounter without any user interface: adding and removing creatures, rolling
+ * initiative, putting creatures in turn order, editing cells, undo and redo, and saving and
+ * loading. The tracker's window is one client of the engine; anything else, such as a server
+ * process or a benchmark, can drive it the same way.
+ *
+ * In keep-sorted mode the engine also keeps the creatures in turn order as they change: a
+ * creature added or edited is moved straight to its place, found with a binary search, and only
+ * changes to many creatures at once, such as rolls, fall back to a full sort.
+ *
+ * In group initiative mode, identical creatures (see InitiativeGroups) roll once per group and
+ * sort as one, so rolling and sorting a wave of hundreds of copies costs about as much as a
+ * single creature.
+ *
+ * The engine also runs the rounds and turns of combat, through its TurnTracker, which follows
+ * creatures by id so turns and timed effects survive the changes above.
+ *
+ * Every change goes through the engine's combat journal, so it can be undone and replayed. A
+ * command that makes several changes, such as a roll and the sort that follows it in
+ * keep-sorted mode, is journaled as one, so a single undo takes back the whole command.
+ * Reads go straight to the encounter returned by getEncounter. The engine is not thread-safe;
+ * each engine should be used from one thread at a time.
+ * ******************************************************************************************** */
+
+package tracker;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.BitSet;
+import java.util.Random;
+import java.util.SplittableRandom;
+
+public class EncounterEngine implements Closeable
+{
+
+	// Additions of up to this many creatures in keep-sorted mode place each creature on its own
+	// rather than sorting everything
+	private static final int MAX_REPOSITIONED = 16;
+
+	private final Encounter encounter;
+	private final InitiativeRoller roller;
+	private final CombatJournal journal;
+	private final TurnTracker turns;
+
+	// Rolls for area effects and creatures' dice, kept apart from initiative rolls so each can be
+	// reproduced alone
+	private final SplittableRandom diceRolls;
+
+	// Whether creatures are kept in turn order as they change
+	private boolean keepSorted;
+
+	// Whether identical creatures share one initiative
+	private boolean groupInitiative;
+
+	// Keeps the journal in memory only, with tiebreaks and rolls drawn from a random seed
+	public EncounterEngine()
+	{
+		this(new Random().nextLong());
+	}
+
+	// Keeps the journal in memory only. Tiebreaks and rolls are drawn from seed, so the same
+	// calls always produce the same encounter.
+	public EncounterEngine(long seed)
+	{
+		encounter = new Encounter(seed);
+		roller = new InitiativeRoller(rollerSeed(seed));
+		journal = new CombatJournal(encounter);
+		turns = new TurnTracker(encounter);
+		diceRolls = new SplittableRandom(diceSeed(seed));
+	}
+
+	// Also writes the journal to journalFile, replacing anything already there
+	public EncounterEngine(long seed, Path journalFile) throws IOException
+	{
+		encounter = new Encounter(seed);
+		roller = new InitiativeRoller(rollerSeed(seed));
+		journal = new CombatJournal(encounter, journalFile);
+		turns = new TurnTracker(encounter);
+		diceRolls = new SplittableRandom(diceSeed(seed));
+	}
+
+	// The creatures, for reading. Changes made to it directly are not journaled.
+	public Encounter getEncounter()
+	{
+		return encounter;
+	}
+
+	public CombatJournal getJournal()
+	{
+		return journal;
+	}
+
+	// Rounds, turns and timed effects. Opening or replaying an encounter ends combat.
+	public TurnTracker getTurns()
+	{
+		return turns;
+	}
+
+	public boolean isKeepSorted()
+	{
+		return keepSorted;
+	}
+
+	// Turns keep-sorted mode on or off. Turning it on sorts the creatures if they are not already
+	// in turn order. Undo, redo and replay turn it off if they leave the creatures out of order.
+	public void setKeepSorted(boolean enabled)
+	{
+		keepSorted = enabled;
+		if (enabled && !isSorted())
+			sort();
+	}
+
+	public boolean isGroupInitiative()
+	{
+		return groupInitiative;
+	}
+
+	// Turns group initiative mode on or off. Turning it on in keep-sorted mode sorts the groups
+	// together.
+	public void setGroupInitiative(boolean enabled)
+	{
+		groupInitiative = enabled;
+		if (enabled && keepSorted)
+			sort();
+	}
+
+	// Adds count copies of a creature at full HP and returns the row of the first. The first
+	// copy keeps the plain name and the rest are numbered from 2. All copies share one template,
+	// in a batch of their own. In keep-sorted mode the copies are then put in turn order, and may
+	// no longer be together.
+	public int addCreatures(String name, int init, int mod, int hpMax, int ac, int count)
+	{
+		CreatureTemplate template = new CreatureTemplate(name, mod, hpMax, ac, encounter.newBatch());
+
+		int first = encounter.addCopies(template, init, 0, 1);
+		if (count > 1)
+			encounter.addCopies(template, init, 2, count - 1);
+		recordAdded(first, count);
+		return first;
+	}
+
+	// Adds count copies of a creature as above, rolling init and hpMax for each copy. A null init
+	// leaves the copies to roll initiative later. Copies that roll the same HP share a template.
+	public int addCreatures(String name, DiceExpression init, int mod, DiceExpression hpMax, int ac, int count)
+	{
+		if (hpMax.isConstant() && (init == null || init.isConstant()))
+		{
+			int fixedInit = (init == null) ? Encounter.NO_INIT : init.roll(diceRolls, mod);
+			return addCreatures(name, fixedInit, mod, hpMax.roll(diceRolls, mod), ac, count);
+		}
+
+		int first = encounter.size();
+		int batch = encounter.newBatch();
+		for (int i = 0; i < count; i++)
+		{
+			CreatureTemplate template = new CreatureTemplate(name, mod, hpMax.roll(diceRolls, mod), ac, batch);
+			int rolledInit = (init == null) ? Encounter.NO_INIT : init.roll(diceRolls, mod);
+			encounter.addCopies(template, rolledInit, (i == 0) ? 0 : i + 1, 1);
+		}
+		recordAdded(first, count);
+		return first;
+	}
+
+	// Sets the dice the roll buttons use for initiative, in which mod is the creature's modifier
+	public void setInitiativeDice(DiceExpression expression)
+	{
+		roller.setExpression(expression);
+	}
+
+	public DiceExpression getInitiativeDice()
+	{
+		return roller.getExpression();
+	}
+
+	// Records count creatures just added from row first and, in keep-sorted mode, puts them in
+	// turn order, as one change
+	private void recordAdded(int first, int count)
+	{
+		journal.beginChange();
+		try
+		{
+			journal.recordAdded(first);
+			placeAdded(first, count);
+		}
+		finally
+		{
+			journal.endChange();
+		}
+	}
+
+	// In keep-sorted mode, puts count creatures just added from row first in turn order
+	private void placeAdded(int first, int count)
+	{
+		if (keepSorted && count > 0)
+		{
+			if (count <= MAX_REPOSITIONED && !groupInitiative)
+			{
+				// Each new creature goes in among the ones above it, which are already in order
+				for (int row = first; row < first + count; row++)
+					journal.move(row, encounter.turnOrderRow(row, row + 1));
+			}
+			else
+				sort();
+		}
+	}
+
+	// Removes the checked creatures and returns the rows they were in, in ascending order
+	public int[] removeChecked()
+	{
+		BitSet checked = encounter.getCheckedRows();
+		turns.removing(checked);
+		journal.removeAll(checked);
+		return checked.stream().toArray();
+	}
+
+	// Rolls initiative for the checked creatures in one of the InitiativeRoller modes and
+	// returns the rows rolled for, in ascending order. In group initiative mode each group rolls
+	// once. In keep-sorted mode the creatures are sorted afterwards, so the rows returned are
+	// where they were when they rolled.
+	public int[] rollChecked(int mode)
+	{
+		InitiativeGroups groups = groupInitiative ? InitiativeGroups.of(encounter) : null;
+		journal.beginChange();
+		try
+		{
+			int[] rolledRows = journal.rollInitiative(roller, encounter.getCheckedRows(), mode, groups);
+
+			if (keepSorted && rolledRows.length > 0)
+			{
+				if (rolledRows.length == 1 && !groupInitiative)
+					placeInTurnOrder(rolledRows[0]);
+				else
+					sort();
+			}
+
+			return rolledRows;
+		}
+		finally
+		{
+			journal.endChange();
+		}
+	}
+
+	// Seed of the most recent roll; InitiativeRoller.roll with this seed reproduces it
+	public long getLastRollSeed()
+	{
+		return roller.getLastSeed();
+	}
+
+	// Takes amount off the current HP of every row set in rows; a negative amount heals
+	public void damage(BitSet rows, int amount)
+	{
+		journal.damage(rows, amount);
+	}
+
+	// Applies damage or healing to every checked creature as one change and returns how each
+	// creature fared
+	public AreaEffect.Outcome applyToChecked(AreaEffect effect)
+	{
+		AreaEffect.Outcome outcome = effect.resolve(encounter, encounter.getCheckedRows().stream().toArray(),
+				diceRolls);
+		journal.setHP(outcome.getRows(), outcome.getNewHP());
+		return outcome;
+	}
+
+	// Returns a simulator for the creatures as they are now, with the rows set in party as the
+	// party. The simulator keeps its own copy, so it can run on another thread.
+	public EncounterSimulator newSimulator(BitSet party)
+	{
+		return new EncounterSimulator(encounter, party);
+	}
+
+	// Puts the creatures in turn order and returns the permutation applied, as
+	// Encounter.sortByInitiative does, or as Encounter.sortByGroup does in group initiative mode
+	public int[] sortByInitiative()
+	{
+		return sort();
+	}
+
+	// Moves the creatures in rows, in ascending order, so that they are together in the same order
+	// from row to onwards. Returns the first and last rows that changed. Moving creatures by hand
+	// turns keep-sorted mode off.
+	public int[] moveRows(int[] rows, int to)
+	{
+		if (rows.length == 0)
+			return new int[] { to, to };
+
+		keepSorted = false;
+		journal.moveRows(rows, to);
+		return new int[] { Math.min(rows[0], to), Math.max(rows[rows.length - 1], to + rows.length - 1) };
+	}
+
+	// Parses text into a cell. Returns false and changes nothing if a numeric cell is given text
+	// that is not a number. Edits of the same cell one after another, such as each frame of
+	// typing, are journaled as one. The creature stays in its row even in keep-sorted mode, so the
+	// cell can go on being edited; call keepInTurnOrder once editing is done.
+	public boolean setText(int row, int column, String text)
+	{
+		return journal.setText(row, column, text);
+	}
+
+	// In keep-sorted mode, moves a creature whose initiative or modifier may have changed to its
+	// place in turn order. Returns the row it is in afterwards. If the creature was just edited
+	// with setText, the move is undone and redone along with the edit.
+	public int keepInTurnOrder(int row)
+	{
+		if (!keepSorted)
+			return row;
+
+		journal.beginChangeAfterEdit(row);
+		try
+		{
+			if (!groupInitiative)
+				return placeInTurnOrder(row);
+
+			// The creature's whole group may have moved with it
+			int id = encounter.getCreatureId(row);
+			sort();
+			return encounter.findCreature(id);
+		}
+		finally
+		{
+			journal.endChange();
+		}
+	}
+
+	public void setChecked(int row, boolean checked)
+	{
+		encounter.setChecked(row, checked);
+	}
+
+	public void setAllChecked(boolean checked)
+	{
+		encounter.setAllChecked(checked);
+	}
+
+	public boolean canUndo()
+	{
+		return journal.canUndo();
+	}
+
+	public boolean canRedo()
+	{
+		return journal.canRedo();
+	}
+
+	public void undo()
+	{
+		journal.undo();
+		keepSortedIfSorted();
+	}
+
+	public void redo()
+	{
+		journal.redo();
+		keepSortedIfSorted();
+	}
+
+	// Replaces the encounter with one saved in the binary format, starting a new history. In
+	// keep-sorted mode the creatures are then put in turn order.
+	public void open(Path file) throws IOException
+	{
+		EncounterFile.load(file, encounter);
+		journal.restart();
+		turns.stop();
+
+		if (keepSorted && !isSorted())
+			sort();
+	}
+
+	public void save(Path file) throws IOException
+	{
+		EncounterFile.save(encounter, file);
+	}
+
+	// Appends the creatures in a CSV file and returns the number added. Creatures read before an
+	// error are kept, and journaled. In keep-sorted mode they are then put in turn order, and
+	// may have gone in anywhere.
+	public int importCsv(Path file) throws IOException
+	{
+		int first = encounter.size();
+		try
+		{
+			return EncounterFile.importCsv(file, encounter);
+		}
+		finally
+		{
+			recordAdded(first, encounter.size() - first);
+		}
+	}
+
+	public void exportCsv(Path file) throws IOException
+	{
+		EncounterFile.exportCsv(encounter, file);
+	}
+
+	// Replaces the encounter and its history with those in a journal file
+	public void replay(Path file) throws IOException
+	{
+		journal.replay(file);
+		turns.stop();
+		keepSortedIfSorted();
+	}
+
+	// Writes out the rest of the journal
+	@Override
+	public void close() throws IOException
+	{
+		journal.close();
+	}
+
+	// Whether the creatures are in the order keep-sorted mode keeps them in
+	private boolean isSorted()
+	{
+		return groupInitiative ? encounter.isInGroupOrder() : encounter.isInTurnOrder();
+	}
+
+	// Turns keep-sorted mode off if the creatures have been left out of turn order by going
+	// through the history, such as by undoing a move that put an edited creature in its place.
+	// Sorting instead would be a new change, dropping any that could still be redone.
+	private void keepSortedIfSorted()
+	{
+		if (keepSorted && !isSorted())
+			keepSorted = false;
+	}
+
+	private int[] sort()
+	{
+		return groupInitiative ? journal.sortByGroup() : journal.sortByInitiative();
+	}
+
+	// Moves a creature to its place among the others, which must already be in turn order
+	private int placeInTurnOrder(int row)
+	{
+		int newRow = encounter.turnOrderRow(row);
+		journal.move(row, newRow);
+		return newRow;
+	}
+
+	// Rolls are drawn from their own split of the seed, independent of the tiebreak rolls
+	private static long rollerSeed(long seed)
+	{
+		return new SplittableRandom(seed).split().nextLong();
+	}
+
+	// Area effect and creature dice rolls come from the split after the roller's
+	private static long diceSeed(long seed)
+	{
+		SplittableRandom random = new SplittableRandom(seed);
+		random.split();
+		return random.split().nextLong();
+	}
+}
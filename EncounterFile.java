@@ -0,0 +1,498 @@
+/* ********************************************************************************************
+ * EncounterFile.java
+ *
+ * Saves and loads encounters.
+ *
+ * The native format is a compact, versioned binary file:
+ *
+ *     header        magic, version, tiebreak seed, template count, row count, name count,
+ *                   next creature id
+ *     templates     one int column each for name index, modifier, max HP, AC and batch
+ *     rows          one int column each for template index, copy number, initiative,
+ *                   current HP, tiebreak roll and creature id
+ *     names         the length of each distinct name, then the names as UTF-8
+ *
+ * Version 1 files have no creature ids, and their creatures are numbered afresh on loading.
+ * Version 1 and 2 files have no batches, so their creatures load with batch 0.
+ *
+ * Every column is fixed width, so loading maps the file and copies each column straight into an
+ * int array. Encounters can also be exported to and imported from CSV, one creature per line,
+ * for use with other tools.
+ * ******************************************************************************************** */
+
+package tracker;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.LineNumberReader;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class EncounterFile
+{
+
+	// "INIT" in ASCII
+	private static final int MAGIC = 0x494E4954;
+
+	public static final int VERSION = 3;
+
+	// Size of a version 1 header; later versions add to the end
+	private static final int HEADER_BYTES = 4 + 4 + 8 + 4 + 4 + 4;
+	private static final int ID_HEADER_BYTES = 4;
+
+	private static final int TEMPLATE_COLUMNS = 5;
+	private static final int VERSION_2_TEMPLATE_COLUMNS = 4;
+	private static final int ROW_COLUMNS = 6;
+	private static final int VERSION_1_ROW_COLUMNS = 5;
+
+	private static final String CSV_HEADER = "Name,Initiative,Initiative Mod,Current HP,Max HP,Armor Class";
+
+	// Splits a numbered copy's name, such as "Goblin 3", into its template name and number
+	private static final Pattern NUMBERED_NAME = Pattern.compile("(.+) ([1-9][0-9]{0,8})");
+
+	private EncounterFile()
+	{
+	}
+
+	// Writes the encounter to file in the binary format, replacing anything already there
+	public static void save(Encounter encounter, Path file) throws IOException
+	{
+		ByteBuffer buffer = write(encounter);
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING))
+		{
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+		}
+	}
+
+	// Returns the encounter in the binary format, in a heap buffer that is exactly the size of its
+	// contents and ready to be read
+	static ByteBuffer write(Encounter encounter)
+	{
+		int numRows = encounter.size();
+
+		// Number the distinct templates in order of first use
+		HashMap<CreatureTemplate, Integer> templateIndex = new HashMap<CreatureTemplate, Integer>();
+		ArrayList<CreatureTemplate> templateTable = new ArrayList<CreatureTemplate>();
+		int[] rowTemplates = new int[numRows];
+
+		for (int i = 0; i < numRows; i++)
+		{
+			CreatureTemplate template = encounter.getTemplate(i);
+			Integer index = templateIndex.get(template);
+			if (index == null)
+			{
+				index = templateTable.size();
+				templateIndex.put(template, index);
+				templateTable.add(template);
+			}
+			rowTemplates[i] = index;
+		}
+
+		// Templates that differ only in stats share a name
+		int numTemplates = templateTable.size();
+		int[] templateNames = new int[numTemplates];
+		HashMap<String, Integer> nameIndex = new HashMap<String, Integer>();
+		ArrayList<byte[]> names = new ArrayList<byte[]>();
+		int namesBytes = 0;
+
+		for (int t = 0; t < numTemplates; t++)
+		{
+			String name = templateTable.get(t).getName();
+			Integer index = nameIndex.get(name);
+			if (index == null)
+			{
+				index = names.size();
+				nameIndex.put(name, index);
+
+				byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+				names.add(bytes);
+				namesBytes += 4 + bytes.length;
+			}
+			templateNames[t] = index;
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + ID_HEADER_BYTES + 4 * (TEMPLATE_COLUMNS * numTemplates + ROW_COLUMNS * numRows) + namesBytes);
+
+		buffer.putInt(MAGIC);
+		buffer.putInt(VERSION);
+		buffer.putLong(encounter.getSeed());
+		buffer.putInt(numTemplates);
+		buffer.putInt(numRows);
+		buffer.putInt(names.size());
+		buffer.putInt(encounter.getNextCreatureId());
+
+		for (int t = 0; t < numTemplates; t++)
+			buffer.putInt(templateNames[t]);
+		for (int t = 0; t < numTemplates; t++)
+			buffer.putInt(templateTable.get(t).getMod());
+		for (int t = 0; t < numTemplates; t++)
+			buffer.putInt(templateTable.get(t).getHPMax());
+		for (int t = 0; t < numTemplates; t++)
+			buffer.putInt(templateTable.get(t).getAC());
+		for (int t = 0; t < numTemplates; t++)
+			buffer.putInt(templateTable.get(t).getBatch());
+
+		for (int i = 0; i < numRows; i++)
+			buffer.putInt(rowTemplates[i]);
+		for (int i = 0; i < numRows; i++)
+			buffer.putInt(encounter.getSuffix(i));
+		for (int i = 0; i < numRows; i++)
+			buffer.putInt(encounter.getInit(i));
+		for (int i = 0; i < numRows; i++)
+			buffer.putInt(encounter.getHPCurrent(i));
+		for (int i = 0; i < numRows; i++)
+			buffer.putInt(encounter.getTiebreak(i));
+		for (int i = 0; i < numRows; i++)
+			buffer.putInt(encounter.getCreatureId(i));
+
+		for (byte[] name : names)
+			buffer.putInt(name.length);
+		for (byte[] name : names)
+			buffer.put(name);
+
+		buffer.flip();
+		return buffer;
+	}
+
+	// Replaces the contents of encounter with the encounter saved in file
+	public static void load(Path file, Encounter encounter) throws IOException
+	{
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+		{
+			long fileSize = channel.size();
+			if (fileSize < HEADER_BYTES)
+				throw new IOException(file + " is not an encounter file");
+
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+			read(buffer, encounter, file.toString());
+		}
+	}
+
+	// Reads an encounter in the binary format from buffer into encounter
+	static void read(ByteBuffer buffer, Encounter encounter, String source) throws IOException
+	{
+		if (buffer.getInt() != MAGIC)
+			throw new IOException(source + " is not an encounter file");
+
+		int version = buffer.getInt();
+		if (version > VERSION)
+			throw new IOException(source + " was saved by a newer version of the tracker (format " + version + ")");
+
+		long seed = buffer.getLong();
+		int numTemplates = buffer.getInt();
+		int numRows = buffer.getInt();
+		int numNames = buffer.getInt();
+
+		boolean hasIds = version >= 2;
+		int nextCreatureId = 1;
+		if (hasIds)
+		{
+			if (buffer.remaining() < ID_HEADER_BYTES)
+				throw new IOException(source + " is truncated or corrupt");
+			nextCreatureId = buffer.getInt();
+		}
+
+		boolean hasBatches = version >= 3;
+		int templateColumns = hasBatches ? TEMPLATE_COLUMNS : VERSION_2_TEMPLATE_COLUMNS;
+		int rowColumns = hasIds ? ROW_COLUMNS : VERSION_1_ROW_COLUMNS;
+		long columnBytes = 4L * (templateColumns * (long) numTemplates + rowColumns * (long) numRows);
+		if (numTemplates < 0 || numRows < 0 || numNames < 0 || columnBytes > buffer.remaining())
+			throw new IOException(source + " is truncated or corrupt");
+
+		IntBuffer ints = buffer.asIntBuffer();
+
+		int[] nameIndex = readColumn(ints, numTemplates);
+		int[] mods = readColumn(ints, numTemplates);
+		int[] hpMax = readColumn(ints, numTemplates);
+		int[] ac = readColumn(ints, numTemplates);
+		int[] batch = hasBatches ? readColumn(ints, numTemplates) : new int[numTemplates];
+
+		int[] rowTemplates = readColumn(ints, numRows);
+		int[] suffix = readColumn(ints, numRows);
+		int[] init = readColumn(ints, numRows);
+		int[] hpCurrent = readColumn(ints, numRows);
+		int[] tiebreak = readColumn(ints, numRows);
+		int[] creatureIds = hasIds ? readColumn(ints, numRows) : null;
+
+		buffer.position(buffer.position() + (int) columnBytes);
+
+		String[] names = readNames(buffer, numNames, source);
+
+		CreatureTemplate[] templateTable = new CreatureTemplate[numTemplates];
+		for (int t = 0; t < numTemplates; t++)
+		{
+			if (nameIndex[t] < 0 || nameIndex[t] >= numNames || batch[t] < 0 || batch[t] == Integer.MAX_VALUE)
+				throw new IOException(source + " is truncated or corrupt");
+			templateTable[t] = new CreatureTemplate(names[nameIndex[t]], mods[t], hpMax[t], ac[t], batch[t]);
+		}
+
+		for (int i = 0; i < numRows; i++)
+		{
+			if (rowTemplates[i] < 0 || rowTemplates[i] >= numTemplates)
+				throw new IOException(source + " is truncated or corrupt");
+		}
+
+		if (hasIds)
+		{
+			for (int i = 0; i < numRows; i++)
+			{
+				if (creatureIds[i] < 1 || creatureIds[i] >= nextCreatureId)
+					throw new IOException(source + " is truncated or corrupt");
+			}
+		}
+
+		encounter.reset(seed);
+		encounter.addRows(templateTable, rowTemplates, suffix, init, hpCurrent, tiebreak, creatureIds, numRows);
+		encounter.reserveCreatureIds(nextCreatureId);
+	}
+
+	// Number of creatures in an encounter in the binary format in buffer, read without loading it
+	// or moving the buffer's position
+	static int readSize(ByteBuffer buffer, String source) throws IOException
+	{
+		int start = buffer.position();
+		if (buffer.remaining() < HEADER_BYTES || buffer.getInt(start) != MAGIC)
+			throw new IOException(source + " is not an encounter file");
+
+		int numRows = buffer.getInt(start + HEADER_BYTES - 8);
+		if (numRows < 0)
+			throw new IOException(source + " is truncated or corrupt");
+		return numRows;
+	}
+
+	// Id the next creature added to the encounter in buffer would get once loaded, read the same
+	// way as readSize
+	static int readNextCreatureId(ByteBuffer buffer, String source) throws IOException
+	{
+		int numRows = readSize(buffer, source);
+		int start = buffer.position();
+		if (buffer.getInt(start + 4) < 2)
+			return numRows + 1;
+
+		if (buffer.remaining() < HEADER_BYTES + ID_HEADER_BYTES || buffer.getInt(start + HEADER_BYTES) < 1)
+			throw new IOException(source + " is truncated or corrupt");
+		return buffer.getInt(start + HEADER_BYTES);
+	}
+
+	// Writes the encounter as CSV, one creature per line under a header line
+	public static void exportCsv(Encounter encounter, Path file) throws IOException
+	{
+		try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8))
+		{
+			writer.write(CSV_HEADER);
+			writer.newLine();
+
+			StringBuilder line = new StringBuilder();
+			for (int i = 0; i < encounter.size(); i++)
+			{
+				line.setLength(0);
+				for (int column = 0; column < Encounter.NUM_COLUMNS; column++)
+				{
+					if (column > 0)
+						line.append(',');
+					appendCsvField(line, encounter.getText(i, column));
+				}
+				writer.append(line);
+				writer.newLine();
+			}
+		}
+	}
+
+	// Appends the creatures in a CSV file, as written by exportCsv, to the encounter.
+	// Returns the number of creatures added.
+	public static int importCsv(Path file, Encounter encounter) throws IOException
+	{
+		int numAdded = 0;
+
+		try (LineNumberReader reader = new LineNumberReader(Files.newBufferedReader(file, StandardCharsets.UTF_8)))
+		{
+			String line;
+			int lineNumber = reader.getLineNumber() + 1;
+
+			for (; (line = readCsvRecord(reader)) != null; lineNumber = reader.getLineNumber() + 1)
+			{
+				if (line.isEmpty() || (lineNumber == 1 && line.equals(CSV_HEADER)))
+					continue;
+
+				String[] fields = splitCsvLine(line);
+				if (fields.length != Encounter.NUM_COLUMNS)
+					throw new IOException(file + " line " + lineNumber + ": expected " + Encounter.NUM_COLUMNS
+							+ " fields but found " + fields.length);
+
+				try
+				{
+					addCsvRow(encounter, fields);
+				}
+				catch (NumberFormatException e)
+				{
+					throw new IOException(file + " line " + lineNumber + ": " + e.getMessage(), e);
+				}
+				numAdded++;
+			}
+		}
+
+		return numAdded;
+	}
+
+	private static void addCsvRow(Encounter encounter, String[] fields)
+	{
+		String name = fields[Encounter.NAME];
+		int init = fields[Encounter.INIT].isEmpty() ? Encounter.NO_INIT : CellCodec.parseInt(fields[Encounter.INIT]);
+		int mod = CellCodec.parseInt(fields[Encounter.MOD]);
+		int hpCurrent = CellCodec.parseInt(fields[Encounter.HP_CURRENT]);
+		int hpMax = CellCodec.parseInt(fields[Encounter.HP_MAX]);
+		int ac = CellCodec.parseInt(fields[Encounter.AC]);
+
+		// Numbered copies go back onto a shared template
+		int suffix = 0;
+		Matcher numbered = NUMBERED_NAME.matcher(name);
+		if (numbered.matches())
+		{
+			name = numbered.group(1);
+			suffix = Integer.parseInt(numbered.group(2));
+		}
+
+		int row = encounter.addCopies(new CreatureTemplate(name, mod, hpMax, ac), init, suffix, 1);
+		encounter.setHPCurrent(row, hpCurrent);
+	}
+
+	private static int[] readColumn(IntBuffer ints, int length)
+	{
+		int[] column = new int[length];
+		ints.get(column);
+		return column;
+	}
+
+	private static String[] readNames(ByteBuffer buffer, int numNames, String source) throws IOException
+	{
+		if ((long) numNames * 4 > buffer.remaining())
+			throw new IOException(source + " is truncated or corrupt");
+
+		int[] lengths = new int[numNames];
+		buffer.asIntBuffer().get(lengths);
+		buffer.position(buffer.position() + 4 * numNames);
+
+		String[] names = new String[numNames];
+		for (int t = 0; t < numNames; t++)
+		{
+			if (lengths[t] < 0 || lengths[t] > buffer.remaining())
+				throw new IOException(source + " is truncated or corrupt");
+
+			byte[] bytes = new byte[lengths[t]];
+			buffer.get(bytes);
+			names[t] = new String(bytes, StandardCharsets.UTF_8);
+		}
+		return names;
+	}
+
+	// Quotes a field if it contains a comma, quote or line break
+	private static void appendCsvField(StringBuilder line, String field)
+	{
+		boolean quote = false;
+		for (int i = 0; i < field.length() && !quote; i++)
+		{
+			char c = field.charAt(i);
+			quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+		}
+
+		if (!quote)
+		{
+			line.append(field);
+			return;
+		}
+
+		line.append('"');
+		for (int i = 0; i < field.length(); i++)
+		{
+			char c = field.charAt(i);
+			if (c == '"')
+				line.append('"');
+			line.append(c);
+		}
+		line.append('"');
+	}
+
+	// Reads the next CSV record, or returns null at the end of the file. A record goes on over
+	// line breaks inside a quoted field, which are read back as '\n'.
+	static String readCsvRecord(BufferedReader reader) throws IOException
+	{
+		String line = reader.readLine();
+		if (line == null)
+			return null;
+
+		// Each quote, doubled or not, goes into or out of a quoted field
+		int quotes = countQuotes(line);
+		if (quotes % 2 == 0)
+			return line;
+
+		StringBuilder record = new StringBuilder(line);
+		while (quotes % 2 != 0 && (line = reader.readLine()) != null)
+		{
+			record.append('\n').append(line);
+			quotes += countQuotes(line);
+		}
+		return record.toString();
+	}
+
+	private static int countQuotes(String line)
+	{
+		int quotes = 0;
+		for (int i = 0; i < line.length(); i++)
+		{
+			if (line.charAt(i) == '"')
+				quotes++;
+		}
+		return quotes;
+	}
+
+	// Splits one CSV record into fields, undoing the quoting done by appendCsvField
+	static String[] splitCsvLine(String line)
+	{
+		ArrayList<String> fields = new ArrayList<String>(Encounter.NUM_COLUMNS);
+		StringBuilder field = new StringBuilder();
+		boolean quoted = false;
+
+		for (int i = 0; i < line.length(); i++)
+		{
+			char c = line.charAt(i);
+
+			if (quoted)
+			{
+				if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"')
+				{
+					field.append('"');
+					i++;
+				}
+				else if (c == '"')
+					quoted = false;
+				else
+					field.append(c);
+			}
+			else if (c == '"')
+				quoted = true;
+			else if (c == ',')
+			{
+				fields.add(field.toString());
+				field.setLength(0);
+			}
+			else
+				field.append(c);
+		}
+		fields.add(field.toString());
+
+		return fields.toArray(new String[fields.size()]);
+	}
+}
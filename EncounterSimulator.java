@@ -0,0 +1,366 @@
+/* ********************************************************************************************
+ * EncounterSimulator.java
+ *
+ * Plays out an encounter many times over to estimate how it is likely to go. Each trial rolls
+ * initiative for every creature, puts them in turn order, and then runs rounds of combat in
+ * which each creature still standing attacks a random creature on the other side.
+ *
+ * The party is whichever creatures are given as the party; everyone else is on the other side.
+ * Every creature uses the same attack: a d20 plus an attack bonus against the target's armor
+ * class, a natural 20 always hitting for double dice and a natural 1 always missing.
+ *
+ * Trials are split across cores with fork-join. As with InitiativeRoller, each split draws from
+ * its own split of the generator and the splits are fixed before anything runs, and the totals
+ * are kept as integers, so the same seed gives exactly the same statistics on any machine.
+ * ******************************************************************************************** */
+
+package tracker;
+
+import java.util.BitSet;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+public class EncounterSimulator
+{
+
+	// Trials run by one task before it stops splitting the work in half
+	private static final int TRIALS_PER_TASK = 1024;
+
+	// Attack used when none is set
+	public static final int DEFAULT_ATTACK_BONUS = 5;
+	public static final int DEFAULT_DAMAGE_DICE = 1;
+	public static final int DEFAULT_DAMAGE_SIDES = 8;
+	public static final int DEFAULT_DAMAGE_BONUS = 3;
+
+	private static final int PARTY = 0;
+	private static final int OPPONENTS = 1;
+
+	// The roster, copied from the encounter when the simulator was created
+	private final int size;
+	private final int[] mods;
+	private final int[] hp;
+	private final int[] ac;
+	private final int[] sides;
+	private final boolean hasParty;
+
+	private int attackBonus = DEFAULT_ATTACK_BONUS;
+	private int damageDice = DEFAULT_DAMAGE_DICE;
+	private int damageSides = DEFAULT_DAMAGE_SIDES;
+	private int damageBonus = DEFAULT_DAMAGE_BONUS;
+
+	// Takes a copy of the creatures in the encounter as they are now, with the rows set in party
+	// as the party. Each creature starts every trial at its current HP.
+	public EncounterSimulator(Encounter encounter, BitSet party)
+	{
+		size = encounter.size();
+		mods = new int[size];
+		hp = new int[size];
+		ac = new int[size];
+		sides = new int[size];
+
+		for (int i = 0; i < size; i++)
+		{
+			mods[i] = encounter.getMod(i);
+			hp[i] = encounter.getHPCurrent(i);
+			ac[i] = encounter.getAC(i);
+			sides[i] = party.get(i) ? PARTY : OPPONENTS;
+		}
+		hasParty = party.nextSetBit(0) >= 0 && party.nextSetBit(0) < size;
+	}
+
+	// Sets the attack every creature makes: d20 + bonus to hit, and numDice dice with the given
+	// number of sides plus damageBonus for damage
+	public void setAttack(int bonus, int numDice, int dieSides, int damage)
+	{
+		if (numDice < 0 || dieSides < 1)
+			throw new IllegalArgumentException("Invalid damage dice " + numDice + "d" + dieSides);
+
+		attackBonus = bonus;
+		damageDice = numDice;
+		damageSides = dieSides;
+		damageBonus = damage;
+	}
+
+	// Runs the given number of trials of the given number of rounds each, drawing every roll
+	// from seed
+	public Result simulate(int trials, int rounds, long seed)
+	{
+		if (trials < 1 || rounds < 0)
+			throw new IllegalArgumentException("Cannot simulate " + trials + " trials of " + rounds + " rounds");
+
+		SimulationTask task = new SimulationTask(new SplittableRandom(seed), 0, trials, rounds);
+
+		Totals totals;
+		if (trials > TRIALS_PER_TASK)
+			totals = ForkJoinPool.commonPool().invoke(task);
+		else
+			totals = task.compute();
+
+		return new Result(totals, size, trials, rounds);
+	}
+
+	// Sums over some number of trials, indexed by creature, or by creature then round
+	private static class Totals
+	{
+		final long[] turnPositions;
+		final long[] beforeParty;
+		final long[] hpRemaining;
+		final long[] down;
+
+		Totals(int size, int rounds)
+		{
+			turnPositions = new long[size];
+			beforeParty = new long[size];
+			hpRemaining = new long[size * rounds];
+			down = new long[size * rounds];
+		}
+
+		void add(Totals other)
+		{
+			for (int i = 0; i < turnPositions.length; i++)
+			{
+				turnPositions[i] += other.turnPositions[i];
+				beforeParty[i] += other.beforeParty[i];
+			}
+			for (int i = 0; i < hpRemaining.length; i++)
+			{
+				hpRemaining[i] += other.hpRemaining[i];
+				down[i] += other.down[i];
+			}
+		}
+	}
+
+	// Runs trials [from, to), splitting the range in half until it is small enough
+	private class SimulationTask extends RecursiveTask<Totals>
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final SplittableRandom random;
+		private final int from;
+		private final int to;
+		private final int rounds;
+
+		SimulationTask(SplittableRandom random, int from, int to, int rounds)
+		{
+			this.random = random;
+			this.from = from;
+			this.to = to;
+			this.rounds = rounds;
+		}
+
+		@Override
+		protected Totals compute()
+		{
+			if (to - from <= TRIALS_PER_TASK)
+			{
+				Trial trial = new Trial(random, rounds);
+				for (int i = from; i < to; i++)
+					trial.run();
+				return trial.totals;
+			}
+
+			// The left half is split off before anything runs, so the split is deterministic
+			int middle = (from + to) >>> 1;
+			SimulationTask left = new SimulationTask(random.split(), from, middle, rounds);
+			SimulationTask right = new SimulationTask(random, middle, to, rounds);
+
+			left.fork();
+			Totals totals = right.compute();
+			totals.add(left.join());
+			return totals;
+		}
+	}
+
+	// Scratch space for running trials one after another, and the totals of those trials
+	private class Trial
+	{
+		private final SplittableRandom random;
+		private final int rounds;
+		private final Totals totals;
+
+		private final int[] init;
+		private final int[] tiebreak;
+		private final int[] order;
+		private final int[] currentHP;
+
+		// Creatures still standing on each side, and where each creature is in its side's list
+		private final int[][] standing;
+		private final int[] numStanding;
+		private final int[] standingIndex;
+
+		Trial(SplittableRandom random, int rounds)
+		{
+			this.random = random;
+			this.rounds = rounds;
+			totals = new Totals(size, rounds);
+
+			init = new int[size];
+			tiebreak = new int[size];
+			order = new int[size];
+			currentHP = new int[size];
+
+			standing = new int[2][size];
+			numStanding = new int[2];
+			standingIndex = new int[size];
+		}
+
+		void run()
+		{
+			rollInitiative();
+			recordTurnOrder();
+
+			numStanding[PARTY] = 0;
+			numStanding[OPPONENTS] = 0;
+			for (int i = 0; i < size; i++)
+			{
+				currentHP[i] = hp[i];
+				if (currentHP[i] > 0)
+				{
+					standingIndex[i] = numStanding[sides[i]];
+					standing[sides[i]][numStanding[sides[i]]++] = i;
+				}
+			}
+
+			for (int round = 0; round < rounds; round++)
+			{
+				for (int turn = 0; turn < size; turn++)
+				{
+					int attacker = order[turn];
+					if (currentHP[attacker] > 0)
+						attack(attacker);
+				}
+
+				int offset = round * size;
+				for (int i = 0; i < size; i++)
+				{
+					totals.hpRemaining[offset + i] += Math.max(currentHP[i], 0);
+					if (currentHP[i] <= 0)
+						totals.down[offset + i]++;
+				}
+			}
+		}
+
+		private void rollInitiative()
+		{
+			for (int i = 0; i < size; i++)
+			{
+				init[i] = InitiativeRoller.rollD20(random, InitiativeRoller.NORMAL) + mods[i];
+				tiebreak[i] = random.nextInt();
+				order[i] = i;
+			}
+			InitiativeSorter.sort(init, mods, tiebreak, order, size);
+		}
+
+		private void recordTurnOrder()
+		{
+			// Every creature up to and including the first party member acts before the party
+			boolean partyHasActed = !hasParty;
+			for (int position = 0; position < size; position++)
+			{
+				int creature = order[position];
+				totals.turnPositions[creature] += position;
+
+				if (!partyHasActed)
+					totals.beforeParty[creature]++;
+				if (sides[creature] == PARTY)
+					partyHasActed = true;
+			}
+		}
+
+		private void attack(int attacker)
+		{
+			int targetSide = 1 - sides[attacker];
+			int numTargets = numStanding[targetSide];
+			if (numTargets == 0)
+				return;
+
+			int target = standing[targetSide][random.nextInt(numTargets)];
+
+			int roll = random.nextInt(20) + 1;
+			if (roll == 1 || (roll != 20 && roll + attackBonus < ac[target]))
+				return;
+
+			int numDice = (roll == 20) ? 2 * damageDice : damageDice;
+			int damage = damageBonus;
+			for (int d = 0; d < numDice; d++)
+				damage += random.nextInt(damageSides) + 1;
+
+			currentHP[target] -= Math.max(damage, 0);
+			if (currentHP[target] <= 0)
+				knockDown(target);
+		}
+
+		// Takes a creature off its side's list of creatures still standing
+		private void knockDown(int creature)
+		{
+			int side = sides[creature];
+			int index = standingIndex[creature];
+			int last = standing[side][--numStanding[side]];
+
+			standing[side][index] = last;
+			standingIndex[last] = index;
+		}
+	}
+
+	// Statistics over every trial of a simulation, by creature, in the encounter's row order
+	// when the simulator was created. Rounds are numbered from 0.
+	public static class Result
+	{
+		private final Totals totals;
+		private final int size;
+		private final int trials;
+		private final int rounds;
+
+		private Result(Totals totals, int size, int trials, int rounds)
+		{
+			this.totals = totals;
+			this.size = size;
+			this.trials = trials;
+			this.rounds = rounds;
+		}
+
+		public int getTrials()
+		{
+			return trials;
+		}
+
+		public int getRounds()
+		{
+			return rounds;
+		}
+
+		// Average place in the turn order, 0 being the first to act
+		public double getExpectedTurnPosition(int creature)
+		{
+			return (double) totals.turnPositions[creature] / trials;
+		}
+
+		// Chance that the creature acts before any member of the party other than itself
+		public double getProbabilityBeforeParty(int creature)
+		{
+			return (double) totals.beforeParty[creature] / trials;
+		}
+
+		// Average HP left at the end of a round, counting creatures that are down as 0
+		public double getMeanHP(int creature, int round)
+		{
+			return (double) totals.hpRemaining[round * size + creature] / trials;
+		}
+
+		// Chance that the creature is down at the end of a round
+		public double getProbabilityDown(int creature, int round)
+		{
+			return (double) totals.down[round * size + creature] / trials;
+		}
+
+		// Average HP left at the end of each round
+		public double[] getHPCurve(int creature)
+		{
+			double[] curve = new double[rounds];
+			for (int round = 0; round < rounds; round++)
+				curve[round] = getMeanHP(creature, round);
+			return curve;
+		}
+	}
+}
@@ -0,0 +1,178 @@
+/* ********************************************************************************************
+ * InitiativeGroups.java
+ *
+ * Splits an encounter's creatures into groups that share one initiative, as the rules allow for
+ * identical monsters: creatures are in the same group when they were added together, in the
+ * same batch (see CreatureTemplate.getBatch), and still have the same name and initiative
+ * modifier. Copies added together stay together even when each rolled its own HP, while a
+ * second wave of the same monster acts on its own. Creatures with no batch, such as those
+ * imported from CSV, are grouped by name and modifier alone.
+ *
+ * Grouping looks at each row once. Rows are matched to groups through their interned templates,
+ * so only the distinct templates are compared. A grouping describes the encounter as it was
+ * when made. Changes to a row's HP can be brought in with update, one row at a time, but the
+ * grouping must be made again if creatures are added or removed, or move into rows of other
+ * groups.
+ * ******************************************************************************************** */
+
+package tracker;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+public class InitiativeGroups
+{
+
+	// Per row: group, and the current and max HP counted in the group's totals
+	private final int[] groupOf;
+	private final int[] rowHPCurrent;
+	private final int[] rowHPMax;
+
+	// Per group: what its creatures have in common, first row, number of creatures and their
+	// total current and max HP
+	private final CreatureTemplate[] keys;
+	private final int[] firstRow;
+	private final int[] size;
+	private final long[] hpCurrent;
+	private final long[] hpMax;
+
+	private InitiativeGroups(int[] groupOf, int[] rowHPCurrent, int[] rowHPMax, CreatureTemplate[] keys,
+			int[] firstRow, int[] size, long[] hpCurrent, long[] hpMax)
+	{
+		this.groupOf = groupOf;
+		this.rowHPCurrent = rowHPCurrent;
+		this.rowHPMax = rowHPMax;
+		this.keys = keys;
+		this.firstRow = firstRow;
+		this.size = size;
+		this.hpCurrent = hpCurrent;
+		this.hpMax = hpMax;
+	}
+
+	// Groups the creatures in encounter as they are now. Groups are numbered in order of their
+	// first row.
+	public static InitiativeGroups of(Encounter encounter)
+	{
+		int count = encounter.size();
+		int[] groupOf = new int[count];
+		int numGroups = 0;
+
+		IdentityHashMap<CreatureTemplate, Integer> byTemplate = new IdentityHashMap<CreatureTemplate, Integer>();
+		HashMap<CreatureTemplate, Integer> byKey = new HashMap<CreatureTemplate, Integer>();
+		for (int row = 0; row < count; row++)
+		{
+			CreatureTemplate template = encounter.getTemplate(row);
+			Integer group = byTemplate.get(template);
+			if (group == null)
+			{
+				CreatureTemplate key = keyOf(template);
+				group = byKey.get(key);
+				if (group == null)
+				{
+					group = numGroups++;
+					byKey.put(key, group);
+				}
+				byTemplate.put(template, group);
+			}
+			groupOf[row] = group;
+		}
+
+		CreatureTemplate[] keys = new CreatureTemplate[numGroups];
+		for (HashMap.Entry<CreatureTemplate, Integer> entry : byKey.entrySet())
+			keys[entry.getValue()] = entry.getKey();
+
+		int[] rowHPCurrent = new int[count];
+		int[] rowHPMax = new int[count];
+		int[] firstRow = new int[numGroups];
+		Arrays.fill(firstRow, -1);
+		int[] size = new int[numGroups];
+		long[] hpCurrent = new long[numGroups];
+		long[] hpMax = new long[numGroups];
+		for (int row = 0; row < count; row++)
+		{
+			int group = groupOf[row];
+			if (firstRow[group] < 0)
+				firstRow[group] = row;
+			size[group]++;
+			rowHPCurrent[row] = Math.max(encounter.getHPCurrent(row), 0);
+			rowHPMax[row] = Math.max(encounter.getHPMax(row), 0);
+			hpCurrent[group] += rowHPCurrent[row];
+			hpMax[group] += rowHPMax[row];
+		}
+
+		return new InitiativeGroups(groupOf, rowHPCurrent, rowHPMax, keys, firstRow, size, hpCurrent, hpMax);
+	}
+
+	// Brings the group totals up to date with whatever creature is now in row, which must be one
+	// of the same group as before, such as after its HP changed. Returns false, changing nothing,
+	// if it is not, and the grouping must be made again.
+	public boolean update(Encounter encounter, int row)
+	{
+		if (row >= groupOf.length || groupOf.length != encounter.size())
+			return false;
+
+		int group = groupOf[row];
+		if (!keyOf(encounter.getTemplate(row)).equals(keys[group]))
+			return false;
+
+		int newHPCurrent = Math.max(encounter.getHPCurrent(row), 0);
+		int newHPMax = Math.max(encounter.getHPMax(row), 0);
+		hpCurrent[group] += newHPCurrent - rowHPCurrent[row];
+		hpMax[group] += newHPMax - rowHPMax[row];
+		rowHPCurrent[row] = newHPCurrent;
+		rowHPMax[row] = newHPMax;
+		return true;
+	}
+
+	// Only the batch, name and modifier decide a group, so its key leaves out the other stats
+	private static CreatureTemplate keyOf(CreatureTemplate template)
+	{
+		return new CreatureTemplate(template.getName(), template.getMod(), 0, 0, template.getBatch());
+	}
+
+	// What a group's creatures have in common, which stays the same when the grouping is made
+	// again, unlike the group's number
+	public CreatureTemplate getKey(int group)
+	{
+		return keys[group];
+	}
+
+	public int getNumGroups()
+	{
+		return size.length;
+	}
+
+	// Number of rows grouped
+	public int getNumRows()
+	{
+		return groupOf.length;
+	}
+
+	public int getGroup(int row)
+	{
+		return groupOf[row];
+	}
+
+	// Row of the group's first creature, in the order the rows were in when grouped
+	public int getFirstRow(int group)
+	{
+		return firstRow[group];
+	}
+
+	public int getSize(int group)
+	{
+		return size[group];
+	}
+
+	// Total current HP of the group, counting creatures below 0 as 0
+	public long getHPCurrent(int group)
+	{
+		return hpCurrent[group];
+	}
+
+	public long getHPMax(int group)
+	{
+		return hpMax[group];
+	}
+}
@@ -0,0 +1,197 @@
+/* ********************************************************************************************
+ * InitiativeRoller.java
+ *
+ * Rolls initiative (a d20 plus the creature's initiative modifier, unless another dice
+ * expression is set) for a set of creatures at once, optionally with advantage or disadvantage.
+ *
+ * Every batch is rolled from a single recorded seed. Large batches are split across cores with
+ * fork-join, each half of the work drawing from its own split of the generator, so the same seed
+ * always produces the same rolls no matter how the work was scheduled.
+ * ******************************************************************************************** */
+
+package tracker;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+public class InitiativeRoller
+{
+
+	// Roll modes
+	public static final int NORMAL = 0;
+	public static final int ADVANTAGE = 1;
+	public static final int DISADVANTAGE = 2;
+
+	// Batches at least this large are rolled in parallel
+	private static final int PARALLEL_THRESHOLD = 4096;
+
+	// Initiative roll used when none is set
+	public static final String DEFAULT_EXPRESSION = "1d20+mod";
+
+	// Source of the seed for each batch
+	private final SplittableRandom seeds;
+
+	private long lastSeed;
+
+	private DiceExpression expression = DiceExpression.compile(DEFAULT_EXPRESSION);
+
+	public InitiativeRoller()
+	{
+		this(new Random().nextLong());
+	}
+
+	public InitiativeRoller(long seed)
+	{
+		seeds = new SplittableRandom(seed);
+	}
+
+	public DiceExpression getExpression()
+	{
+		return expression;
+	}
+
+	// Sets the dice rolled for initiative, in which mod is the creature's initiative modifier
+	public void setExpression(DiceExpression expression)
+	{
+		this.expression = expression;
+	}
+
+	// Seed of the most recent batch; passing it to roll reproduces that batch exactly
+	public long getLastSeed()
+	{
+		return lastSeed;
+	}
+
+	// Rolls initiative for every row set in rows and stores the results in the encounter.
+	// Returns the rows that were rolled for, in ascending order.
+	public int[] rollInitiative(Encounter encounter, BitSet rows, int mode)
+	{
+		int[] rolledRows = rows.stream().toArray();
+
+		int[] mods = new int[rolledRows.length];
+		for (int i = 0; i < rolledRows.length; i++)
+			mods[i] = encounter.getMod(rolledRows[i]);
+
+		lastSeed = seeds.nextLong();
+		int[] results = roll(expression, mods, mode, lastSeed);
+
+		for (int i = 0; i < rolledRows.length; i++)
+			encounter.setInit(rolledRows[i], results[i]);
+
+		return rolledRows;
+	}
+
+	// Rolls initiative once for each of groups with a row set in rows, and gives that roll to
+	// every row set in rows in the group. Returns the rows that were rolled for, in ascending
+	// order. The batch's seed reproduces the groups' rolls, in order of their first row.
+	public int[] rollInitiativeByGroup(Encounter encounter, BitSet rows, int mode, InitiativeGroups groups)
+	{
+		int[] rolledRows = rows.stream().toArray();
+
+		// Creatures in a group share a modifier, so the first one rolled for stands for the rest
+		int[] slot = new int[groups.getNumGroups()];
+		Arrays.fill(slot, -1);
+		int[] mods = new int[Math.min(rolledRows.length, groups.getNumGroups())];
+		int numRolls = 0;
+		for (int row : rolledRows)
+		{
+			int group = groups.getGroup(row);
+			if (slot[group] < 0)
+			{
+				slot[group] = numRolls;
+				mods[numRolls++] = encounter.getMod(row);
+			}
+		}
+
+		lastSeed = seeds.nextLong();
+		int[] results = roll(expression, Arrays.copyOf(mods, numRolls), mode, lastSeed);
+
+		for (int row : rolledRows)
+			encounter.setInit(row, results[slot[groups.getGroup(row)]]);
+
+		return rolledRows;
+	}
+
+	// Returns one initiative roll per modifier, drawn from seed
+	public static int[] roll(int[] mods, int mode, long seed)
+	{
+		return roll(DiceExpression.compile(DEFAULT_EXPRESSION), mods, mode, seed);
+	}
+
+	// Returns one roll of expression per modifier, drawn from seed
+	public static int[] roll(DiceExpression expression, int[] mods, int mode, long seed)
+	{
+		int[] results = new int[mods.length];
+		RollTask task = new RollTask(new SplittableRandom(seed), expression, mods, results, mode, 0, mods.length);
+
+		if (mods.length >= PARALLEL_THRESHOLD)
+			ForkJoinPool.commonPool().invoke(task);
+		else
+			task.compute();
+
+		return results;
+	}
+
+	// Rolls a single d20 in the given mode
+	static int rollD20(SplittableRandom random, int mode)
+	{
+		int first = random.nextInt(20) + 1;
+
+		switch (mode)
+		{
+			case ADVANTAGE:
+				return Math.max(first, random.nextInt(20) + 1);
+			case DISADVANTAGE:
+				return Math.min(first, random.nextInt(20) + 1);
+			default:
+				return first;
+		}
+	}
+
+	// Rolls results[from, to), splitting the range in half until it is small enough
+	private static class RollTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final SplittableRandom random;
+		private final DiceExpression expression;
+		private final int[] mods;
+		private final int[] results;
+		private final int mode;
+		private final int from;
+		private final int to;
+
+		RollTask(SplittableRandom random, DiceExpression expression, int[] mods, int[] results, int mode, int from,
+				int to)
+		{
+			this.random = random;
+			this.expression = expression;
+			this.mods = mods;
+			this.results = results;
+			this.mode = mode;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if (to - from < PARALLEL_THRESHOLD)
+			{
+				// Expressions may be rolled by tasks running at the same time
+				for (int i = from; i < to; i++)
+					results[i] = expression.roll(random, mods[i], mode);
+				return;
+			}
+
+			// The left half is split off before anything runs, so the split is deterministic
+			int middle = (from + to) >>> 1;
+			invokeAll(new RollTask(random.split(), expression, mods, results, mode, from, middle),
+					new RollTask(random, expression, mods, results, mode, middle, to));
+		}
+	}
+}
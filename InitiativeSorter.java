@@ -0,0 +1,163 @@
+/* ********************************************************************************************
+ * InitiativeSorter.java
+ *
+ * Orders creatures by initiative score, breaking ties by initiative modifier and then by a
+ * per-creature tiebreak roll.
+ *
+ * Keys are handed over as primitive arrays that the caller extracts once, and the sort works
+ * on an array of row indices, so nothing is re-parsed or copied while comparing.
+ * ******************************************************************************************** */
+
+package tracker;
+
+import java.util.Arrays;
+
+public class InitiativeSorter
+{
+
+	// Initiative key for creatures that have not rolled yet; they sort to the bottom
+	public static final int NO_INIT = Integer.MIN_VALUE;
+
+	// Below this many rows the merge sort hands off to insertion sort
+	private static final int INSERTION_SORT_THRESHOLD = 16;
+
+	private final int[] init;
+	private final int[] mod;
+	private final int[] tiebreak;
+
+	private InitiativeSorter(int[] init, int[] mod, int[] tiebreak)
+	{
+		this.init = init;
+		this.mod = mod;
+		this.tiebreak = tiebreak;
+	}
+
+	// Returns the row indices 0..count-1 in turn order: highest initiative first, initiative ties
+	// broken by the higher modifier, modifier ties broken by the higher tiebreak roll.
+	// Rows that are equal on all three keys keep their current relative order.
+	public static int[] sortOrder(int[] init, int[] mod, int[] tiebreak, int count)
+	{
+		int[] order = new int[count];
+		for (int i = 0; i < count; i++)
+			order[i] = i;
+
+		sort(init, mod, tiebreak, order, count);
+		return order;
+	}
+
+	// Sorts the first count entries of order, which hold row indices into the key arrays
+	public static void sort(int[] init, int[] mod, int[] tiebreak, int[] order, int count)
+	{
+		if (count < 2)
+			return;
+
+		new InitiativeSorter(init, mod, tiebreak).mergeSort(order, new int[count], 0, count);
+	}
+
+	// Returns the row indices 0..count-1 in turn order for rows that act in units, such as a group
+	// of identical monsters sharing one initiative. Row i is in unit unitOf[i]. Units are put in
+	// order by the keys of their first row, as sortOrder orders rows, and the rows of each unit
+	// follow one another in their current order, so only the units are compared.
+	public static int[] groupSortOrder(int[] unitOf, int numUnits, int[] init, int[] mod, int[] tiebreak, int count)
+	{
+		int[] firstRow = new int[numUnits];
+		Arrays.fill(firstRow, -1);
+		int[] unitSize = new int[numUnits];
+		for (int row = 0; row < count; row++)
+		{
+			int unit = unitOf[row];
+			if (firstRow[unit] < 0)
+				firstRow[unit] = row;
+			unitSize[unit]++;
+		}
+
+		int[] unitInit = new int[numUnits];
+		int[] unitMod = new int[numUnits];
+		int[] unitTiebreak = new int[numUnits];
+		for (int unit = 0; unit < numUnits; unit++)
+		{
+			unitInit[unit] = init[firstRow[unit]];
+			unitMod[unit] = mod[firstRow[unit]];
+			unitTiebreak[unit] = tiebreak[firstRow[unit]];
+		}
+		int[] unitOrder = sortOrder(unitInit, unitMod, unitTiebreak, numUnits);
+
+		// Each unit's rows start where the units before it end
+		int[] next = new int[numUnits];
+		int position = 0;
+		for (int unit : unitOrder)
+		{
+			next[unit] = position;
+			position += unitSize[unit];
+		}
+
+		int[] order = new int[count];
+		for (int row = 0; row < count; row++)
+			order[next[unitOf[row]]++] = row;
+		return order;
+	}
+
+	// Returns true if a creature with the first set of keys acts before one with the second
+	public static boolean precedes(int initA, int modA, int tiebreakA, int initB, int modB, int tiebreakB)
+	{
+		if (initA != initB)
+			return initA > initB;
+
+		if (modA != modB)
+			return modA > modB;
+
+		return tiebreakA > tiebreakB;
+	}
+
+	// Returns true if row a acts before row b
+	private boolean precedes(int a, int b)
+	{
+		return precedes(init[a], mod[a], tiebreak[a], init[b], mod[b], tiebreak[b]);
+	}
+
+	// Stable top-down merge sort of order[from, to), using buffer as scratch space
+	private void mergeSort(int[] order, int[] buffer, int from, int to)
+	{
+		if (to - from <= INSERTION_SORT_THRESHOLD)
+		{
+			insertionSort(order, from, to);
+			return;
+		}
+
+		int middle = (from + to) >>> 1;
+		mergeSort(order, buffer, from, middle);
+		mergeSort(order, buffer, middle, to);
+
+		// Halves are already in order relative to each other
+		if (!precedes(order[middle], order[middle - 1]))
+			return;
+
+		System.arraycopy(order, from, buffer, from, to - from);
+
+		int left = from;
+		int right = middle;
+		for (int i = from; i < to; i++)
+		{
+			if (right >= to || (left < middle && !precedes(buffer[right], buffer[left])))
+				order[i] = buffer[left++];
+			else
+				order[i] = buffer[right++];
+		}
+	}
+
+	private void insertionSort(int[] order, int from, int to)
+	{
+		for (int i = from + 1; i < to; i++)
+		{
+			int row = order[i];
+			int j = i - 1;
+
+			while (j >= from && precedes(row, order[j]))
+			{
+				order[j + 1] = order[j];
+				j--;
+			}
+			order[j + 1] = row;
+		}
+	}
+}
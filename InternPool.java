@@ -0,0 +1,103 @@
+/* ********************************************************************************************
+ * InternPool.java
+ *
+ * Interned storage for immutable values, such as creature templates. Each distinct value is
+ * stored once and referred to by an int id, so rows only carry an int and equal values share a
+ * single instance.
+ *
+ * Ids are reference counted and recycled once nothing uses them any more.
+ * ******************************************************************************************** */
+
+package tracker;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+public class InternPool<T>
+{
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	private Object[] values;
+	private int[] refCounts;
+
+	// Lookup from value to id for interning
+	private final HashMap<T, Integer> ids;
+
+	// Ids whose values have been released, available for reuse
+	private int[] freeIds;
+	private int numFree;
+
+	// Number of ids handed out so far, including freed ones
+	private int numIds;
+
+	public InternPool()
+	{
+		values = new Object[INITIAL_CAPACITY];
+		refCounts = new int[INITIAL_CAPACITY];
+		freeIds = new int[INITIAL_CAPACITY];
+		ids = new HashMap<T, Integer>();
+	}
+
+	// Returns the id for value, adding it to the pool if needed. Every call must be paired with
+	// a call to release once the caller stops using the id.
+	public int intern(T value)
+	{
+		Integer existing = ids.get(value);
+		if (existing != null)
+		{
+			refCounts[existing]++;
+			return existing;
+		}
+
+		int id;
+		if (numFree > 0)
+			id = freeIds[--numFree];
+		else
+		{
+			if (numIds == values.length)
+			{
+				values = Arrays.copyOf(values, numIds * 2);
+				refCounts = Arrays.copyOf(refCounts, numIds * 2);
+			}
+			id = numIds++;
+		}
+
+		values[id] = value;
+		refCounts[id] = 1;
+		ids.put(value, id);
+		return id;
+	}
+
+	// Adds count more references to an id that is already in use
+	public void retain(int id, int count)
+	{
+		refCounts[id] += count;
+	}
+
+	// Drops one reference to id, freeing the value when nothing refers to it any more
+	public void release(int id)
+	{
+		if (--refCounts[id] > 0)
+			return;
+
+		ids.remove(values[id]);
+		values[id] = null;
+
+		if (numFree == freeIds.length)
+			freeIds = Arrays.copyOf(freeIds, numFree * 2);
+		freeIds[numFree++] = id;
+	}
+
+	@SuppressWarnings("unchecked")
+	public T get(int id)
+	{
+		return (T) values[id];
+	}
+
+	// Number of distinct values currently stored
+	public int size()
+	{
+		return ids.size();
+	}
+}
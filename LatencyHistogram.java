@@ -0,0 +1,162 @@
+/* ********************************************************************************************
+ * LatencyHistogram.java
+ *
+ * Counts how long something took, over many runs, in buckets that grow with the time: four
+ * buckets for each power of two nanoseconds, so any time is placed to within a quarter of
+ * itself. Recording is a few atomic increments with no allocation or locking, so it can sit
+ * on hot paths and be read from another thread, such as a JMX client, while it is updated.
+ * ******************************************************************************************** */
+
+package tracker;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class LatencyHistogram
+{
+
+	// Four buckets for each power of two from 4ns, and one each for 0 to 3ns
+	private static final int SUB_BUCKET_BITS = 2;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int NUM_BUCKETS = (63 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+	private static final double NANOS_PER_MILLI = 1e6;
+
+	private final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong totalNanos = new AtomicLong();
+	private final AtomicLong maxNanos = new AtomicLong();
+
+	public void record(long nanos)
+	{
+		nanos = Math.max(nanos, 0);
+		counts.incrementAndGet(bucket(nanos));
+		count.incrementAndGet();
+		totalNanos.addAndGet(nanos);
+
+		long max = maxNanos.get();
+		while (nanos > max && !maxNanos.compareAndSet(max, nanos))
+			max = maxNanos.get();
+	}
+
+	public long getCount()
+	{
+		return count.get();
+	}
+
+	// Time below which the given fraction of runs finished, to within a bucket, in nanoseconds
+	public long getPercentile(double fraction)
+	{
+		long total = count.get();
+		if (total == 0)
+			return 0;
+
+		long rank = (long) Math.ceil(fraction * total);
+		long seen = 0;
+		for (int i = 0; i < NUM_BUCKETS; i++)
+		{
+			seen += counts.get(i);
+			if (seen >= rank)
+				return Math.min(upperBound(i), maxNanos.get());
+		}
+		return maxNanos.get();
+	}
+
+	public void reset()
+	{
+		for (int i = 0; i < NUM_BUCKETS; i++)
+			counts.set(i, 0);
+		count.set(0);
+		totalNanos.set(0);
+		maxNanos.set(0);
+	}
+
+	// The histogram's statistics now, under the given name
+	public Summary summarize(String name)
+	{
+		long n = count.get();
+		double mean = (n == 0) ? 0 : totalNanos.get() / (double) n / NANOS_PER_MILLI;
+		return new Summary(name, n, mean, getPercentile(0.5) / NANOS_PER_MILLI, getPercentile(0.99) / NANOS_PER_MILLI,
+				maxNanos.get() / NANOS_PER_MILLI);
+	}
+
+	private static int bucket(long nanos)
+	{
+		if (nanos < SUB_BUCKETS)
+			return (int) nanos;
+
+		int octave = 63 - Long.numberOfLeadingZeros(nanos);
+		int sub = (int) (nanos >>> (octave - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (octave - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	// Longest time that falls in a bucket
+	private static long upperBound(int bucket)
+	{
+		if (bucket < SUB_BUCKETS)
+			return bucket;
+
+		int octave = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		int sub = bucket & (SUB_BUCKETS - 1);
+		return ((long) (SUB_BUCKETS + sub + 1) << (octave - SUB_BUCKET_BITS)) - 1;
+	}
+
+	// Statistics of one histogram, in milliseconds, as published over JMX
+	public static class Summary
+	{
+		private final String name;
+		private final long count;
+		private final double meanMillis;
+		private final double medianMillis;
+		private final double p99Millis;
+		private final double maxMillis;
+
+		private Summary(String name, long count, double meanMillis, double medianMillis, double p99Millis,
+				double maxMillis)
+		{
+			this.name = name;
+			this.count = count;
+			this.meanMillis = meanMillis;
+			this.medianMillis = medianMillis;
+			this.p99Millis = p99Millis;
+			this.maxMillis = maxMillis;
+		}
+
+		public String getName()
+		{
+			return name;
+		}
+
+		public long getCount()
+		{
+			return count;
+		}
+
+		public double getMeanMillis()
+		{
+			return meanMillis;
+		}
+
+		public double getMedianMillis()
+		{
+			return medianMillis;
+		}
+
+		public double getP99Millis()
+		{
+			return p99Millis;
+		}
+
+		public double getMaxMillis()
+		{
+			return maxMillis;
+		}
+
+		@Override
+		public String toString()
+		{
+			return String.format("%s n=%d mean=%.2fms p50=%.2fms p99=%.2fms max=%.2fms", name, count, meanMillis,
+					medianMillis, p99Millis, maxMillis);
+		}
+	}
+}
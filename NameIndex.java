@@ -0,0 +1,267 @@
+/* ********************************************************************************************
+ * NameIndex.java
+ *
+ * Finds creatures by the start of any word in their name, such as "orc", "archer" or "37" for
+ * "Orc Archer 37", ignoring case. Copies added together are numbered after a space, so the
+ * name they share finds the whole group at once and the number finds one of them.
+ *
+ * The index is a trie of every name from each of its words onwards, cut off after MAX_DEPTH
+ * letters so a long name costs no more than a short one. A creature's id is kept only at the
+ * node where each of its paths ends, in a sorted array, and every node counts the paths that
+ * pass through it. A search walks one node per letter typed and gathers the ids below it, so
+ * it costs about as much as the number of creatures found. A query longer than the trie is cut
+ * off the same way, and the creatures found are then checked against the whole query; of the
+ * query's own words, the search starts from whichever narrows it down most.
+ * ******************************************************************************************** */
+
+package tracker;
+
+import java.util.Arrays;
+import java.util.function.IntFunction;
+
+public class NameIndex
+{
+
+	// Letters indexed from each word start
+	private static final int MAX_DEPTH = 12;
+
+	private static final char[] NO_LETTERS = new char[0];
+	private static final Node[] NO_CHILDREN = new Node[0];
+	private static final int[] NO_IDS = new int[0];
+
+	private Node root = new Node();
+
+	// Indexes a creature's name under its id
+	public void add(int creatureId, String name)
+	{
+		String key = name.toLowerCase();
+		for (int start = nextWord(key, 0); start >= 0; start = nextWord(key, start + 1))
+		{
+			int end = Math.min(key.length(), start + MAX_DEPTH);
+			Node node = root;
+			node.count++;
+			for (int i = start; i < end; i++)
+			{
+				node = node.addChild(key.charAt(i));
+				node.count++;
+			}
+			node.addId(creatureId);
+		}
+	}
+
+	// Drops a creature from the index. name must be the name it was added under.
+	public void remove(int creatureId, String name)
+	{
+		String key = name.toLowerCase();
+		for (int start = nextWord(key, 0); start >= 0; start = nextWord(key, start + 1))
+		{
+			int end = Math.min(key.length(), start + MAX_DEPTH);
+			Node node = root;
+			node.count--;
+			int i = start;
+			for (; i < end; i++)
+			{
+				Node child = node.getChild(key.charAt(i));
+				if (child == null)
+					break;
+
+				// Nothing below a node is left once its count runs out
+				if (--child.count == 0)
+				{
+					node.removeChild(key.charAt(i));
+					break;
+				}
+				node = child;
+			}
+			if (i == end)
+				node.removeId(creatureId);
+		}
+	}
+
+	// Moves a creature from one name to another
+	public void rename(int creatureId, String oldName, String newName)
+	{
+		remove(creatureId, oldName);
+		add(creatureId, newName);
+	}
+
+	public void clear()
+	{
+		root = new Node();
+	}
+
+	// Returns the ids, in ascending order, of the creatures with a word in their name that
+	// starts with query, which may run on into the words after it. Leading spaces are ignored,
+	// and an empty query finds every creature. names gives the name of a creature by id, for
+	// checking queries the trie alone cannot answer.
+	public int[] find(String query, IntFunction<String> names)
+	{
+		String key = query.toLowerCase();
+		int first = nextWord(key, 0);
+		if (first < 0)
+			return gather(root);
+
+		// Every creature found must also match from each later word of the query
+		Node best = null;
+		int bestStart = -1;
+		for (int start = first; start >= 0; start = nextWord(key, start + 1))
+		{
+			Node node = root;
+			int end = Math.min(key.length(), start + MAX_DEPTH);
+			for (int i = start; i < end && node != null; i++)
+				node = node.getChild(key.charAt(i));
+			if (node == null)
+				return NO_IDS;
+
+			if (best == null || node.count < best.count)
+			{
+				best = node;
+				bestStart = start;
+			}
+		}
+
+		int[] ids = gather(best);
+		if (bestStart == first && key.length() - first <= MAX_DEPTH)
+			return ids;
+
+		String rest = key.substring(first);
+		int numMatched = 0;
+		for (int id : ids)
+		{
+			if (matches(names.apply(id).toLowerCase(), rest))
+				ids[numMatched++] = id;
+		}
+		return Arrays.copyOf(ids, numMatched);
+	}
+
+	// Returns true if a word in key starts with query
+	private static boolean matches(String key, String query)
+	{
+		for (int start = nextWord(key, 0); start >= 0; start = nextWord(key, start + 1))
+		{
+			if (key.startsWith(query, start))
+				return true;
+		}
+		return false;
+	}
+
+	// Returns the ids at and below node, in ascending order, each once
+	private static int[] gather(Node node)
+	{
+		int[] ids = new int[node.count];
+		int numIds = gather(node, ids, 0);
+		Arrays.sort(ids, 0, numIds);
+
+		// A name found from more than one of its words is listed more than once
+		int numUnique = 0;
+		for (int i = 0; i < numIds; i++)
+		{
+			if (numUnique == 0 || ids[i] != ids[numUnique - 1])
+				ids[numUnique++] = ids[i];
+		}
+		return Arrays.copyOf(ids, numUnique);
+	}
+
+	private static int gather(Node node, int[] ids, int numIds)
+	{
+		System.arraycopy(node.ids, 0, ids, numIds, node.numIds);
+		numIds += node.numIds;
+		for (int c = 0; c < node.numChildren; c++)
+			numIds = gather(node.children[c], ids, numIds);
+		return numIds;
+	}
+
+	// Returns the position of the first word that starts at or after from, or -1 if none does
+	private static int nextWord(String key, int from)
+	{
+		for (int i = from; i < key.length(); i++)
+		{
+			if (key.charAt(i) != ' ' && (i == 0 || key.charAt(i - 1) == ' '))
+				return i;
+		}
+		return -1;
+	}
+
+	private static final class Node
+	{
+		// Children, in order of their letters
+		char[] letters = NO_LETTERS;
+		Node[] children = NO_CHILDREN;
+		int numChildren;
+
+		// Ids of the names whose paths end here, in ascending order. A creature is listed once
+		// for each of its paths that ends here.
+		int[] ids = NO_IDS;
+		int numIds;
+
+		// Number of paths that pass through or end at this node
+		int count;
+
+		Node getChild(char letter)
+		{
+			int c = Arrays.binarySearch(letters, 0, numChildren, letter);
+			return (c >= 0) ? children[c] : null;
+		}
+
+		Node addChild(char letter)
+		{
+			int c = Arrays.binarySearch(letters, 0, numChildren, letter);
+			if (c >= 0)
+				return children[c];
+
+			c = -c - 1;
+			if (numChildren == letters.length)
+			{
+				int capacity = Math.max(2, 2 * numChildren);
+				letters = Arrays.copyOf(letters, capacity);
+				children = Arrays.copyOf(children, capacity);
+			}
+			System.arraycopy(letters, c, letters, c + 1, numChildren - c);
+			System.arraycopy(children, c, children, c + 1, numChildren - c);
+			letters[c] = letter;
+			children[c] = new Node();
+			numChildren++;
+			return children[c];
+		}
+
+		void removeChild(char letter)
+		{
+			int c = Arrays.binarySearch(letters, 0, numChildren, letter);
+			if (c < 0)
+				return;
+
+			numChildren--;
+			System.arraycopy(letters, c + 1, letters, c, numChildren - c);
+			System.arraycopy(children, c + 1, children, c, numChildren - c);
+			children[numChildren] = null;
+		}
+
+		// Ids are mostly handed out in ascending order, so most go on the end
+		void addId(int id)
+		{
+			int i = numIds;
+			if (i > 0 && ids[i - 1] > id)
+			{
+				i = Arrays.binarySearch(ids, 0, numIds, id);
+				if (i < 0)
+					i = -i - 1;
+			}
+
+			if (numIds == ids.length)
+				ids = Arrays.copyOf(ids, Math.max(2, 2 * numIds));
+			System.arraycopy(ids, i, ids, i + 1, numIds - i);
+			ids[i] = id;
+			numIds++;
+		}
+
+		void removeId(int id)
+		{
+			int i = Arrays.binarySearch(ids, 0, numIds, id);
+			if (i < 0)
+				return;
+
+			numIds--;
+			System.arraycopy(ids, i + 1, ids, i, numIds - i);
+		}
+	}
+}
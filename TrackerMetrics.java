@@ -0,0 +1,191 @@
+/* ********************************************************************************************
+ * TrackerMetrics.java
+ *
+ * Measures where the tracker spends its time: how long each pass of the event loop takes to
+ * dispatch, how long each redraw frame takes, and how long the commands that change the table
+ * take to run. Each is kept in a LatencyHistogram, alongside counts of creatures, table rows and
+ * widgets sampled by the user interface thread.
+ *
+ * Everything is published over JMX, and can also be logged on a timer. Readers never touch SWT,
+ * so the numbers can still be read while the user interface thread is stuck.
+ * ******************************************************************************************** */
+
+package tracker;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+public class TrackerMetrics implements TrackerMetricsMXBean
+{
+
+	// Operations measured
+	public static final int DISPATCH = 0;
+	public static final int FRAME = 1;
+	public static final int ADD = 2;
+	public static final int REMOVE = 3;
+	public static final int SORT = 4;
+	public static final int ROLL = 5;
+	public static final int EDIT = 6;
+	public static final int NUM_OPERATIONS = 7;
+
+	private static final String[] NAMES = { "dispatch", "frame", "add", "remove", "sort", "roll", "edit" };
+
+	public static final String OBJECT_NAME = "tracker:type=Metrics";
+
+	private static final Logger log = Logger.getLogger(TrackerMetrics.class.getName());
+
+	private final LatencyHistogram[] latencies;
+
+	// Sampled by the user interface thread
+	private volatile int rowCount;
+	private volatile int tableItemCount;
+	private volatile int widgetCount;
+
+	private volatile int lastRollCount;
+	private volatile long lastRollSeed;
+
+	private ObjectName registeredName;
+	private ScheduledExecutorService logger;
+
+	public TrackerMetrics()
+	{
+		latencies = new LatencyHistogram[NUM_OPERATIONS];
+		for (int i = 0; i < NUM_OPERATIONS; i++)
+			latencies[i] = new LatencyHistogram();
+	}
+
+	// Records one run of an operation that started at startNanos, as given by System.nanoTime
+	public void record(int operation, long startNanos)
+	{
+		latencies[operation].record(System.nanoTime() - startNanos);
+	}
+
+	public LatencyHistogram getHistogram(int operation)
+	{
+		return latencies[operation];
+	}
+
+	public void setCounts(int rows, int tableItems, int widgets)
+	{
+		rowCount = rows;
+		tableItemCount = tableItems;
+		widgetCount = widgets;
+	}
+
+	public void rolled(int count, long seed)
+	{
+		lastRollCount = count;
+		lastRollSeed = seed;
+	}
+
+	// Publishes the metrics on the platform MBean server
+	public void register() throws JMException
+	{
+		ObjectName name = new ObjectName(OBJECT_NAME);
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+		registeredName = name;
+	}
+
+	// Logs the report every periodSeconds on a background thread
+	public void startLogging(long periodSeconds)
+	{
+		if (logger != null)
+			return;
+
+		logger = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "tracker-metrics");
+			thread.setDaemon(true);
+			return thread;
+		});
+		logger.scheduleAtFixedRate(() -> log.info(getReport()), periodSeconds, periodSeconds, TimeUnit.SECONDS);
+	}
+
+	// Stops logging and withdraws the metrics from the MBean server
+	public void close()
+	{
+		if (logger != null)
+		{
+			logger.shutdownNow();
+			logger = null;
+		}
+
+		if (registeredName != null)
+		{
+			try
+			{
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName);
+			}
+			catch (JMException e)
+			{
+				e.printStackTrace();
+			}
+			registeredName = null;
+		}
+	}
+
+	@Override
+	public LatencyHistogram.Summary[] getLatencies()
+	{
+		LatencyHistogram.Summary[] summaries = new LatencyHistogram.Summary[NUM_OPERATIONS];
+		for (int i = 0; i < NUM_OPERATIONS; i++)
+			summaries[i] = latencies[i].summarize(NAMES[i]);
+		return summaries;
+	}
+
+	@Override
+	public int getRowCount()
+	{
+		return rowCount;
+	}
+
+	@Override
+	public int getTableItemCount()
+	{
+		return tableItemCount;
+	}
+
+	@Override
+	public int getWidgetCount()
+	{
+		return widgetCount;
+	}
+
+	@Override
+	public int getLastRollCount()
+	{
+		return lastRollCount;
+	}
+
+	@Override
+	public long getLastRollSeed()
+	{
+		return lastRollSeed;
+	}
+
+	@Override
+	public String getReport()
+	{
+		StringBuilder report = new StringBuilder(96 * NUM_OPERATIONS);
+		report.append("rows=").append(rowCount).append(" items=").append(tableItemCount).append(" widgets=")
+				.append(widgetCount);
+		for (int i = 0; i < NUM_OPERATIONS; i++)
+		{
+			if (latencies[i].getCount() > 0)
+				report.append("; ").append(latencies[i].summarize(NAMES[i]));
+		}
+		return report.toString();
+	}
+
+	@Override
+	public void reset()
+	{
+		for (LatencyHistogram histogram : latencies)
+			histogram.reset();
+	}
+}
@@ -0,0 +1,36 @@
+/* ********************************************************************************************
+ * TrackerMetricsMXBean.java
+ *
+ * What the tracker publishes about its own performance over JMX, under the name
+ * tracker:type=Metrics. Times are in milliseconds.
+ * ******************************************************************************************** */
+
+package tracker;
+
+public interface TrackerMetricsMXBean
+{
+
+	// One summary per measured operation: event loop dispatches, redraw frames, and the commands
+	// that change the table
+	LatencyHistogram.Summary[] getLatencies();
+
+	// Creatures in the encounter, when last sampled
+	int getRowCount();
+
+	// Rows the table has created, when last sampled
+	int getTableItemCount();
+
+	// Controls in the window, when last sampled
+	int getWidgetCount();
+
+	int getLastRollCount();
+
+	// Seed of the last initiative roll, which reproduces it
+	long getLastRollSeed();
+
+	// Everything above on one line
+	String getReport();
+
+	// Empties every histogram
+	void reset();
+}
@@ -14,32 +14,57 @@
 package tracker;
 
 import org.eclipse.swt.widgets.Button;
+import org.eclipse.swt.widgets.Composite;
 import org.eclipse.swt.widgets.Control;
 import org.eclipse.swt.widgets.Display;
 import org.eclipse.swt.widgets.Event;
+import org.eclipse.swt.widgets.FileDialog;
 import org.eclipse.swt.widgets.Label;
 import org.eclipse.swt.widgets.Listener;
+import org.eclipse.swt.widgets.Menu;
+import org.eclipse.swt.widgets.MenuItem;
 import org.eclipse.swt.widgets.MessageBox;
 import org.eclipse.swt.widgets.Shell;
 import org.eclipse.swt.SWT;
 import org.eclipse.swt.custom.TableEditor;
+import org.eclipse.swt.dnd.DND;
+import org.eclipse.swt.dnd.DragSource;
+import org.eclipse.swt.dnd.DragSourceAdapter;
+import org.eclipse.swt.dnd.DragSourceEvent;
+import org.eclipse.swt.dnd.DropTarget;
+import org.eclipse.swt.dnd.DropTargetAdapter;
+import org.eclipse.swt.dnd.DropTargetEvent;
+import org.eclipse.swt.dnd.TextTransfer;
+import org.eclipse.swt.dnd.Transfer;
+import org.eclipse.swt.graphics.Color;
 import org.eclipse.swt.layout.GridData;
 import org.eclipse.swt.layout.GridLayout;
 import org.eclipse.swt.events.FocusEvent;
 import org.eclipse.swt.events.FocusListener;
-import org.eclipse.swt.graphics.FontMetrics;
-import org.eclipse.swt.graphics.GC;
-import org.eclipse.swt.graphics.Point;
-import org.eclipse.swt.graphics.Rectangle;
 import org.eclipse.swt.widgets.Table;
 import org.eclipse.swt.widgets.TableColumn;
 import org.eclipse.swt.widgets.TableItem;
 import org.eclipse.swt.widgets.Text;
 
-import java.util.ArrayList;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import javax.management.JMException;
 
 import org.eclipse.jface.dialogs.IInputValidator;
 import org.eclipse.jface.dialogs.InputDialog;
+import org.eclipse.jface.fieldassist.ContentProposal;
+import org.eclipse.jface.fieldassist.ContentProposalAdapter;
+import org.eclipse.jface.fieldassist.IContentProposal;
+import org.eclipse.jface.fieldassist.IContentProposalProvider;
+import org.eclipse.jface.fieldassist.TextContentAdapter;
 import org.eclipse.jface.window.Window;
 
 public class TrackerWindow
@@ -50,13 +75,47 @@ public class TrackerWindow
 	// Specifies whether to check or uncheck all items when clicking the name column header
 	private boolean checkAll;
 	
+	// Rows being dragged, in ascending order; null when no drag from the table is under way
+	private int[] draggedRows;
+	
+	// Timings of the event loop and of commands, published over JMX
+	private TrackerMetrics metrics;
+	private Table table;
+	
+	// Runs the encounter; the window only passes it the user's commands and renders the result
+	private EncounterEngine engine;
+	
+	// The engine's creatures, which the table renders
+	private Encounter encounter;
+	
+	// Which creature each table row shows, when the find field filters some out
+	private DisplayRows displayRows;
+	
+	// Batches table redraws, column layout and typed edits into one frame
+	private UpdateScheduler updates;
+	
+	// Monster stat blocks to add creatures from, or null if none have been imported
+	private Bestiary bestiary;
+	
+	// Sends the turn order to player screens after each frame while broadcasting; null otherwise
+	private TurnOrderBroadcaster broadcaster;
+	
+	// Cell editor, and the creature and column it edits while it is open. It follows the creature
+	// rather than the row, so rows can move or go while it is open.
+	private TableEditor editor;
+	private int editingId;
+	private int editingColumn;
+	
 	// Specify which columns contain which data using constants
-	final int NAME = 0;
-	final int INIT = 1;
-	final int MOD = 2;
-	final int HP_CURRENT = 3;
-	final int HP_MAX = 4;
-	final int AC = 5;
+	final int NAME = Encounter.NAME;
+	final int INIT = Encounter.INIT;
+	final int MOD = Encounter.MOD;
+	final int HP_CURRENT = Encounter.HP_CURRENT;
+	final int HP_MAX = Encounter.HP_MAX;
+	final int AC = Encounter.AC;
+	
+	// Bestiary library in the data directory
+	private static final String BESTIARY_FILE = "bestiary.lib";
 
 	/**
 	 * Launch the application.
@@ -79,13 +138,27 @@ public class TrackerWindow
 	 * Open the window.
 	 */
 	public void open() {
+		// How often the row and widget counts are sampled
+		final long SAMPLE_NANOS = 1000000000L;
+		
 		Display display = Display.getDefault();
 		createContents();
 		shell.open();
 		shell.layout();
+		
+		// Each dispatch is timed, including any dialog it opens, which runs its own loop
+		long lastSample = 0;
 		while (!shell.isDisposed()) {
+			long start = System.nanoTime();
 			if (!display.readAndDispatch()) {
 				display.sleep();
+				continue;
+			}
+			metrics.record(TrackerMetrics.DISPATCH, start);
+			
+			if (start - lastSample >= SAMPLE_NANOS && !shell.isDisposed()) {
+				metrics.setCounts(encounter.size(), table.getItemCount(), countWidgets(shell));
+				lastSample = start;
 			}
 		}
 	}
@@ -103,7 +176,25 @@ public class TrackerWindow
 		// Number of columns in the grid layout
 		final int NUM_GRID_COLS = 8;
 		
+		// Log the metrics every so many seconds with -Dtracker.metrics.log=seconds
+		final int METRICS_LOG_SECONDS = Integer.getInteger("tracker.metrics.log", 0);
+		
 		checkAll = true;
+		metrics = new TrackerMetrics();
+		try
+		{
+			metrics.register();
+		}
+		catch (JMException e)
+		{
+			e.printStackTrace();
+		}
+		if (METRICS_LOG_SECONDS > 0)
+			metrics.startLogging(METRICS_LOG_SECONDS);
+		
+		engine = openEngine();
+		encounter = engine.getEncounter();
+		bestiary = openBestiary();
 		
 		shell = new Shell();
 		shell.setText("D&D 5E Initiative Tracker");
@@ -113,32 +204,59 @@ public class TrackerWindow
 		
 		shell.setLayout(shellLayout);
 		
-		Table table = new Table(shell, SWT.CHECK | SWT.FULL_SELECTION | SWT.V_SCROLL | SWT.H_SCROLL);
+		// The table is virtual: rows are only filled in from the encounter when they scroll into view
+		table = new Table(shell, SWT.CHECK | SWT.MULTI | SWT.FULL_SELECTION | SWT.V_SCROLL | SWT.H_SCROLL | SWT.VIRTUAL);
 
 		// Creates table with columns initialized
 		fillTable(table, NUM_GRID_COLS);
+		displayRows = new DisplayRows(encounter);
+		updates = new UpdateScheduler(table, displayRows, metrics);
+		updates.setFrameListener(this::frameDone);
+		
+		// Fills in rows on demand and keeps check marks in the encounter
+		enableVirtualRendering(table);
 		
 		// Creates the buttons that appear along the bottom of the shell
 		createButtons(table, NUM_GRID_COLS);
 		
-		// Resizes columns when shell is resized
-		shell.addListener(SWT.Resize, new Listener()
+		// Creates the menus along the top of the shell
+		createMenuBar(table);
+		
+		// Writes out the rest of the journal when the window closes
+		shell.addListener(SWT.Dispose, new Listener()
 				{
 					public void handleEvent(Event e)
 					{
-						int numCols = table.getColumnCount();
-						for (int i = 0; i < numCols; i++)
+						metrics.close();
+						stopBroadcast();
+						try
+						{
+							engine.close();
+						}
+						catch (IOException ex)
 						{
-							table.getColumn(i).setWidth((int)(table.getClientArea().width) / numCols);
+							ex.printStackTrace();
 						}
 					}
 				});
 		
+		// Resizes columns when shell is resized, once per frame however many resize events arrive
+		shell.addListener(SWT.Resize, new Listener()
+				{
+					public void handleEvent(Event e)
+					{
+						updates.columnsResized();
+					}
+				});
+		
 
 
 		// Allows table cells to be edited by clicking
 		enableEditingOfTable(table);
 		
+		// Allows the selected creatures to be dragged to another place in the turn order
+		enableDragAndDrop(table);
+		
 		// Workaround to properly size the table
 		// TODO Find a more elegant solution to this
 		shell.setSize(SHELL_WIDTH+1, SHELL_HEIGHT);
@@ -147,6 +265,57 @@ public class TrackerWindow
 		
 	}
 	
+	// Creates an engine that journals the session to a new file in the user's home directory,
+	// or only in memory if that file can't be created
+	private EncounterEngine openEngine()
+	{
+		long seed = new Random().nextLong();
+		try
+		{
+			Path directory = dataDirectory();
+			Files.createDirectories(directory);
+			return new EncounterEngine(seed, directory.resolve("session-" + System.currentTimeMillis() + ".journal"));
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+			return new EncounterEngine(seed);
+		}
+	}
+	
+	// Maps the bestiary imported last time, if there is one. It is only read as it is used.
+	private Bestiary openBestiary()
+	{
+		Path library = dataDirectory().resolve(BESTIARY_FILE);
+		if (!Files.exists(library))
+			return null;
+		
+		try
+		{
+			return Bestiary.open(library);
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+			return null;
+		}
+	}
+	
+	// Where journals and the bestiary are kept
+	private static Path dataDirectory()
+	{
+		return Paths.get(System.getProperty("user.home"), ".initiative-tracker");
+	}
+	
+	// Counts the controls in a composite and everything inside it
+	private static int countWidgets(Composite composite)
+	{
+		int count = 1;
+		for (Control child : composite.getChildren())
+			count += (child instanceof Composite) ? countWidgets((Composite) child) : 1;
+		return count;
+	}
+	
 	// Fill empty space by creating blank labels
 	private void fillTable(Table table, int gridCols)
 	{
@@ -168,6 +337,117 @@ public class TrackerWindow
 		initColumns(table);
 	}
 	
+	// Populates rows of the virtual table from the encounter as they become visible, through the
+	// display rows, and records check mark changes in the encounter so they survive rows being
+	// cleared or never created
+	private void enableVirtualRendering(Table table)
+	{
+		table.addListener(SWT.SetData, new Listener()
+				{
+					public void handleEvent(Event e)
+					{
+						TableItem item = (TableItem) e.item;
+						
+						// Rows the encounter has dropped until the next frame catches the table up
+						if (e.index >= displayRows.size())
+							return;
+						int row = displayRows.getRow(e.index);
+						if (row >= encounter.size())
+							return;
+						
+						// The item keeps its creature, which painting and check marks go by, since
+						// looking up an item's row walks the table
+						item.setData(encounter.getCreatureId(row));
+						item.setText(displayRows.getRowText(e.index));
+						item.setChecked(encounter.isChecked(row));
+						
+						// The creature whose turn it is stands out, or its group if collapsed
+						int activeRow = engine.getTurns().getActiveRow();
+						boolean active = activeRow >= 0 && displayRows.getDisplayRowShowing(activeRow) == e.index;
+						item.setBackground(active ? shell.getDisplay().getSystemColor(SWT.COLOR_LIST_SELECTION) : null);
+						item.setForeground(active ? shell.getDisplay().getSystemColor(SWT.COLOR_LIST_SELECTION_TEXT) : null);
+					}
+				});
+		
+		// Behind the current HP of the row showing a group's totals, a bar shows how much HP the
+		// group has left
+		table.addListener(SWT.EraseItem, new Listener()
+				{
+					public void handleEvent(Event e)
+					{
+						if (e.index != HP_CURRENT || !displayRows.isGrouped() || (e.detail & SWT.SELECTED) != 0)
+							return;
+						
+						int row = rowOf((TableItem) e.item);
+						if (row < 0 || !displayRows.isSummary(row))
+							return;
+						
+						InitiativeGroups shown = displayRows.getGroups();
+						int group = shown.getGroup(row);
+						if (shown.getHPMax(group) <= 0)
+							return;
+						
+						double fraction = Math.min((double) shown.getHPCurrent(group) / shown.getHPMax(group), 1);
+						Color background = e.gc.getBackground();
+						e.gc.fillRectangle(e.x, e.y, e.width, e.height);
+						e.gc.setBackground(shell.getDisplay().getSystemColor((2 * fraction > 1) ? SWT.COLOR_GREEN : SWT.COLOR_RED));
+						e.gc.fillRectangle(e.x, e.y, (int) (e.width * fraction), e.height);
+						e.gc.setBackground(background);
+						e.detail &= ~SWT.BACKGROUND;
+					}
+				});
+		
+		table.addListener(SWT.Selection, new Listener()
+				{
+					public void handleEvent(Event e)
+					{
+						if (e.detail != SWT.CHECK)
+							return;
+						
+						// Checking a collapsed group checks every creature in it
+						TableItem item = (TableItem) e.item;
+						int row = rowOf(item);
+						int displayRow = (row < 0) ? -1 : displayRows.getDisplayRow(row);
+						if (displayRow < 0)
+							return;
+						for (int member : displayRows.getRows(new int[] { displayRow }))
+							engine.setChecked(member, item.getChecked());
+					}
+				});
+		
+		// Double-clicking or pressing Enter on a group's row expands or collapses it
+		table.addListener(SWT.DefaultSelection, new Listener()
+				{
+					public void handleEvent(Event e)
+					{
+						toggleGroup(table.getSelectionIndex());
+					}
+				});
+	}
+	
+	// Expands the group shown in a table row, or collapses it, keeping the row selected
+	private void toggleGroup(int displayRow)
+	{
+		updates.flush();
+		if (displayRow < 0 || displayRow >= displayRows.size())
+			return;
+		
+		int row = displayRows.getRow(displayRow);
+		if (!displayRows.toggleGroup(displayRow))
+			return;
+		
+		updates.flush();
+		table.setSelection(displayRows.getDisplayRow(row));
+	}
+	
+	// Row of the creature an item was last filled in with, or -1 if it has not been filled in or
+	// that creature has gone
+	private int rowOf(TableItem item)
+	{
+		Object id = item.getData();
+		return (id == null) ? -1 : encounter.findCreature((Integer) id);
+	}
+	
 	// Create and label all columns in the table
 	private void initColumns(Table table)
 	{
@@ -180,10 +460,8 @@ public class TrackerWindow
 				{
 					public void handleEvent(Event e)
 					{
-						for (TableItem item : table.getItems())
-						{
-							item.setChecked(checkAll);
-						}
+						engine.setAllChecked(checkAll);
+						updates.tableChanged();
 						checkAll = !checkAll;
 					}
 				});
@@ -216,14 +494,29 @@ public class TrackerWindow
 		invalidNumberBox.setText("Invalid number");
 		invalidNumberBox.setMessage("This cell must contain a numerical value.");
 		
-		dialog = new NewCreatureDialog(shell, "New Creature", "Enter name of new creature.", null, null);
+		MessageBox invalidDiceBox = new MessageBox(shell, SWT.OK);
+		invalidDiceBox.setText("Invalid dice");
+		invalidDiceBox.setMessage("This field must contain a number or dice, such as 2d8+4.");
+		
+		if (bestiary == null)
+			dialog = new NewCreatureDialog(shell, "New Creature", "Enter name of new creature.", null, null);
+		else
+		{
+			dialog = new NewCreatureDialog(shell, "New Creature", "Enter name of new creature, or pick one from the bestiary.", null, null);
+			dialog.setProposals(this::proposeMonsters);
+		}
 		
 		if (dialog.open() == Window.CANCEL)
 			return;
 		
 		name = dialog.getCreatureData();
 		
-		dialog = new NewCreatureDialog(shell, "New Creature", "Enter initiative roll of new creature (or leave blank for rolling later).", null, null);
+		// A monster from the bestiary brings its own stats, so only initiative is asked for
+		Bestiary.Entry monster = (bestiary == null) ? null : bestiary.find(name);
+		if (monster != null)
+			name = monster.getName();
+		
+		dialog = new NewCreatureDialog(shell, "New Creature", "Enter initiative roll of new creature, as a number or dice such as 1d20+mod (or leave blank for rolling later).", null, null);
 		do
 		{
 			if (dialog.open() == Window.CANCEL)
@@ -231,10 +524,16 @@ public class TrackerWindow
 	
 			init = dialog.getCreatureData();
 			
-			if (!isValidForNumericField(init) && init != "")
-				invalidNumberBox.open();
-		} while (!isValidForNumericField(init) && init != "");
+			if (!isValidForDiceField(init) && !init.isEmpty())
+				invalidDiceBox.open();
+		} while (!isValidForDiceField(init) && !init.isEmpty());
 		
+		if (monster != null)
+		{
+			addItemsWithData(table, numItems, name, init, CellCodec.format(monster.getMod()), monster.getHP().toString(),
+					CellCodec.format(monster.getAC()));
+			return;
+		}
 		
 		dialog = new NewCreatureDialog(shell, "New Creature", "Enter initiative modifier of new creature.", null, null);
 		do
@@ -248,7 +547,7 @@ public class TrackerWindow
 				invalidNumberBox.open();
 		} while (!isValidForNumericField(mod));
 		
-		dialog = new NewCreatureDialog(shell, "New Creature", "Enter MAXIMUM hitpoints of new creature.", null, null);
+		dialog = new NewCreatureDialog(shell, "New Creature", "Enter MAXIMUM hitpoints of new creature, as a number or dice such as 2d8+4 to roll for each copy.", null, null);
 		do
 		{
 			if (dialog.open() == Window.CANCEL)
@@ -256,9 +555,9 @@ public class TrackerWindow
 	
 			HP = dialog.getCreatureData();
 			
-			if (!isValidForNumericField(HP))
-				invalidNumberBox.open();
-		} while (!isValidForNumericField(HP));
+			if (!isValidForDiceField(HP))
+				invalidDiceBox.open();
+		} while (!isValidForDiceField(HP));
 		
 		dialog = new NewCreatureDialog(shell, "New Creature", "Enter AC of new creature.", null, null);
 		do
@@ -272,45 +571,147 @@ public class TrackerWindow
 				invalidNumberBox.open();
 		} while (!isValidForNumericField(AC));
 		
-		addItemWithData(table, name, init, mod, HP, AC);
-		
-		for (int i = 2; i <= numItems; i++)
-			addItemWithData(table, name + " " + i, init, mod, HP, AC);
+		addItemsWithData(table, numItems, name, init, mod, HP, AC);
 
 	}
 	
-	private void addItemWithData(Table table, String newName, String newInit, String newMod, String newHP, String newAC)
+	// Names in the bestiary that start with what has been typed, for the name field's type-ahead
+	private IContentProposal[] proposeMonsters(String contents, int position)
 	{
-
-		TableItem newItem = new TableItem(table, SWT.NULL);
-		newItem.setText(NAME, newName);
-		newItem.setText(INIT, newInit);
-		newItem.setText(MOD, newMod);
-		newItem.setText(HP_CURRENT, newHP);
-		newItem.setText(HP_MAX, newHP);
-		newItem.setText(AC, newAC);
+		final int MAX_PROPOSALS = 50;
+		
+		String[] names = bestiary.complete(contents.substring(0, position), MAX_PROPOSALS);
+		IContentProposal[] proposals = new IContentProposal[names.length];
+		for (int i = 0; i < names.length; i++)
+			proposals[i] = new ContentProposal(names[i]);
+		return proposals;
+	}
+	
+	// Adds numItems copies of a creature to the encounter and rows for them to the table.
+	// The first copy keeps the plain name and the rest are numbered from 2. Fields have already
+	// been validated and are parsed here, once; dice are rolled for each copy.
+	private void addItemsWithData(Table table, int numItems, String newName, String newInit, String newMod, String newHP, String newAC)
+	{
+		long start = System.nanoTime();
+		DiceExpression init = newInit.isEmpty() ? null : DiceExpression.compile(newInit);
+		
+		engine.addCreatures(newName, init, CellCodec.parseInt(newMod), DiceExpression.compile(newHP), CellCodec.parseInt(newAC), numItems);
+		
+		// The new rows are filled in by the SetData listener once they are visible. Kept in turn
+		// order, they may have gone in anywhere.
+		if (engine.isKeepSorted())
+			updates.tableChanged();
+		else
+			updates.rowCountChanged();
+		
+		metrics.record(TrackerMetrics.ADD, start);
 	}
 	
-	// Returns true if String s follows the patterns of number of any length,
-	// possibly preceded by + or -
+	// Returns true if String s is a number that fits in a cell: digits, possibly preceded by
+	// a single + or -. Anything accepted here is accepted when the cell is parsed.
 	private boolean isValidForNumericField(String s)
 	{
-		return (s != null && s.matches("[+-]*\\d\\d*"));
+		return CellCodec.isNumber(s);
 	}
 	
-	// Swaps the data of two TableItems
-	private void swapItems(TableItem item1, TableItem item2)
+	// Returns true if String s is a number or a dice expression such as 2d8+4
+	private boolean isValidForDiceField(String s)
 	{
-		int numCols = item1.getParent().getColumnCount();
-		
-		String temp;
-		
-		for (int i = 0; i < numCols; i++)
+		return DiceExpression.isValid(s);
+	}
+	
+	// Moves the creatures in encounter rows, in ascending order, together to rows to onwards,
+	// redrawing only the rows between where they were and where they went, and keeps them
+	// selected. They are shown together, as they are together in the encounter.
+	private void moveRows(Table table, int[] rows, int to)
+	{
+		int[] changed = engine.moveRows(rows, to);
+		updates.rowsChanged(changed[0], changed[1]);
+		
+		updates.flush();
+		int first = displayRows.getDisplayRowShowing(to);
+		int last = displayRows.getDisplayRowShowing(to + rows.length - 1);
+		if (first >= 0 && last >= 0)
+			table.setSelection(first, last);
+	}
+	
+	// Moves the creatures shown in a table row, every one of them for a collapsed group, to just
+	// before the creatures shown in table row before, or after the last creature if before is
+	// past the last table row
+	private void moveDisplayRow(Table table, int displayRow, int before)
+	{
+		int[] rows = displayRows.getRows(new int[] { displayRow });
+		int beforeRow = (before < displayRows.size()) ? displayRows.getRow(before) : encounter.size();
+		int to = beforeRow;
+		for (int row : rows)
 		{
-			temp = item1.getText(i);
-			item1.setText(i, item2.getText(i));
-			item2.setText(i, temp);
+			if (row < beforeRow)
+				to--;
 		}
+		moveRows(table, rows, to);
+	}
+	
+	// Lets the selected rows be dragged and dropped before another row, or after the last
+	private void enableDragAndDrop(Table table)
+	{
+		Transfer[] transfers = { TextTransfer.getInstance() };
+		
+		DragSource source = new DragSource(table, DND.DROP_MOVE);
+		source.setTransfer(transfers);
+		source.addDragListener(new DragSourceAdapter()
+				{
+					@Override
+					public void dragStart(DragSourceEvent e)
+					{
+						updates.flush();
+						int[] rows = displayRows.getRows(table.getSelectionIndices());
+						draggedRows = rows;
+						e.doit = rows.length > 0;
+					}
+					
+					// The rows themselves travel in draggedRows; the text only names them
+					@Override
+					public void dragSetData(DragSourceEvent e)
+					{
+						e.data = draggedRows.length + " creatures";
+					}
+					
+					@Override
+					public void dragFinished(DragSourceEvent e)
+					{
+						draggedRows = null;
+					}
+				});
+		
+		DropTarget target = new DropTarget(table, DND.DROP_MOVE);
+		target.setTransfer(transfers);
+		target.addDropListener(new DropTargetAdapter()
+				{
+					@Override
+					public void dragOver(DropTargetEvent e)
+					{
+						e.feedback = DND.FEEDBACK_INSERT_BEFORE | DND.FEEDBACK_SCROLL;
+					}
+					
+					@Override
+					public void drop(DropTargetEvent e)
+					{
+						int[] rows = draggedRows;
+						if (rows == null)
+							return;
+						
+						// Dropped before a row's creature, or after the last creature if below them all
+						int before = (e.item == null) ? displayRows.size() : table.indexOf((TableItem) e.item);
+						before = (before < displayRows.size()) ? displayRows.getRow(before) : encounter.size();
+						int to = before;
+						for (int row : rows)
+						{
+							if (row < before)
+								to--;
+						}
+						moveRows(table, rows, to);
+					}
+				});
 	}
 	
 	// Fills empty space with a number of empty labels
@@ -327,160 +728,112 @@ public class TrackerWindow
 		}
 	}
 	
-	// Selection Sort of the table based on the initiative column, initiative modifier column,
-	// or random numbers, depending on ties.
+	// Sorts the encounter by initiative, then initiative modifier, then each creature's tiebreak
+	// roll. Visible rows are refilled from the encounter as they are redrawn.
 	private void sortTableByInitColumn(Table table)
 	{
-		for (int i = 0; i < table.getItemCount(); i++)
-		{
-			swapItems(table.getItem(i), getMaxInit(table, i));
-		}
-	}
-	
-	// Gets the highest initiative score in the table, beginning search at index startingItem.
-	// Initiative tie scores are broken by initiative modifier.
-	// In the case of an initiative tie and an initiative modifier tie,
-	// the max is chosen at random.
-	private TableItem getMaxInit(Table table, int startingItem)
-	{
-		TableItem maxItem = table.getItem(startingItem);
-		TableItem currentItem;
-		
-		int initCurrent, initMax;
-		int modCurrent, modMax;
-		
-		for (int i = startingItem + 1; i < table.getItemCount(); i++)
-		{
-			currentItem = table.getItem(i);
-			
-			if (currentItem.getText(1) == "")
-				initCurrent = Integer.MIN_VALUE;
-			else
-				initCurrent = Integer.parseInt(currentItem.getText(1));
-			
-			if (maxItem.getText(1) == "")
-				initMax = Integer.MIN_VALUE;
-			else
-				initMax = Integer.parseInt(maxItem.getText(1));
-			
-			// init ties are broken by init mod
-			if (initCurrent == initMax)
-			{
-				modCurrent = Integer.parseInt(currentItem.getText(2));
-				modMax = Integer.parseInt(maxItem.getText(2));
-				
-				// init mod ties are broken by random numbers
-				if (modCurrent == modMax)
-				{
-					if (Math.random() > .5)
-						maxItem = currentItem;
-				}
-				else if (modCurrent > modMax)
-					maxItem = currentItem;
-			}
-			else if (initCurrent > initMax)
-				maxItem = currentItem;
-		}
-		
-		return maxItem;
+		long start = System.nanoTime();
+		engine.sortByInitiative();
+		updates.tableChanged();
+		metrics.record(TrackerMetrics.SORT, start);
 	}
 	
 	// Allows for editing of table cells using the mouse.
 	private void enableEditingOfTable(Table table)
 	{
-		TableEditor editor = new TableEditor(table);
+		editor = new TableEditor(table);
 		editor.horizontalAlignment = SWT.LEFT;
 		editor.grabHorizontal = true;
 		
+		// Maps clicks to cells without walking the rows
+		CellHitTester hitTester = new CellHitTester(table, displayRows);
+		
 		table.addListener( SWT.MouseDown, event -> {
 			
+			long start = System.nanoTime();
 			Control oldEditor = editor.getEditor();
 			if (oldEditor != null)
 				oldEditor.dispose();
 			
-			// The point that was clicked
-			Point pt = new Point(event.x, event.y);
+			// Only clicks on (or near) the text of a cell open an editor
+			if (!hitTester.hitTest(event.x, event.y))
+			{
+				metrics.record(TrackerMetrics.EDIT, start);
+				return;
+			}
+			
+			TableItem currentItem = hitTester.getItem();
+			final int rowSelected = displayRows.getRow(hitTester.getRow());
+			final int colSelected = hitTester.getColumn();
+			final int creatureId = encounter.getCreatureId(rowSelected);
+			editingId = creatureId;
+			editingColumn = colSelected;
 			
-			// The index of the top item that is actually visible, taking scrolling into account
-			int index = table.getTopIndex();
+			// Place an editable text box over the box that was clicked
+			// with the same data as the box
+			Text newEditor = new Text(table, SWT.NULL);
+			newEditor.setText(encounter.getText(rowSelected, colSelected));
 			
-			while (index < table.getItemCount())
-			{
-				TableItem currentItem = table.getItem(index);
-				for (int i = 0; i < table.getColumnCount(); i++)
+			// What is typed is parsed into the encounter at most once per frame, into whichever
+			// row the creature is in by then; text that is not (yet) a valid number only shows
+			// in the editor
+			newEditor.addModifyListener(me -> {
+				String typed = newEditor.getText();
+				updates.commitLater(() -> {
+					int row = encounter.findCreature(creatureId);
+					if (row >= 0 && engine.setText(row, colSelected, typed))
+						updates.rowChanged(row);
+				});
+			});
+			
+			// Anything typed is committed before the editor goes away or anything else happens.
+			// Once it has gone, a creature whose place in turn order changed is moved there,
+			// redrawing only the rows it passed.
+			newEditor.addListener(SWT.FocusOut, e -> updates.flush());
+			newEditor.addListener(SWT.Dispose, e -> {
+				updates.flush();
+				int row = encounter.findCreature(creatureId);
+				if (row >= 0 && (colSelected == INIT || colSelected == MOD))
 				{
+					int newRow = engine.keepInTurnOrder(row);
+					if (newRow != row)
+						updates.rowsChanged(row, newRow);
+				}
+			});
+			
+			if (colSelected != 0)
+			{
+				newEditor.addFocusListener(new FocusListener()
+						{
+							String oldText;
 					
+							@Override
+							public void focusGained(FocusEvent arg0)
+							{
+								oldText = newEditor.getText();
+							}
+			
+							@Override
+							public void focusLost(FocusEvent arg0)
+							{
+								if (!isValidForNumericField(newEditor.getText()))
+								{
+									MessageBox invalidNumberBox = new MessageBox(shell, SWT.OK);
+									invalidNumberBox.setText("Invalid number");
+									invalidNumberBox.setMessage("This cell must contain a numerical value.");
+									invalidNumberBox.open();
+									newEditor.setText(oldText);
+								}
+							}
 					
-					// The area of the cell currently being checked
-					Rectangle itemBounds = currentItem.getBounds(i);
-					int quarterWidth = itemBounds.width / 4;
-					
-					// Set the bounds to the area of the text, not the cell
-					GC gc = new GC(Display.getDefault());
-					gc.setFont(currentItem.getFont());
-					FontMetrics fm = gc.getFontMetrics();
-					itemBounds.width = fm.getAverageCharWidth() * currentItem.getText(i).length();
-					
-					// If the bounds are so small that it's hard to click,
-					// make it a bit bigger (25% of the cell width)
-					if (itemBounds.width < quarterWidth)
-						itemBounds.width = quarterWidth;
-					
-					// If the point that was clicked is inside the item bounds,
-					// currentItem is the item that has been clicked.
-					if (itemBounds.contains(pt))
-					{
-						final int colSelected = i;
-						
-						// Place an editable text box over the box that was clicked
-						// with the same data as the box
-						Text newEditor = new Text(table, SWT.NULL);
-						newEditor.setText(currentItem.getText(colSelected));
-						
-						
-						newEditor.addModifyListener(me -> {
-							Text text = (Text) editor.getEditor();
-							editor.getItem().setText(colSelected, text.getText());
 						});
-						
-						if (colSelected != 0)
-						{
-							newEditor.addFocusListener(new FocusListener()
-									{
-										String oldText;
-								
-										@Override
-										public void focusGained(FocusEvent arg0)
-										{
-											oldText = newEditor.getText();
-										}
-	
-										@Override
-										public void focusLost(FocusEvent arg0)
-										{
-											if (!isValidForNumericField(newEditor.getText()))
-											{
-												MessageBox invalidNumberBox = new MessageBox(shell, SWT.OK);
-												invalidNumberBox.setText("Invalid number");
-												invalidNumberBox.setMessage("This cell must contain a numerical value.");
-												invalidNumberBox.open();
-												newEditor.setText(oldText);
-											}
-										}
-								
-									});
-						}
-						
-						newEditor.selectAll();
-						newEditor.setFocus();
-						
-						editor.setEditor(newEditor, currentItem, colSelected);
-						
-						return;
-					}
-				}
-				index++;
 			}
+			
+			newEditor.selectAll();
+			newEditor.setFocus();
+			
+			editor.setEditor(newEditor, currentItem, colSelected);
+			metrics.record(TrackerMetrics.EDIT, start);
 		});
 	}
 	
@@ -507,8 +860,7 @@ public class TrackerWindow
 						if (selectedIndex < 1)
 							return;
 						
-						swapItems(table.getItem(selectedIndex), table.getItem(selectedIndex - 1));
-						table.setSelection(selectedIndex - 1);
+						moveDisplayRow(table, selectedIndex, selectedIndex - 1);
 					}
 				});
 	}
@@ -533,11 +885,10 @@ Button downButton = new Button(shell, SWT.NONE);
 					public void handleEvent(Event e)
 					{
 						int selectedIndex = table.getSelectionIndex();
-						if (selectedIndex < 0 || selectedIndex >= table.getItemCount() - 1)
+						if (selectedIndex < 0 || selectedIndex >= displayRows.size() - 1)
 							return;
 						
-						swapItems(table.getItem(selectedIndex), table.getItem(selectedIndex + 1));
-						table.setSelection(selectedIndex + 1);
+						moveDisplayRow(table, selectedIndex, selectedIndex + 2);
 					}
 				});
 	}
@@ -595,7 +946,7 @@ Button downButton = new Button(shell, SWT.NONE);
 							String response = dialog.getCreatureData();
 							int responseNum;
 							
-							if (isValidForNumericField(response) && (responseNum = Integer.parseInt(response)) > 1)
+							if (isValidForNumericField(response) && (responseNum = CellCodec.parseInt(response)) > 1)
 							{
 								createNewItem(table, responseNum);
 								validEntry = true;
@@ -628,57 +979,58 @@ Button downButton = new Button(shell, SWT.NONE);
 				{
 					public void handleEvent(Event e)
 					{
-						// get the number of creatures
-						ArrayList<TableItem> itemList = new ArrayList<TableItem>();
+						// Maximum number of creatures named in the "are you sure" menu
+						final int MAX_NAMES_LISTED = 10;
 						
-						int numItemsChecked = 0;
-						TableItem item;
+						// Edits still being typed go in first, while their rows are still there
+						updates.flush();
 						
-						for (int i = 0; i < table.getItemCount(); i++)
-						{
-							item = table.getItem(i);
-							if (item.getChecked())
-							{
-								numItemsChecked++;
-								itemList.add(item);
-							}
-						}
+						BitSet checkedRows = encounter.getCheckedRows();
+						int numItemsChecked = checkedRows.cardinality();
 						
 						if (numItemsChecked == 0)
 							return;
 						
-
+						int numCreaturesToList = (numItemsChecked > MAX_NAMES_LISTED) ? MAX_NAMES_LISTED : numItemsChecked;
+						
 						// list off all creatures in the "are you sure" menu
-						String message = "Are you sure you wish to remove the following " + numItemsChecked + " creatures?";
-						int numCreaturesToList = (numItemsChecked > 10) ? 10 : numItemsChecked;
-						TableItem checkedItem;
+						StringBuilder message = new StringBuilder(64 + 32 * numCreaturesToList);
+						message.append("Are you sure you wish to remove the following ")
+								.append(numItemsChecked).append(" creatures?");
 						
+						int row = checkedRows.nextSetBit(0);
 						for (int i = 0; i < numCreaturesToList; i++)
 						{
-							checkedItem = itemList.get(i);
-							message += "\n" + checkedItem.getText(0);
+							message.append('\n').append(encounter.getName(row));
+							row = checkedRows.nextSetBit(row + 1);
 						}
 						
 						if (numItemsChecked > numCreaturesToList)
-							message += "\n(... and " + (numItemsChecked - numCreaturesToList) + " others)";
+							message.append("\n(... and ").append(numItemsChecked - numCreaturesToList).append(" others)");
 						
 						MessageBox confMessageBox = new MessageBox(shell, SWT.ICON_WARNING | SWT.YES | SWT.NO);
 						confMessageBox.setText("Remove Creature");
-						confMessageBox.setMessage(message);
+						confMessageBox.setMessage(message.toString());
 						
 						
 						// remove selected creatures if user presses yes
 						if (confMessageBox.open() == SWT.YES)
 						{
-							for (int i = 0; i < table.getItemCount(); i++)
+							long start = System.nanoTime();
+							int[] removedRows = engine.removeChecked();
+							
+							// With every creature shown, the table drops the same rows; otherwise the
+							// frame works out which rows are still shown
+							if (displayRows.isIdentity())
 							{
-								item = table.getItem(i);
-								
-								if (item.getChecked())
-								{
-									table.remove(i--);
-								}
+								table.setRedraw(false);
+								table.remove(removedRows);
+								table.setRedraw(true);
 							}
+							
+							// The frame lets player screens follow
+							updates.rowCountChanged();
+							metrics.record(TrackerMetrics.REMOVE, start);
 						}
 					}
 				});
@@ -718,47 +1070,972 @@ Button downButton = new Button(shell, SWT.NONE);
 		
 		Button rollButton = new Button(shell, SWT.NONE);
 		rollButton.setText("Roll Initiative!"); 
-		rollButton.setToolTipText("Roll Initiative for all \"checked\" creatures");
+		rollButton.setToolTipText("Roll Initiative for all \"checked\" creatures\n"
+				+ "Shift-click to roll with advantage, Ctrl-click to roll with disadvantage");
 		rollButton.setLayoutData(buttonData);
 		
 		rollButton.addListener(SWT.Selection, new Listener()
 				{
 					public void handleEvent(Event e)
 					{
-						rollInitiativeForCheckedCreatures(table);
+						int mode = InitiativeRoller.NORMAL;
+						if ((e.stateMask & SWT.SHIFT) != 0)
+							mode = InitiativeRoller.ADVANTAGE;
+						else if ((e.stateMask & SWT.CTRL) != 0)
+							mode = InitiativeRoller.DISADVANTAGE;
+						
+						rollInitiativeForCheckedCreatures(table, mode);
 					}
 				});
 	}
 	
-	// Creates and adds listeners for all buttons in the shell.
-	private void createButtons(Table table, int numGridCols)
+	// Creates the menu bar and its menus.
+	private void createMenuBar(Table table)
 	{
-		createUpButton(table, numGridCols);
-		
-		createAddButton(table, numGridCols);
-		createAddMultButton(table, numGridCols);
-		createRemoveButton(table, numGridCols);
-		createSortButton(table, numGridCols);
-		
-		createDownButton(table, numGridCols);
-		
-		fillEmptySpace(3, false, false);
+		Menu menuBar = new Menu(shell, SWT.BAR);
+		shell.setMenuBar(menuBar);
 		
-		createRollButton(table, numGridCols);
+		createFileMenu(menuBar, table);
+		createEditMenu(menuBar, table);
+		createCombatMenu(menuBar, table);
+		createSimulateMenu(menuBar);
 	}
 	
-	// Roll initiative for all creatures that the user checked
-	// Generates a number between 1 and 20 and then adds the creature's initiative modifier
-	private void rollInitiativeForCheckedCreatures(Table table)
+	// The File menu saves and loads encounters, natively or as CSV, and replays journaled sessions
+	private void createFileMenu(Menu menuBar, Table table)
 	{
-		for (TableItem item : table.getItems())
-		{
-			if (item.getChecked())
-			{
-				item.setText(1, "" + ((int)(Math.random() * 20) + 1 + Integer.parseInt(item.getText(2))));
-				System.out.println(Integer.parseInt(item.getText(2)));
-			}
-		}
+		final String[] ENCOUNTER_FILTER = { "*.enc", "*.*" };
+		final String[] CSV_FILTER = { "*.csv", "*.*" };
+		final String[] JOURNAL_FILTER = { "*.journal", "*.*" };
+		
+		MenuItem fileHeader = new MenuItem(menuBar, SWT.CASCADE);
+		fileHeader.setText("&File");
+		
+		Menu fileMenu = new Menu(shell, SWT.DROP_DOWN);
+		fileHeader.setMenu(fileMenu);
+		
+		MenuItem openItem = new MenuItem(fileMenu, SWT.PUSH);
+		openItem.setText("&Open Encounter...\tCtrl+O");
+		openItem.setAccelerator(SWT.MOD1 + 'O');
+		openItem.addListener(SWT.Selection, new Listener()
+				{
+					public void handleEvent(Event e)
+					{
+						// Edits still being typed go in first
+						updates.flush();
+						
+						Path file = chooseFile(SWT.OPEN, ENCOUNTER_FILTER);
+						if (file == null)
+							return;
+						
+						// The encounter is only replaced once the whole file has been read
+						try
+						{
+							engine.open(file);
+						}
+						catch (IOException ex)
+						{
+							showError("Open Encounter", "Could not open " + file + ":\n" + ex.getMessage());
+							return;
+						}
+						
+						updates.tableChanged();
+						showRound();
+					}
+				});
+		
+		MenuItem saveItem = new MenuItem(fileMenu, SWT.PUSH);
+		saveItem.setText("&Save Encounter...\tCtrl+S");
+		saveItem.setAccelerator(SWT.MOD1 + 'S');
+		saveItem.addListener(SWT.Selection, new Listener()
+				{
+					public void handleEvent(Event e)
+					{
+						updates.flush();
+						
+						Path file = chooseFile(SWT.SAVE, ENCOUNTER_FILTER);
+						if (file == null)
+							return;
+						
+						try
+						{
+							engine.save(file);
+						}
+						catch (IOException ex)
+						{
+							showError("Save Encounter", "Could not save " + file + ":\n" + ex.getMessage());
+						}
+					}
+				});
+		
+		new MenuItem(fileMenu, SWT.SEPARATOR);
+		
+		MenuItem importItem = new MenuItem(fileMenu, SWT.PUSH);
+		importItem.setText("&Import CSV...");
+		importItem.addListener(SWT.Selection, new Listener()
+				{
+					public void handleEvent(Event e)
+					{
+						updates.flush();
+						
+						Path file = chooseFile(SWT.OPEN, CSV_FILTER);
+						if (file == null)
+							return;
+						
+						try
+						{
+							engine.importCsv(file);
+						}
+						catch (IOException ex)
+						{
+							showError("Import CSV", "Could not import " + file + ":\n" + ex.getMessage());
+						}
+						
+						// Creatures read before an error are kept. Kept in turn order, they may
+						// have gone in anywhere.
+						if (engine.isKeepSorted())
+							updates.tableChanged();
+						else
+							updates.rowCountChanged();
+					}
+				});
+		
+		MenuItem exportItem = new MenuItem(fileMenu, SWT.PUSH);
+		exportItem.setText("&Export CSV...");
+		exportItem.addListener(SWT.Selection, new Listener()
+				{
+					public void handleEvent(Event e)
+					{
+						updates.flush();
+						
+						Path file = chooseFile(SWT.SAVE, CSV_FILTER);
+						if (file == null)
+							return;
+						
+						try
+						{
+							engine.exportCsv(file);
+						}
+						catch (IOException ex)
+						{
+							showError("Export CSV", "Could not export " + file + ":\n" + ex.getMessage());
+						}
+					}
+				});
+		
+		// Replaces the bestiary that Add Creature picks from with a compendium's monsters
+		MenuItem bestiaryItem = new MenuItem(fileMenu, SWT.PUSH);
+		bestiaryItem.setText("Import &Bestiary...");
+		bestiaryItem.addListener(SWT.Selection, new Listener()
+				{
+					public void handleEvent(Event e)
+					{
+						Path file = chooseFile(SWT.OPEN, CSV_FILTER);
+						if (file == null)
+							return;
+						
+						int numEntries;
+						try
+						{
+							Path directory = dataDirectory();
+							Files.createDirectories(directory);
+							Path library = directory.resolve(BESTIARY_FILE);
+							numEntries = Bestiary.importCsv(file, library);
+							bestiary = Bestiary.open(library);
+						}
+						catch (IOException ex)
+						{
+							showError("Import Bestiary", "Could not import " + file + ":\n" + ex.getMessage());
+							return;
+						}
+						
+						MessageBox importedBox = new MessageBox(shell, SWT.ICON_INFORMATION | SWT.OK);
+						importedBox.setText("Import Bestiary");
+						importedBox.setMessage("Imported " + numEntries + " monsters. Start typing a name in Add Creature to pick one.");
+						importedBox.open();
+					}
+				});
+		
+		new MenuItem(fileMenu, SWT.SEPARATOR);
+		
+		MenuItem replayItem = new MenuItem(fileMenu, SWT.PUSH);
+		replayItem.setText("&Replay Session...");
+		replayItem.addListener(SWT.Selection, new Listener()
+				{
+					public void handleEvent(Event e)
+					{
+						updates.flush();
+						
+						Path file = chooseFile(SWT.OPEN, JOURNAL_FILTER);
+						if (file == null)
+							return;
+						
+						try
+						{
+							engine.replay(file);
+						}
+						catch (IOException ex)
+						{
+							showError("Replay Session", "Could not replay " + file + ":\n" + ex.getMessage());
+							return;
+						}
+						
+						updates.tableChanged();
+						showRound();
+					}
+				});
+	}
+	
+	// The Edit menu undoes and redoes changes to the encounter
+	private void createEditMenu(Menu menuBar, Table table)
+	{
+		MenuItem editHeader = new MenuItem(menuBar, SWT.CASCADE);
+		editHeader.setText("&Edit");
+		
+		Menu editMenu = new Menu(shell, SWT.DROP_DOWN);
+		editHeader.setMenu(editMenu);
+		
+		MenuItem undoItem = new MenuItem(editMenu, SWT.PUSH);
+		undoItem.setText("&Undo\tCtrl+Z");
+		undoItem.setAccelerator(SWT.MOD1 + 'Z');
+		undoItem.addListener(SWT.Selection, new Listener()
+				{
+					public void handleEvent(Event e)
+					{
+						// Edits still being typed are undone along with everything else
+						updates.flush();
+						engine.undo();
+						updates.tableChanged();
+					}
+				});
+		
+		MenuItem redoItem = new MenuItem(editMenu, SWT.PUSH);
+		redoItem.setText("&Redo\tCtrl+Y");
+		redoItem.setAccelerator(SWT.MOD1 + 'Y');
+		redoItem.addListener(SWT.Selection, new Listener()
+				{
+					public void handleEvent(Event e)
+					{
+						updates.flush();
+						engine.redo();
+						updates.tableChanged();
+					}
+				});
+		
+		new MenuItem(editMenu, SWT.SEPARATOR);
+		
+		MenuItem moveItem = new MenuItem(editMenu, SWT.PUSH);
+		moveItem.setText("&Move Selected To...\tCtrl+M");
+		moveItem.setAccelerator(SWT.MOD1 + 'M');
+		moveItem.addListener(SWT.Selection, new Listener()
+				{
+					public void handleEvent(Event e)
+					{
+						updates.flush();
+						
+						int[] rows = displayRows.getRows(table.getSelectionIndices());
+						if (rows.length == 0)
+							return;
+						
+						// Positions are in the whole turn order, shown or not
+						int lastPosition = encounter.size() - rows.length + 1;
+						NewCreatureDialog dialog = new NewCreatureDialog(shell, "Move Creatures",
+								"Enter the position to move the selected creatures to, from 1 to " + lastPosition + ".", null, null);
+						while (true)
+						{
+							if (dialog.open() == Window.CANCEL)
+								return;
+							
+							String response = dialog.getCreatureData();
+							int position;
+							if (isValidForNumericField(response) && (position = CellCodec.parseInt(response)) >= 1
+									&& position <= lastPosition)
+							{
+								moveRows(table, rows, position - 1);
+								return;
+							}
+							
+							MessageBox invalidNumberBox = new MessageBox(shell, SWT.OK);
+							invalidNumberBox.setText("Invalid number");
+							invalidNumberBox.setMessage("Field must contain a numerical value from 1 to " + lastPosition + ".");
+							invalidNumberBox.open();
+						}
+					}
+				});
+		
+		new MenuItem(editMenu, SWT.SEPARATOR);
+		
+		// Keeps creatures in turn order as their initiative changes, without pressing Sort.
+		// Moving a creature by hand turns this off.
+		MenuItem keepSortedItem = new MenuItem(editMenu, SWT.CHECK);
+		keepSortedItem.setText("&Keep Sorted");
+		keepSortedItem.addListener(SWT.Selection, new Listener()
+				{
+					public void handleEvent(Event e)
+					{
+						updates.flush();
+						engine.setKeepSorted(keepSortedItem.getSelection());
+						updates.tableChanged();
+					}
+				});
+		
+		// Only offer what the history allows, and show whether keep-sorted is still on
+		editMenu.addListener(SWT.Show, new Listener()
+				{
+					public void handleEvent(Event e)
+					{
+						undoItem.setEnabled(engine.canUndo());
+						redoItem.setEnabled(engine.canRedo());
+						keepSortedItem.setSelection(engine.isKeepSorted());
+						moveItem.setEnabled(table.getSelectionCount() > 0);
+					}
+				});
+	}
+	
+	// The Combat menu runs rounds and turns, and timed effects on creatures such as conditions
+	private void createCombatMenu(Menu menuBar, Table table)
+	{
+		MenuItem combatHeader = new MenuItem(menuBar, SWT.CASCADE);
+		combatHeader.setText("&Combat");
+		
+		Menu combatMenu = new Menu(shell, SWT.DROP_DOWN);
+		combatHeader.setMenu(combatMenu);
+		
+		MenuItem startItem = new MenuItem(combatMenu, SWT.PUSH);
+		startItem.setText("&Start Combat");
+		startItem.addListener(SWT.Selection, new Listener()
+				{
+					public void handleEvent(Event e)
+					{
+						updates.flush();
+						showExpired(engine.getTurns().start());
+						updates.tableChanged();
+						showRound();
+					}
+				});
+		
+		MenuItem nextItem = new MenuItem(combatMenu, SWT.PUSH);
+		nextItem.setText("&Next Turn\tCtrl+N");
+		nextItem.setAccelerator(SWT.MOD1 + 'N');
+		nextItem.addListener(SWT.Selection, new Listener()
+				{
+					public void handleEvent(Event e)
+					{
+						updates.flush();
+						
+						TurnTracker turns = engine.getTurns();
+						int previous = turns.getActiveRow();
+						List<TurnTracker.Effect> expired = turns.advance();
+						if (previous >= 0)
+							updates.rowChanged(previous);
+						if (turns.getActiveRow() >= 0)
+							updates.rowChanged(turns.getActiveRow());
+						
+						showRound();
+						showExpired(expired);
+					}
+				});
+		
+		new MenuItem(combatMenu, SWT.SEPARATOR);
+		
+		MenuItem effectItem = new MenuItem(combatMenu, SWT.PUSH);
+		effectItem.setText("Add &Effect...");
+		effectItem.addListener(SWT.Selection, new Listener()
+				{
+					public void handleEvent(Event e)
+					{
+						updates.flush();
+						
+						int target = table.getSelectionIndex();
+						if (target < 0 || target >= displayRows.size())
+							return;
+						target = displayRows.getRow(target);
+						
+						NewCreatureDialog dialog = new NewCreatureDialog(shell, "Add Effect",
+								"Enter the effect on " + encounter.getName(target) + ".", null, null);
+						if (dialog.open() == Window.CANCEL)
+							return;
+						String description = dialog.getCreatureData();
+						
+						dialog = new NewCreatureDialog(shell, "Add Effect",
+								"Enter the number of rounds it lasts (or leave blank for until the end of its next turn).", null, null);
+						while (true)
+						{
+							if (dialog.open() == Window.CANCEL)
+								return;
+							
+							String response = dialog.getCreatureData();
+							if (response.isEmpty())
+							{
+								engine.getTurns().addUntilEndOfNextTurn(description, target);
+								return;
+							}
+							
+							int rounds;
+							if (isValidForNumericField(response) && (rounds = CellCodec.parseInt(response)) > 0)
+							{
+								engine.getTurns().addForRounds(description, target, rounds);
+								return;
+							}
+							
+							MessageBox invalidNumberBox = new MessageBox(shell, SWT.OK);
+							invalidNumberBox.setText("Invalid number");
+							invalidNumberBox.setMessage("Field must be blank or contain a numerical value of 1 or greater.");
+							invalidNumberBox.open();
+						}
+					}
+				});
+		
+		new MenuItem(combatMenu, SWT.SEPARATOR);
+		
+		MenuItem damageItem = new MenuItem(combatMenu, SWT.PUSH);
+		damageItem.setText("&Damage Checked...");
+		damageItem.addListener(SWT.Selection, new Listener()
+				{
+					public void handleEvent(Event e)
+					{
+						applyAreaEffect(false);
+					}
+				});
+		
+		MenuItem healItem = new MenuItem(combatMenu, SWT.PUSH);
+		healItem.setText("&Heal Checked...");
+		healItem.addListener(SWT.Selection, new Listener()
+				{
+					public void handleEvent(Event e)
+					{
+						applyAreaEffect(true);
+					}
+				});
+		
+		MenuItem diceItem = new MenuItem(combatMenu, SWT.PUSH);
+		diceItem.setText("&Initiative Dice...");
+		diceItem.addListener(SWT.Selection, new Listener()
+				{
+					public void handleEvent(Event e)
+					{
+						NewCreatureDialog dialog = new NewCreatureDialog(shell, "Initiative Dice",
+								"Enter the dice rolled for initiative, where mod is the creature's modifier.",
+								engine.getInitiativeDice().toString(), null);
+						while (true)
+						{
+							if (dialog.open() == Window.CANCEL)
+								return;
+							
+							try
+							{
+								engine.setInitiativeDice(DiceExpression.compile(dialog.getCreatureData()));
+								return;
+							}
+							catch (IllegalArgumentException ex)
+							{
+								showError("Initiative Dice", ex.getMessage());
+							}
+						}
+					}
+				});
+		
+		// Identical creatures roll once and sort as one group
+		MenuItem groupItem = new MenuItem(combatMenu, SWT.CHECK);
+		groupItem.setText("&Group Initiative");
+		groupItem.addListener(SWT.Selection, new Listener()
+				{
+					public void handleEvent(Event e)
+					{
+						updates.flush();
+						engine.setGroupInitiative(groupItem.getSelection());
+						displayRows.setGrouped(groupItem.getSelection());
+						updates.tableChanged();
+					}
+				});
+		
+		// Shows every creature of the selected group in its own row, or one row for them all again
+		MenuItem expandItem = new MenuItem(combatMenu, SWT.PUSH);
+		expandItem.setText("E&xpand/Collapse Group\tCtrl+G");
+		expandItem.setAccelerator(SWT.MOD1 + 'G');
+		expandItem.addListener(SWT.Selection, new Listener()
+				{
+					public void handleEvent(Event e)
+					{
+						toggleGroup(table.getSelectionIndex());
+					}
+				});
+		
+		// Listens for player screens on -Dtracker.broadcast.port, or 7373 by default
+		MenuItem broadcastItem = new MenuItem(combatMenu, SWT.CHECK);
+		broadcastItem.setText("Broadcast to &Players");
+		broadcastItem.addListener(SWT.Selection, new Listener()
+				{
+					public void handleEvent(Event e)
+					{
+						if (broadcastItem.getSelection())
+							startBroadcast();
+						else
+							stopBroadcast();
+					}
+				});
+		
+		new MenuItem(combatMenu, SWT.SEPARATOR);
+		
+		MenuItem endItem = new MenuItem(combatMenu, SWT.PUSH);
+		endItem.setText("End Com&bat");
+		endItem.addListener(SWT.Selection, new Listener()
+				{
+					public void handleEvent(Event e)
+					{
+						engine.getTurns().stop();
+						updates.tableChanged();
+						showRound();
+					}
+				});
+		
+		// Effects can be added before combat, to start counting from round 1
+		combatMenu.addListener(SWT.Show, new Listener()
+				{
+					public void handleEvent(Event e)
+					{
+						boolean inCombat = engine.getTurns().isInCombat();
+						startItem.setEnabled(!inCombat && encounter.size() > 0);
+						nextItem.setEnabled(encounter.size() > 0);
+						effectItem.setEnabled(table.getSelectionIndex() >= 0);
+						boolean anyChecked = encounter.getNumChecked() > 0;
+						damageItem.setEnabled(anyChecked);
+						healItem.setEnabled(anyChecked);
+						groupItem.setSelection(engine.isGroupInitiative());
+						broadcastItem.setSelection(broadcaster != null);
+						endItem.setEnabled(inCombat);
+					}
+				});
+	}
+	
+	// Asks for an amount, and for damage a saving throw, and applies it to every checked creature
+	// at once
+	private void applyAreaEffect(boolean healing)
+	{
+		// Maximum number of creatures listed in the report
+		final int MAX_CREATURES_LISTED = 20;
+		
+		String title = healing ? "Heal Checked Creatures" : "Damage Checked Creatures";
+		updates.flush();
+		
+		AreaEffect effect = null;
+		NewCreatureDialog dialog = new NewCreatureDialog(shell, title,
+				"Enter the amount, as a number or dice such as 8d6 or 2d8+4.", null, null);
+		while (effect == null)
+		{
+			if (dialog.open() == Window.CANCEL)
+				return;
+			
+			try
+			{
+				effect = new AreaEffect(dialog.getCreatureData(), healing);
+			}
+			catch (IllegalArgumentException ex)
+			{
+				showError(title, ex.getMessage());
+			}
+		}
+		
+		if (!healing)
+		{
+			dialog = new NewCreatureDialog(shell, title,
+					"Enter the DC of the saving throw for half damage (or leave blank for none). "
+							+ "Each creature adds its initiative modifier to the d20.", null, null);
+			while (true)
+			{
+				if (dialog.open() == Window.CANCEL)
+					return;
+				
+				String response = dialog.getCreatureData();
+				if (response.isEmpty())
+					break;
+				
+				int dc;
+				if (isValidForNumericField(response) && (dc = CellCodec.parseInt(response)) > 0)
+				{
+					effect.setSave(dc, true);
+					break;
+				}
+				
+				MessageBox invalidNumberBox = new MessageBox(shell, SWT.OK);
+				invalidNumberBox.setText("Invalid number");
+				invalidNumberBox.setMessage("Field must be blank or contain a numerical value of 1 or greater.");
+				invalidNumberBox.open();
+			}
+			
+			// Checked creatures that are also selected can take the damage differently, such as a
+			// fire elemental caught in a fireball
+			int[] selected = displayRows.getRows(table.getSelectionIndices());
+			int numSelected = 0;
+			for (int row : selected)
+			{
+				if (encounter.isChecked(row))
+					selected[numSelected++] = row;
+			}
+			if (numSelected > 0)
+			{
+				dialog = new NewCreatureDialog(shell, title, "Enter R, V or I if the " + numSelected
+						+ " selected creatures are resistant, vulnerable or immune (or leave blank for neither).", null, null);
+				int resistance = -1;
+				while (resistance < 0)
+				{
+					if (dialog.open() == Window.CANCEL)
+						return;
+					
+					switch (dialog.getCreatureData().trim().toUpperCase())
+					{
+						case "":
+							resistance = AreaEffect.NORMAL;
+							break;
+						case "R":
+							resistance = AreaEffect.RESISTANT;
+							break;
+						case "V":
+							resistance = AreaEffect.VULNERABLE;
+							break;
+						case "I":
+							resistance = AreaEffect.IMMUNE;
+							break;
+						default:
+							showError(title, "Field must be blank or contain R, V or I.");
+					}
+				}
+				for (int i = 0; i < numSelected; i++)
+					effect.setResistance(encounter.getCreatureId(selected[i]), resistance);
+			}
+		}
+		
+		AreaEffect.Outcome outcome = engine.applyToChecked(effect);
+		int[] rows = outcome.getRows();
+		updates.rowsChanged(rows);
+		
+		StringBuilder report = new StringBuilder(64 + 32 * Math.min(rows.length, MAX_CREATURES_LISTED));
+		report.append("Rolled ").append(outcome.getAmount());
+		if (!healing)
+			report.append("; ").append(outcome.getNumSaved()).append(" of ").append(rows.length).append(" saved");
+		report.append('\n');
+		for (int i = 0; i < rows.length && i < MAX_CREATURES_LISTED; i++)
+		{
+			report.append('\n').append(encounter.getName(rows[i])).append(": ")
+					.append(healing ? -outcome.getChange(i) : outcome.getChange(i));
+			if (outcome.isSaved(i))
+				report.append(" (saved)");
+		}
+		if (rows.length > MAX_CREATURES_LISTED)
+			report.append("\n(... and ").append(rows.length - MAX_CREATURES_LISTED).append(" others)");
+		
+		MessageBox resultBox = new MessageBox(shell, SWT.ICON_INFORMATION | SWT.OK);
+		resultBox.setText(title);
+		resultBox.setMessage(report.toString());
+		resultBox.open();
+	}
+	
+	// Runs after each frame that changed anything: group totals take in the rows that changed, the
+	// cell editor follows its creature and player screens are sent the changes
+	private void frameDone(BitSet clearedRows, boolean rowsChanged)
+	{
+		// Frames that changed the rows worked the groups out again already
+		if (displayRows.isGrouped() && !rowsChanged)
+		{
+			for (int row = clearedRows.nextSetBit(0); row >= 0; row = clearedRows.nextSetBit(row + 1))
+			{
+				// A creature renamed into another group changes which rows are shown
+				if (!displayRows.updateGroup(row))
+				{
+					updates.tableChanged();
+					break;
+				}
+				
+				// A group's row shows totals that its other creatures' changes affect
+				int summaryRow = displayRows.getSummaryRow(row);
+				if (summaryRow >= 0 && !clearedRows.get(displayRows.getRow(summaryRow)))
+					table.clear(summaryRow);
+			}
+		}
+		
+		followEditor();
+		
+		if (broadcaster != null)
+			broadcaster.publish(clearedRows, rowsChanged);
+	}
+	
+	// Keeps an open cell editor over its creature's row once rows have moved, and closes it once
+	// the creature has gone or is no longer shown
+	private void followEditor()
+	{
+		Control control = editor.getEditor();
+		if (control == null || control.isDisposed())
+			return;
+		
+		int row = encounter.findCreature(editingId);
+		int displayRow = (row < 0) ? -1 : displayRows.getDisplayRow(row);
+		if (displayRow < 0)
+			control.dispose();
+		else if (displayRow < table.getItemCount() && editor.getItem() != table.getItem(displayRow))
+			editor.setEditor(control, table.getItem(displayRow), editingColumn);
+	}
+	
+	// Starts sending the turn order to player screens, then after every frame
+	private void startBroadcast()
+	{
+		final int PORT = Integer.getInteger("tracker.broadcast.port", TurnOrderBroadcaster.DEFAULT_PORT);
+		
+		if (broadcaster != null)
+			return;
+		
+		updates.flush();
+		try
+		{
+			broadcaster = new TurnOrderBroadcaster(encounter, engine.getTurns(), new InetSocketAddress(PORT), false,
+					shell.getDisplay()::asyncExec);
+		}
+		catch (IOException ex)
+		{
+			showError("Broadcast to Players", "Could not listen on port " + PORT + ":\n" + ex.getMessage());
+			return;
+		}
+		
+		MessageBox startedBox = new MessageBox(shell, SWT.ICON_INFORMATION | SWT.OK);
+		startedBox.setText("Broadcast to Players");
+		startedBox.setMessage("Player screens can connect to port " + PORT + ".");
+		startedBox.open();
+	}
+	
+	private void stopBroadcast()
+	{
+		if (broadcaster == null)
+			return;
+		
+		try
+		{
+			broadcaster.close();
+		}
+		catch (IOException ex)
+		{
+			ex.printStackTrace();
+		}
+		broadcaster = null;
+	}
+	
+	// Shows the round in the window's title while in combat
+	private void showRound()
+	{
+		int round = engine.getTurns().getRound();
+		shell.setText((round > 0) ? "D&D 5E Initiative Tracker - Round " + round : "D&D 5E Initiative Tracker");
+	}
+	
+	// Lists the effects that have just ended, if any
+	private void showExpired(List<TurnTracker.Effect> expired)
+	{
+		if (expired.isEmpty())
+			return;
+		
+		StringBuilder message = new StringBuilder("These effects have ended:\n");
+		for (TurnTracker.Effect effect : expired)
+			message.append('\n').append(effect);
+		
+		MessageBox expiredBox = new MessageBox(shell, SWT.ICON_INFORMATION | SWT.OK);
+		expiredBox.setText("Round " + engine.getTurns().getRound());
+		expiredBox.setMessage(message.toString());
+		expiredBox.open();
+	}
+	
+	// The Simulate menu plays out the encounter many times, with the checked creatures as the
+	// party, and reports how it tends to go
+	private void createSimulateMenu(Menu menuBar)
+	{
+		final int TRIALS = 100000;
+		final int ROUNDS = 10;
+		
+		// Rounds after which each creature's chance of being down is reported
+		final int[] REPORTED_ROUNDS = { 1, 3, ROUNDS };
+		
+		// Maximum number of creatures listed in the report
+		final int MAX_CREATURES_LISTED = 20;
+		
+		MenuItem simulateHeader = new MenuItem(menuBar, SWT.CASCADE);
+		simulateHeader.setText("&Simulate");
+		
+		Menu simulateMenu = new Menu(shell, SWT.DROP_DOWN);
+		simulateHeader.setMenu(simulateMenu);
+		
+		MenuItem simulateItem = new MenuItem(simulateMenu, SWT.PUSH);
+		simulateItem.setText("Simulate &Encounter...");
+		simulateItem.addListener(SWT.Selection, new Listener()
+				{
+					public void handleEvent(Event e)
+					{
+						updates.flush();
+						
+						if (encounter.size() == 0)
+							return;
+						
+						EncounterSimulator simulator = engine.newSimulator(encounter.getCheckedRows());
+						String[] names = new String[Math.min(encounter.size(), MAX_CREATURES_LISTED)];
+						for (int i = 0; i < names.length; i++)
+							names[i] = encounter.getName(i);
+						int numCreatures = encounter.size();
+						long seed = new Random().nextLong();
+						
+						shell.setCursor(shell.getDisplay().getSystemCursor(SWT.CURSOR_WAIT));
+						
+						// Trials run on the fork-join pool so the window keeps responding
+						Display display = shell.getDisplay();
+						ForkJoinPool.commonPool().execute(() -> {
+							String report;
+							try
+							{
+								EncounterSimulator.Result result = simulator.simulate(TRIALS, ROUNDS, seed);
+								
+								StringBuilder builder = new StringBuilder(128 + 96 * names.length);
+								builder.append(TRIALS).append(" trials of ").append(ROUNDS)
+										.append(" rounds, with the checked creatures as the party (seed ").append(seed).append(")\n");
+								builder.append("\nCreature: average turn, chance to act before the party, chance down after round");
+								for (int round : REPORTED_ROUNDS)
+									builder.append(' ').append(round);
+								builder.append('\n');
+								
+								for (int i = 0; i < names.length; i++)
+								{
+									builder.append('\n').append(names[i]).append(": ")
+											.append(String.format("%.1f, %.0f%%,", result.getExpectedTurnPosition(i) + 1,
+													100 * result.getProbabilityBeforeParty(i)));
+									for (int round : REPORTED_ROUNDS)
+										builder.append(String.format(" %.0f%%", 100 * result.getProbabilityDown(i, round - 1)));
+								}
+								
+								if (numCreatures > names.length)
+									builder.append("\n(... and ").append(numCreatures - names.length).append(" others)");
+								
+								report = builder.toString();
+							}
+							catch (RuntimeException ex)
+							{
+								display.asyncExec(() -> {
+									if (shell.isDisposed())
+										return;
+									
+									shell.setCursor(null);
+									showError("Simulate Encounter", "Could not simulate the encounter:\n" + ex);
+								});
+								return;
+							}
+							
+							display.asyncExec(() -> {
+								if (shell.isDisposed())
+									return;
+								
+								shell.setCursor(null);
+								MessageBox resultBox = new MessageBox(shell, SWT.ICON_INFORMATION | SWT.OK);
+								resultBox.setText("Simulate Encounter");
+								resultBox.setMessage(report);
+								resultBox.open();
+							});
+						});
+					}
+				});
+	}
+	
+	// Asks the user for a file to open or save, returning null if they cancel
+	private Path chooseFile(int style, String[] filterExtensions)
+	{
+		FileDialog fileDialog = new FileDialog(shell, style);
+		fileDialog.setFilterExtensions(filterExtensions);
+		fileDialog.setOverwrite(true);
+		
+		String fileName = fileDialog.open();
+		return (fileName == null) ? null : Paths.get(fileName);
+	}
+	
+	private void showError(String title, String message)
+	{
+		MessageBox errorBox = new MessageBox(shell, SWT.ICON_ERROR | SWT.OK);
+		errorBox.setText(title);
+		errorBox.setMessage(message);
+		errorBox.open();
+	}
+	
+	// Creates and adds listeners for all buttons in the shell.
+	private void createButtons(Table table, int numGridCols)
+	{
+		createUpButton(table, numGridCols);
+		
+		createAddButton(table, numGridCols);
+		createAddMultButton(table, numGridCols);
+		createRemoveButton(table, numGridCols);
+		createSortButton(table, numGridCols);
+		
+		createDownButton(table, numGridCols);
+		
+		createFindField(table, numGridCols);
+		fillEmptySpace(2, false, false);
+		
+		createRollButton(table, numGridCols);
+	}
+	
+	// The find field narrows the table to the creatures with a word in their name that starts
+	// with what is typed, such as "orc" for every Orc Archer copy or "orc archer 3" for the
+	// third. Enter checks them, so a whole group can be rolled for or damaged.
+	private void createFindField(Table table, int numGridCols)
+	{
+		GridData fieldData = new GridData();
+		fieldData.horizontalAlignment = GridData.FILL;
+		fieldData.horizontalSpan = numGridCols / 8;
+		
+		Text findField = new Text(shell, SWT.SEARCH | SWT.ICON_CANCEL);
+		findField.setMessage("Find creature");
+		findField.setToolTipText("Show only the creatures with a name like this; press Enter to check them");
+		findField.setLayoutData(fieldData);
+		
+		findField.addListener(SWT.Modify, new Listener()
+				{
+					public void handleEvent(Event e)
+					{
+						// Selected table rows would show other creatures once the rows change
+						updates.flush();
+						table.deselectAll();
+						displayRows.setFilter(findField.getText());
+						updates.tableChanged();
+					}
+				});
+		
+		findField.addListener(SWT.DefaultSelection, new Listener()
+				{
+					public void handleEvent(Event e)
+					{
+						if (e.detail == SWT.ICON_CANCEL)
+						{
+							findField.setText("");
+							return;
+						}
+						if (findField.getText().trim().isEmpty())
+							return;
+						
+						int[] rows = encounter.findByName(findField.getText());
+						for (int row : rows)
+							engine.setChecked(row, true);
+						updates.rowsChanged(rows);
+					}
+				});
+	}
+	
+	// Roll initiative for all creatures that the user checked
+	// Rolls a d20 (two, with advantage or disadvantage) and adds the creature's initiative modifier.
+	// The whole batch is rolled first and the table is updated once afterwards.
+	private void rollInitiativeForCheckedCreatures(Table table, int mode)
+	{
+		long start = System.nanoTime();
+		int[] rolledRows = engine.rollChecked(mode);
+		if (rolledRows.length == 0)
+			return;
+		
+		if (engine.isKeepSorted())
+			updates.tableChanged();
+		else
+			updates.rowsChanged(rolledRows);
+		
+		metrics.record(TrackerMetrics.ROLL, start);
+		metrics.rolled(rolledRows.length, engine.getLastRollSeed());
 	}
 }
 
@@ -767,6 +2044,9 @@ class NewCreatureDialog extends InputDialog
 {
 	private String inputString;
 	
+	// Type-ahead for the text, or null for none
+	private IContentProposalProvider proposals;
+	
 	public NewCreatureDialog(Shell parentShell, String dialogTitle, String dialogMessage, String initialValue,
 			IInputValidator validator)
 	{
@@ -786,4 +2066,22 @@ class NewCreatureDialog extends InputDialog
 	{
 		return inputString;
 	}
+	
+	// Offers type-ahead from provider as the text is typed. Must be called before open.
+	public void setProposals(IContentProposalProvider provider)
+	{
+		proposals = provider;
+	}
+	
+	protected Control createDialogArea(Composite parent)
+	{
+		Control area = super.createDialogArea(parent);
+		if (proposals != null)
+		{
+			// With no key stroke or activation characters, any letter or digit typed opens the list
+			ContentProposalAdapter adapter = new ContentProposalAdapter(getText(), new TextContentAdapter(), proposals, null, null);
+			adapter.setProposalAcceptanceStyle(ContentProposalAdapter.PROPOSAL_REPLACE);
+		}
+		return area;
+	}
 }
\ No newline at end of file
@@ -0,0 +1,636 @@
+/* ********************************************************************************************
+ * TurnOrderBroadcaster.java
+ *
+ * Sends the turn order to player screens over the network as it changes. Each client gets a
+ * full snapshot when it connects and then only what changed: creatures whose shown fields
+ * changed, the part of the order that moved, and the round and whose turn it is.
+ *
+ * A client picks its view with one byte when it connects. The player view shows each
+ * creature's name, initiative and whether it is healthy, bloodied or down; the full view adds
+ * HP and AC, and is only given to clients on the same machine unless allowed for everyone.
+ *
+ * publish works out the changes by comparing the rows it is told changed with what was last
+ * sent, or every row and the order when rows were added, removed or moved, as the tracker's
+ * redraw frames report them (see UpdateScheduler.FrameListener). A frame that changes a few
+ * creatures costs as much as those creatures, whatever the size of the encounter, and only
+ * creatures whose shown fields changed are copied. It must be called on the thread that
+ * changes the encounter, which the tracker's window does after each frame.
+ *
+ * Snapshots are only built when a client connects, on the encounter's thread through the
+ * executor given, from what was last sent, so that the changes sent after a snapshot follow
+ * on from it. Sending happens on a thread of its own with a single non-blocking selector, so a
+ * slow client never holds up the tracker or the other clients; one that falls too far behind
+ * is dropped and can reconnect for a fresh snapshot.
+ *
+ * Every message is a type byte, an int length and a payload, written big-endian:
+ *
+ *     SNAPSHOT    round, active creature id, number of rows, then each row in turn order
+ *     ROWS        number of rows, then each row whose shown fields changed
+ *     ORDER       new number of rows, rows kept from the start, then the ids in between; the
+ *                 rest are kept from the end of the old order
+ *     TURN        round, active creature id
+ *
+ * A row is its creature id, name (as writeUTF), and initiative, followed by HP, max HP and AC
+ * in the full view, or one HEALTHY, BLOODIED or DOWN byte in the player view.
+ * ******************************************************************************************** */
+
+package tracker;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class TurnOrderBroadcaster implements Closeable
+{
+
+	// Views, as sent by a client when it connects
+	public static final int PLAYER_VIEW = 0;
+	public static final int FULL_VIEW = 1;
+	private static final int NUM_VIEWS = 2;
+
+	// Message types
+	public static final int SNAPSHOT = 1;
+	public static final int ROWS = 2;
+	public static final int ORDER = 3;
+	public static final int TURN = 4;
+
+	// Health shown in the player view
+	public static final int HEALTHY = 0;
+	public static final int BLOODIED = 1;
+	public static final int DOWN = 2;
+
+	public static final int DEFAULT_PORT = 7373;
+
+	// Clients with more than this many bytes waiting to be sent are dropped
+	private static final int MAX_BACKLOG = 1 << 20;
+
+	private final Encounter encounter;
+	private final TurnTracker turns;
+	private final boolean fullViewForAll;
+
+	// Runs tasks on the thread that changes the encounter, such as Display.asyncExec
+	private final Executor encounterThread;
+
+	// What was last published, by creature id, and the order and turn; only touched on the
+	// encounter's thread
+	private final HashMap<Integer, PublishedRow> published;
+	private int[] publishedOrder;
+	private int publishedRound;
+	private int publishedActiveId;
+	private boolean hasPublished;
+
+	// Updates waiting to be sent, handed from the encounter's thread to the network thread
+	private final ConcurrentLinkedQueue<Update> updates;
+
+	// Per view, whether a snapshot has been asked for and not yet built
+	private final AtomicBoolean[] snapshotWanted;
+
+	private final ServerSocketChannel server;
+	private final Selector selector;
+	private final Thread thread;
+	private volatile boolean closed;
+	private volatile int numClients;
+
+	// Listens on address and starts sending. Full views are given to clients on other machines
+	// only if fullViewForAll is set. Snapshots for clients that connect are built by tasks given
+	// to encounterThread.
+	public TurnOrderBroadcaster(Encounter encounter, TurnTracker turns, InetSocketAddress address,
+			boolean fullViewForAll, Executor encounterThread) throws IOException
+	{
+		this.encounter = encounter;
+		this.turns = turns;
+		this.fullViewForAll = fullViewForAll;
+		this.encounterThread = encounterThread;
+
+		published = new HashMap<Integer, PublishedRow>();
+		publishedOrder = new int[0];
+		updates = new ConcurrentLinkedQueue<Update>();
+		snapshotWanted = new AtomicBoolean[NUM_VIEWS];
+		for (int view = 0; view < NUM_VIEWS; view++)
+			snapshotWanted[view] = new AtomicBoolean();
+
+		selector = Selector.open();
+		server = ServerSocketChannel.open();
+		try
+		{
+			server.bind(address);
+			server.configureBlocking(false);
+			server.register(selector, SelectionKey.OP_ACCEPT);
+		}
+		catch (IOException e)
+		{
+			server.close();
+			selector.close();
+			throw e;
+		}
+
+		// What there is before anyone can connect
+		publish(null, true);
+
+		thread = new Thread(this::run, "Turn order broadcaster");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	// Address being listened on, with the port chosen if it was 0
+	public InetSocketAddress getAddress() throws IOException
+	{
+		return (InetSocketAddress) server.getLocalAddress();
+	}
+
+	public int getNumClients()
+	{
+		return numClients;
+	}
+
+	// Sends what has changed since the last call to every client: the creatures in changedRows,
+	// or every creature and the order as well if rowsChanged is set, and the turn
+	public void publish(BitSet changedRows, boolean rowsChanged)
+	{
+		if (closed)
+			return;
+
+		ByteArrayOutputStream[] rows = new ByteArrayOutputStream[NUM_VIEWS];
+		int[] numRows = new int[NUM_VIEWS];
+		try
+		{
+			DataOutputStream[] rowOut = new DataOutputStream[NUM_VIEWS];
+			for (int view = 0; view < NUM_VIEWS; view++)
+			{
+				rows[view] = new ByteArrayOutputStream();
+				rowOut[view] = new DataOutputStream(rows[view]);
+			}
+
+			int size = encounter.size();
+			byte[] orderMessage = null;
+			if (rowsChanged)
+			{
+				int[] order = new int[size];
+				for (int row = 0; row < size; row++)
+				{
+					order[row] = encounter.getCreatureId(row);
+					publishRow(row, rowOut, numRows);
+				}
+
+				// Forget creatures that have gone
+				if (published.size() > size)
+				{
+					HashSet<Integer> present = new HashSet<Integer>(2 * size);
+					for (int id : order)
+						present.add(id);
+					published.keySet().retainAll(present);
+				}
+
+				orderMessage = orderMessage(order);
+				publishedOrder = order;
+			}
+			else
+			{
+				for (int row = changedRows.nextSetBit(0); row >= 0 && row < size; row = changedRows.nextSetBit(row + 1))
+					publishRow(row, rowOut, numRows);
+			}
+
+			byte[][] deltas = new byte[NUM_VIEWS][];
+			byte[] turnMessage = turnMessage();
+			for (int view = 0; view < NUM_VIEWS; view++)
+			{
+				ByteArrayOutputStream delta = new ByteArrayOutputStream();
+				DataOutputStream out = new DataOutputStream(delta);
+				if (numRows[view] > 0)
+				{
+					out.writeByte(ROWS);
+					out.writeInt(4 + rows[view].size());
+					out.writeInt(numRows[view]);
+					rows[view].writeTo(out);
+				}
+				if (orderMessage != null)
+					out.write(orderMessage);
+				if (turnMessage != null)
+					out.write(turnMessage);
+				out.flush();
+
+				if (delta.size() > 0)
+					deltas[view] = delta.toByteArray();
+			}
+
+			// Called from the constructor, before anyone can connect
+			if (!hasPublished)
+			{
+				hasPublished = true;
+				return;
+			}
+			if (deltas[PLAYER_VIEW] == null && deltas[FULL_VIEW] == null)
+				return;
+
+			updates.add(new Update(deltas, -1));
+			selector.wakeup();
+		}
+		catch (IOException e)
+		{
+			// Nothing to fail when writing to memory
+			throw new IllegalStateException(e);
+		}
+	}
+
+	// Compares a creature with what was last sent, and if it changed, writes it for each view it
+	// shows differently in
+	private void publishRow(int row, DataOutputStream[] rowOut, int[] numRows) throws IOException
+	{
+		int id = encounter.getCreatureId(row);
+		PublishedRow old = published.get(id);
+		if (old != null && old.fullEquals(encounter, row))
+			return;
+
+		PublishedRow now = new PublishedRow(encounter, row);
+		published.put(id, now);
+		for (int view = 0; view < NUM_VIEWS; view++)
+		{
+			if (view == PLAYER_VIEW && old != null && old.playerEquals(now))
+				continue;
+
+			now.write(rowOut[view], id, view);
+			numRows[view]++;
+		}
+	}
+
+	// Asks the encounter's thread for a snapshot of a view, unless one is already on its way;
+	// called on the network thread
+	private void requestSnapshot(int view)
+	{
+		if (snapshotWanted[view].compareAndSet(false, true))
+			encounterThread.execute(() -> publishSnapshot(view));
+	}
+
+	// Sends a snapshot of what was last published to the clients waiting for one of a view
+	private void publishSnapshot(int view)
+	{
+		snapshotWanted[view].set(false);
+		if (closed)
+			return;
+
+		try
+		{
+			byte[][] snapshot = new byte[NUM_VIEWS][];
+			snapshot[view] = snapshot(view);
+			updates.add(new Update(snapshot, view));
+			selector.wakeup();
+		}
+		catch (IOException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+
+	// Stops listening and disconnects every client
+	@Override
+	public void close() throws IOException
+	{
+		closed = true;
+		selector.wakeup();
+		try
+		{
+			thread.join();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	// The part of the order that changed, or null if none did
+	private byte[] orderMessage(int[] order) throws IOException
+	{
+		int oldSize = publishedOrder.length;
+		int size = order.length;
+		int limit = Math.min(oldSize, size);
+
+		int first = 0;
+		while (first < limit && order[first] == publishedOrder[first])
+			first++;
+		if (first == limit && oldSize == size)
+			return null;
+
+		int kept = 0;
+		while (kept < limit - first && order[size - 1 - kept] == publishedOrder[oldSize - 1 - kept])
+			kept++;
+
+		int count = size - first - kept;
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(17 + 4 * count);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(ORDER);
+		out.writeInt(12 + 4 * count);
+		out.writeInt(size);
+		out.writeInt(first);
+		out.writeInt(count);
+		for (int i = first; i < first + count; i++)
+			out.writeInt(order[i]);
+		return bytes.toByteArray();
+	}
+
+	// The round and whose turn it is, or null if neither changed
+	private byte[] turnMessage() throws IOException
+	{
+		int round = turns.getRound();
+		int active = turns.getActiveRow();
+		int activeId = (active >= 0) ? encounter.getCreatureId(active) : 0;
+		if (round == publishedRound && activeId == publishedActiveId)
+			return null;
+
+		publishedRound = round;
+		publishedActiveId = activeId;
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(13);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(TURN);
+		out.writeInt(8);
+		out.writeInt(round);
+		out.writeInt(activeId);
+		return bytes.toByteArray();
+	}
+
+	private byte[] snapshot(int view) throws IOException
+	{
+		ByteArrayOutputStream rows = new ByteArrayOutputStream(32 * publishedOrder.length);
+		DataOutputStream rowOut = new DataOutputStream(rows);
+		for (int id : publishedOrder)
+			published.get(id).write(rowOut, id, view);
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(17 + rows.size());
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(SNAPSHOT);
+		out.writeInt(12 + rows.size());
+		out.writeInt(publishedRound);
+		out.writeInt(publishedActiveId);
+		out.writeInt(publishedOrder.length);
+		rows.writeTo(out);
+		return bytes.toByteArray();
+	}
+
+	// The network thread: accepts clients, reads the view each asks for, and sends updates
+	private void run()
+	{
+		try
+		{
+			while (!closed)
+			{
+				selector.select();
+
+				// A snapshot goes to the clients waiting for it, who then get the changes after it
+				for (Update update; (update = updates.poll()) != null;)
+				{
+					for (SelectionKey key : selector.keys())
+					{
+						Client client = (Client) key.attachment();
+						if (client == null || client.view < 0 || update.messages[client.view] == null)
+							continue;
+						if (client.waiting == (update.snapshotView == client.view))
+						{
+							client.send(update.messages[client.view]);
+							client.waiting = false;
+						}
+					}
+				}
+
+				Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+				while (selected.hasNext())
+				{
+					SelectionKey key = selected.next();
+					selected.remove();
+					if (!key.isValid())
+						continue;
+
+					if (key.isAcceptable())
+						accept();
+					else
+					{
+						Client client = (Client) key.attachment();
+						if (key.isReadable())
+							client.read();
+						if (key.isValid() && key.isWritable())
+							client.flush();
+					}
+				}
+			}
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+		finally
+		{
+			for (SelectionKey key : selector.keys())
+				closeQuietly(key);
+			try
+			{
+				selector.close();
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+			numClients = 0;
+		}
+	}
+
+	private void accept() throws IOException
+	{
+		SocketChannel channel = server.accept();
+		if (channel == null)
+			return;
+
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+		SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+		key.attach(new Client(key, channel));
+		numClients++;
+	}
+
+	private void closeQuietly(SelectionKey key)
+	{
+		key.cancel();
+		try
+		{
+			key.channel().close();
+		}
+		catch (IOException e)
+		{
+			// Already gone
+		}
+	}
+
+	// A connected player screen and what is waiting to be sent to it
+	private class Client
+	{
+		private final SelectionKey key;
+		private final SocketChannel channel;
+		private final ArrayDeque<ByteBuffer> pending = new ArrayDeque<ByteBuffer>();
+		private final ByteBuffer in = ByteBuffer.allocate(64);
+		private int backlog;
+
+		// View asked for, or -1 until the client has said, and whether it is waiting for its
+		// snapshot
+		int view = -1;
+		boolean waiting;
+
+		Client(SelectionKey key, SocketChannel channel)
+		{
+			this.key = key;
+			this.channel = channel;
+		}
+
+		// Takes the view from the first byte sent; anything after that is ignored
+		void read()
+		{
+			try
+			{
+				in.clear();
+				if (channel.read(in) < 0)
+				{
+					drop();
+					return;
+				}
+				if (view >= 0 || in.position() == 0)
+					return;
+
+				int asked = in.get(0);
+				boolean local = ((InetSocketAddress) channel.getRemoteAddress()).getAddress().isLoopbackAddress();
+				view = (asked == FULL_VIEW && (local || fullViewForAll)) ? FULL_VIEW : PLAYER_VIEW;
+				waiting = true;
+				requestSnapshot(view);
+			}
+			catch (IOException e)
+			{
+				drop();
+			}
+		}
+
+		void send(byte[] message)
+		{
+			if (!key.isValid())
+				return;
+
+			backlog += message.length;
+			if (backlog > MAX_BACKLOG)
+			{
+				drop();
+				return;
+			}
+
+			pending.add(ByteBuffer.wrap(message));
+			flush();
+		}
+
+		void flush()
+		{
+			try
+			{
+				while (!pending.isEmpty())
+				{
+					ByteBuffer next = pending.peek();
+					channel.write(next);
+					if (next.hasRemaining())
+						break;
+
+					backlog -= next.capacity();
+					pending.poll();
+				}
+				key.interestOps(pending.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			}
+			catch (IOException e)
+			{
+				drop();
+			}
+		}
+
+		void drop()
+		{
+			if (key.isValid())
+				numClients--;
+			closeQuietly(key);
+		}
+	}
+
+	// One publish's changes by view, or a snapshot of one view
+	private static class Update
+	{
+		final byte[][] messages;
+
+		// View the message is a snapshot of, or -1 for changes
+		final int snapshotView;
+
+		Update(byte[][] messages, int snapshotView)
+		{
+			this.messages = messages;
+			this.snapshotView = snapshotView;
+		}
+	}
+
+	// A creature's fields as last sent
+	private static final class PublishedRow
+	{
+		final String name;
+		final int init;
+		final int hpCurrent;
+		final int hpMax;
+		final int ac;
+
+		PublishedRow(Encounter encounter, int row)
+		{
+			name = encounter.getName(row);
+			init = encounter.getInit(row);
+			hpCurrent = encounter.getHPCurrent(row);
+			hpMax = encounter.getHPMax(row);
+			ac = encounter.getAC(row);
+		}
+
+		int health()
+		{
+			if (hpCurrent <= 0)
+				return DOWN;
+			return (2 * hpCurrent <= hpMax) ? BLOODIED : HEALTHY;
+		}
+
+		boolean playerEquals(PublishedRow other)
+		{
+			return init == other.init && health() == other.health() && name.equals(other.name);
+		}
+
+		// Whether the creature in an encounter row still has these fields, compared in place so
+		// that unchanged rows cost nothing
+		boolean fullEquals(Encounter encounter, int row)
+		{
+			return init == encounter.getInit(row) && hpCurrent == encounter.getHPCurrent(row)
+					&& hpMax == encounter.getHPMax(row) && ac == encounter.getAC(row) && name.equals(encounter.getName(row));
+		}
+
+		void write(DataOutputStream out, int id, int view) throws IOException
+		{
+			out.writeInt(id);
+			out.writeUTF(name);
+			out.writeInt(init);
+			if (view == FULL_VIEW)
+			{
+				out.writeInt(hpCurrent);
+				out.writeInt(hpMax);
+				out.writeInt(ac);
+			}
+			else
+				out.writeByte(health());
+		}
+	}
+}
@@ -0,0 +1,234 @@
+/* ********************************************************************************************
+ * TurnOrderClient.java
+ *
+ * A player screen's end of the turn order broadcast: connects to a TurnOrderBroadcaster, asks
+ * for a view, and keeps a copy of the turn order up to date from the snapshot and the changes
+ * that follow it. Run on its own, it prints the turn order each time it changes.
+ *
+ * Reading blocks, so a client is meant to have a thread of its own.
+ * ******************************************************************************************** */
+
+package tracker;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+
+public class TurnOrderClient implements Closeable
+{
+
+	private final SocketChannel channel;
+	private final DataInputStream in;
+	private final int view;
+
+	// Creature ids in turn order, and each creature's row as last sent
+	private int[] order = new int[0];
+	private final HashMap<Integer, Row> rows = new HashMap<Integer, Row>();
+
+	private int round;
+	private int activeId;
+
+	// Connects and asks for a view, one of the TurnOrderBroadcaster views. Clients on other
+	// machines may be given the player view instead of the full one.
+	public TurnOrderClient(InetSocketAddress address, int view) throws IOException
+	{
+		channel = SocketChannel.open(address);
+		channel.socket().setTcpNoDelay(true);
+		in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+
+		ByteBuffer request = ByteBuffer.allocate(1);
+		request.put((byte) view).flip();
+		while (request.hasRemaining())
+			channel.write(request);
+		this.view = view;
+	}
+
+	// Waits for the next message and applies it. Returns its type.
+	public int read() throws IOException
+	{
+		int type = in.readByte();
+		int length = in.readInt();
+		switch (type)
+		{
+			case TurnOrderBroadcaster.SNAPSHOT:
+				round = in.readInt();
+				activeId = in.readInt();
+				int size = in.readInt();
+				order = new int[size];
+				rows.clear();
+				for (int i = 0; i < size; i++)
+					order[i] = readRow();
+				break;
+
+			case TurnOrderBroadcaster.ROWS:
+				int count = in.readInt();
+				for (int i = 0; i < count; i++)
+					readRow();
+				break;
+
+			case TurnOrderBroadcaster.ORDER:
+				int newSize = in.readInt();
+				int first = in.readInt();
+				int changed = in.readInt();
+				int[] newOrder = Arrays.copyOf(order, newSize);
+				int kept = newSize - first - changed;
+				System.arraycopy(order, order.length - kept, newOrder, first + changed, kept);
+				for (int i = first; i < first + changed; i++)
+					newOrder[i] = in.readInt();
+
+				// Creatures no longer in the order are forgotten, as the broadcaster forgets them
+				if (newSize < rows.size())
+				{
+					HashMap<Integer, Row> present = new HashMap<Integer, Row>(2 * newSize);
+					for (int id : newOrder)
+						present.put(id, rows.get(id));
+					rows.clear();
+					rows.putAll(present);
+				}
+				order = newOrder;
+				break;
+
+			case TurnOrderBroadcaster.TURN:
+				round = in.readInt();
+				activeId = in.readInt();
+				break;
+
+			default:
+				in.skipBytes(length);
+		}
+		return type;
+	}
+
+	public int size()
+	{
+		return order.length;
+	}
+
+	// Round being played, or 0 when not in combat
+	public int getRound()
+	{
+		return round;
+	}
+
+	// Row of the creature whose turn it is, or -1 if none
+	public int getActiveRow()
+	{
+		for (int i = 0; i < order.length; i++)
+		{
+			if (order[i] == activeId)
+				return i;
+		}
+		return -1;
+	}
+
+	public String getName(int row)
+	{
+		return rows.get(order[row]).name;
+	}
+
+	public int getInit(int row)
+	{
+		return rows.get(order[row]).init;
+	}
+
+	// HP, max HP and AC are only sent in the full view, and are 0 otherwise
+	public int getHPCurrent(int row)
+	{
+		return rows.get(order[row]).hpCurrent;
+	}
+
+	public int getHPMax(int row)
+	{
+		return rows.get(order[row]).hpMax;
+	}
+
+	public int getAC(int row)
+	{
+		return rows.get(order[row]).ac;
+	}
+
+	// One of the TurnOrderBroadcaster health values
+	public int getHealth(int row)
+	{
+		return rows.get(order[row]).health;
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		channel.close();
+	}
+
+	// Reads a row and returns its creature id
+	private int readRow() throws IOException
+	{
+		int id = in.readInt();
+		Row row = new Row();
+		row.name = in.readUTF();
+		row.init = in.readInt();
+		if (view == TurnOrderBroadcaster.FULL_VIEW)
+		{
+			row.hpCurrent = in.readInt();
+			row.hpMax = in.readInt();
+			row.ac = in.readInt();
+			if (row.hpCurrent <= 0)
+				row.health = TurnOrderBroadcaster.DOWN;
+			else
+				row.health = (2 * row.hpCurrent <= row.hpMax) ? TurnOrderBroadcaster.BLOODIED : TurnOrderBroadcaster.HEALTHY;
+		}
+		else
+			row.health = in.readByte();
+		rows.put(id, row);
+		return id;
+	}
+
+	private static class Row
+	{
+		String name;
+		int init;
+		int hpCurrent;
+		int hpMax;
+		int ac;
+		int health;
+	}
+
+	// Prints the turn order from a broadcaster each time it changes:
+	// TurnOrderClient [host [port]]
+	public static void main(String[] args) throws IOException
+	{
+		final String[] HEALTH = { "", " (bloodied)", " (down)" };
+
+		String host = (args.length > 0) ? args[0] : "localhost";
+		int port = (args.length > 1) ? CellCodec.parseInt(args[1]) : TurnOrderBroadcaster.DEFAULT_PORT;
+
+		try (TurnOrderClient client = new TurnOrderClient(new InetSocketAddress(host, port), TurnOrderBroadcaster.PLAYER_VIEW))
+		{
+			while (true)
+			{
+				client.read();
+				if (client.in.available() > 0)
+					continue;
+
+				StringBuilder text = new StringBuilder();
+				if (client.getRound() > 0)
+					text.append("Round ").append(client.getRound()).append('\n');
+				int active = client.getActiveRow();
+				for (int i = 0; i < client.size(); i++)
+				{
+					text.append((i == active) ? "> " : "  ").append(client.getName(i));
+					if (client.getInit(i) != Encounter.NO_INIT)
+						text.append(' ').append(client.getInit(i));
+					text.append(HEALTH[client.getHealth(i)]).append('\n');
+				}
+				System.out.println(text);
+			}
+		}
+	}
+}
@@ -0,0 +1,428 @@
+/* ********************************************************************************************
+ * TurnTracker.java
+ *
+ * Keeps track of whose turn it is and which round it is once combat starts, and of timed
+ * effects such as conditions and spells that end after so many rounds or at the end of some
+ * creature's turn.
+ *
+ * Effects wait in a timing wheel: a ring of buckets, one per round, with an effect due in round
+ * r kept in bucket r mod WHEEL_SIZE. Within a bucket, effects are grouped by the creature whose
+ * turn they end on and whether they end at the start or the end of it. Each turn only looks up
+ * the two groups for the creature whose turn ends and the creature whose turn starts, so moving
+ * on a turn costs the same however many effects are waiting. Effects more than WHEEL_SIZE rounds
+ * away share a bucket with nearer ones and are passed over until their own round comes up. At
+ * the end of each round, whatever is left in its bucket that was due by then also ends, such as
+ * an effect on a creature that was moved above the active row before its turn came up.
+ *
+ * Creatures are followed by their ids rather than their rows, so turns and effects stay with the
+ * right creature when rows are moved, sorted, added or removed. Effects timed by the turn of a
+ * creature that is removed go on to the creature after it.
+ * ******************************************************************************************** */
+
+package tracker;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+public class TurnTracker
+{
+
+	// When in its creature's turn an effect ends
+	public static final int START_OF_TURN = 0;
+	public static final int END_OF_TURN = 1;
+
+	// Number of buckets in the wheel; must be a power of two
+	private static final int WHEEL_SIZE = 64;
+
+	private final Encounter encounter;
+	private final Bucket[] wheel;
+
+	// Round being played, from 1; 0 when not in combat
+	private int round;
+
+	// Creature whose turn it is, and the row it was last seen in
+	private int activeId;
+	private int activeRow;
+
+	// Set once the active creature is removed: the creature whose turn comes next, or 0 if the
+	// round ends instead
+	private boolean activeRemoved;
+	private int successorId;
+
+	public TurnTracker(Encounter encounter)
+	{
+		this.encounter = encounter;
+		wheel = new Bucket[WHEEL_SIZE];
+		for (int i = 0; i < WHEEL_SIZE; i++)
+			wheel[i] = new Bucket();
+	}
+
+	public boolean isInCombat()
+	{
+		return round > 0;
+	}
+
+	// Round being played, counting from 1, or 0 when not in combat
+	public int getRound()
+	{
+		return round;
+	}
+
+	// Row of the creature whose turn it is, or -1 if not in combat or that creature has been
+	// removed
+	public int getActiveRow()
+	{
+		if (round == 0)
+			return -1;
+
+		int row = encounter.findCreature(activeId);
+		if (row >= 0)
+			activeRow = row;
+		return row;
+	}
+
+	// Starts round 1 with the creature in the first row, and returns the effects that end at the
+	// start of its turn. Effects added before combat are kept.
+	public List<Effect> start()
+	{
+		List<Effect> expired = new ArrayList<Effect>();
+		round = 1;
+		if (encounter.size() == 0)
+		{
+			activeId = 0;
+			activeRow = -1;
+			activeRemoved = false;
+			return expired;
+		}
+
+		beginTurn(0, expired);
+		return expired;
+	}
+
+	// Ends the current creature's turn and starts the next one's, going on to the next round
+	// after the last row. Returns the effects that ended, in the order they ended. If the current
+	// creature has been removed, the turn passes to the creature that came after it.
+	public List<Effect> advance()
+	{
+		if (round == 0)
+			return start();
+
+		List<Effect> expired = new ArrayList<Effect>();
+
+		int next;
+		int row = encounter.findCreature(activeId);
+		if (row >= 0)
+		{
+			expire(activeId, END_OF_TURN, expired);
+			next = row + 1;
+		}
+		else if (activeRemoved)
+		{
+			int successorRow = encounter.findCreature(successorId);
+			next = (successorRow >= 0) ? successorRow : encounter.size();
+		}
+		else
+			next = Math.max(activeRow, 0);
+
+		if (encounter.size() == 0)
+		{
+			activeId = 0;
+			activeRow = -1;
+			activeRemoved = false;
+			return expired;
+		}
+
+		if (next >= encounter.size())
+		{
+			expireOverdue(expired);
+			next = 0;
+			round++;
+		}
+
+		beginTurn(next, expired);
+		return expired;
+	}
+
+	// Ends combat, dropping every effect still waiting
+	public void stop()
+	{
+		round = 0;
+		activeId = 0;
+		activeRow = -1;
+		activeRemoved = false;
+		for (Bucket bucket : wheel)
+			bucket.clear();
+	}
+
+	// Call before removing the creatures in rows. If the active creature is removed, the turn
+	// goes on to the next remaining creature when advanced. Effects that end at the start of a
+	// removed creature's turn end at the start of the next remaining creature's instead, and
+	// effects that end at the end of its own turn are dropped.
+	public void removing(BitSet rows)
+	{
+		if (round > 0)
+		{
+			// The creature next in line may itself be removed, once or again
+			int pendingRow = encounter.findCreature(activeRemoved ? successorId : activeId);
+			if (pendingRow >= 0 && rows.get(pendingRow))
+			{
+				int next = rows.nextClearBit(pendingRow + 1);
+				successorId = (next < encounter.size()) ? encounter.getCreatureId(next) : 0;
+				activeRemoved = true;
+			}
+		}
+
+		if (rows.isEmpty() || getNumEffects() == 0)
+			return;
+
+		HashMap<Integer, Integer> removedRows = new HashMap<Integer, Integer>();
+		for (int row = rows.nextSetBit(0); row >= 0 && row < encounter.size(); row = rows.nextSetBit(row + 1))
+			removedRows.put(encounter.getCreatureId(row), row);
+
+		ArrayList<Effect> moved = new ArrayList<Effect>();
+		ArrayList<Integer> movedFrom = new ArrayList<Integer>();
+		for (Bucket bucket : wheel)
+		{
+			for (Iterator<Map.Entry<Long, ArrayList<Effect>>> i = bucket.groups.entrySet().iterator(); i.hasNext();)
+			{
+				Map.Entry<Long, ArrayList<Effect>> group = i.next();
+				Integer row = removedRows.get((int) (group.getKey() >>> 1));
+				if (row == null)
+					continue;
+
+				i.remove();
+				bucket.size -= group.getValue().size();
+				if ((group.getKey() & 1) == START_OF_TURN)
+				{
+					for (Effect effect : group.getValue())
+					{
+						moved.add(effect);
+						movedFrom.add(row);
+					}
+				}
+			}
+		}
+
+		for (int i = 0; i < moved.size(); i++)
+		{
+			// Past the last row, the next turn is the first creature's in the next round
+			Effect effect = moved.get(i);
+			int next = rows.nextClearBit(movedFrom.get(i) + 1);
+			int dueRound = effect.dueRound;
+			if (next >= encounter.size())
+			{
+				next = rows.nextClearBit(0);
+				dueRound++;
+			}
+			if (next >= encounter.size())
+				continue;
+
+			effect.anchorId = encounter.getCreatureId(next);
+			effect.dueRound = dueRound;
+			wheel[dueRound & (WHEEL_SIZE - 1)].add(effect);
+		}
+	}
+
+	// Adds an effect on the creature in targetRow that lasts the given number of rounds, ending
+	// at the start of the current creature's turn that many rounds from now. Before combat it
+	// ends at the start of the target's own turn in that round.
+	public Effect addForRounds(String description, int targetRow, int rounds)
+	{
+		if (rounds < 1)
+			throw new IllegalArgumentException("Effect must last at least one round, not " + rounds);
+
+		int anchorRow = (getActiveRow() >= 0) ? activeRow : targetRow;
+		int dueRound = Math.max(round, 1) + rounds;
+		return add(description, targetRow, encounter.getCreatureId(anchorRow), START_OF_TURN, dueRound);
+	}
+
+	// Adds an effect on the creature in targetRow that lasts until the end of its next turn: this
+	// round if it has yet to act, otherwise the next
+	public Effect addUntilEndOfNextTurn(String description, int targetRow)
+	{
+		int active = getActiveRow();
+		int dueRound;
+		if (round == 0)
+			dueRound = 1;
+		else if (active >= 0 && targetRow > active)
+			dueRound = round;
+		else
+			dueRound = round + 1;
+
+		return add(description, targetRow, encounter.getCreatureId(targetRow), END_OF_TURN, dueRound);
+	}
+
+	// Takes an effect off the wheel before it ends. Returns false if it was not waiting.
+	public boolean cancel(Effect effect)
+	{
+		return wheel[effect.dueRound & (WHEEL_SIZE - 1)].remove(effect);
+	}
+
+	// Number of effects waiting to end
+	public int getNumEffects()
+	{
+		int count = 0;
+		for (Bucket bucket : wheel)
+			count += bucket.size;
+		return count;
+	}
+
+	private Effect add(String description, int targetRow, int anchorId, int phase, int dueRound)
+	{
+		Effect effect = new Effect(description, encounter.getName(targetRow), anchorId, phase, dueRound);
+		wheel[dueRound & (WHEEL_SIZE - 1)].add(effect);
+		return effect;
+	}
+
+	private void beginTurn(int row, List<Effect> expired)
+	{
+		activeRow = row;
+		activeId = encounter.getCreatureId(row);
+		activeRemoved = false;
+		expire(activeId, START_OF_TURN, expired);
+	}
+
+	// Moves the effects due this round on a creature's turn from the wheel to expired
+	private void expire(int anchorId, int phase, List<Effect> expired)
+	{
+		Bucket bucket = wheel[round & (WHEEL_SIZE - 1)];
+		Long key = groupKey(anchorId, phase);
+		List<Effect> group = bucket.groups.get(key);
+		if (group == null)
+			return;
+
+		for (Iterator<Effect> i = group.iterator(); i.hasNext();)
+		{
+			Effect effect = i.next();
+			if (effect.dueRound <= round)
+			{
+				expired.add(effect);
+				i.remove();
+				bucket.size--;
+			}
+		}
+		if (group.isEmpty())
+			bucket.groups.remove(key);
+	}
+
+	// Moves the effects left in this round's bucket that were due by now to expired, as the
+	// round ends
+	private void expireOverdue(List<Effect> expired)
+	{
+		Bucket bucket = wheel[round & (WHEEL_SIZE - 1)];
+		for (Iterator<ArrayList<Effect>> i = bucket.groups.values().iterator(); i.hasNext();)
+		{
+			ArrayList<Effect> group = i.next();
+			for (Iterator<Effect> j = group.iterator(); j.hasNext();)
+			{
+				Effect effect = j.next();
+				if (effect.dueRound <= round)
+				{
+					expired.add(effect);
+					j.remove();
+					bucket.size--;
+				}
+			}
+			if (group.isEmpty())
+				i.remove();
+		}
+	}
+
+	private static Long groupKey(int anchorId, int phase)
+	{
+		return ((long) anchorId << 1) | phase;
+	}
+
+	// The effects due in the rounds that share one slot of the wheel
+	private static final class Bucket
+	{
+		final HashMap<Long, ArrayList<Effect>> groups = new HashMap<Long, ArrayList<Effect>>();
+		int size;
+
+		void add(Effect effect)
+		{
+			ArrayList<Effect> group = groups.get(groupKey(effect.anchorId, effect.phase));
+			if (group == null)
+			{
+				group = new ArrayList<Effect>();
+				groups.put(groupKey(effect.anchorId, effect.phase), group);
+			}
+			group.add(effect);
+			size++;
+		}
+
+		boolean remove(Effect effect)
+		{
+			Long key = groupKey(effect.anchorId, effect.phase);
+			ArrayList<Effect> group = groups.get(key);
+			if (group == null || !group.remove(effect))
+				return false;
+
+			if (group.isEmpty())
+				groups.remove(key);
+			size--;
+			return true;
+		}
+
+		void clear()
+		{
+			groups.clear();
+			size = 0;
+		}
+	}
+
+	// A condition or other effect waiting to end
+	public static final class Effect
+	{
+		private final String description;
+		private final String targetName;
+		private final int phase;
+
+		// Creature on whose turn the effect ends and the round it ends in, which change if that
+		// creature is removed
+		private int anchorId;
+		private int dueRound;
+
+		private Effect(String description, String targetName, int anchorId, int phase, int dueRound)
+		{
+			this.description = description;
+			this.targetName = targetName;
+			this.anchorId = anchorId;
+			this.phase = phase;
+			this.dueRound = dueRound;
+		}
+
+		public String getDescription()
+		{
+			return description;
+		}
+
+		// Name of the creature the effect was put on, as it was then
+		public String getTargetName()
+		{
+			return targetName;
+		}
+
+		// Round in which the effect ends
+		public int getDueRound()
+		{
+			return dueRound;
+		}
+
+		// START_OF_TURN or END_OF_TURN
+		public int getPhase()
+		{
+			return phase;
+		}
+
+		@Override
+		public String toString()
+		{
+			return targetName + ": " + description;
+		}
+	}
+}
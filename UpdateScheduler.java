@@ -0,0 +1,221 @@
+/* ********************************************************************************************
+ * UpdateScheduler.java
+ *
+ * Collects changes that need showing in the tracker's table and applies them together in a
+ * single frame run by Display.asyncExec, rather than repainting after each one.
+ *
+ * Within a frame, the latest pending cell edit is committed to the encounter once, every row
+ * that changed is cleared so the virtual table fills it in again, and the columns are laid out
+ * once however many resize events arrived. Frames that touch many rows suspend redrawing
+ * until they are done. Frames that do anything are timed in the tracker's metrics, and then
+ * passed on to a listener, if one is set, with the rows they cleared, so it can follow what was
+ * shown without looking at every row.
+ *
+ * Rows are given in the encounter's terms and shown through DisplayRows. Each frame first brings
+ * the display rows up to date, and if the mapping changed, such as after filtering, every row is
+ * redrawn; otherwise only the table rows showing the changed encounter rows are, which for a
+ * creature in a collapsed group is the group's row.
+ * ******************************************************************************************** */
+
+package tracker;
+
+import java.util.BitSet;
+
+import org.eclipse.swt.widgets.Table;
+
+public class UpdateScheduler
+{
+
+	// Frames that clear at least this many rows suspend redrawing while they do
+	private static final int BULK_ROWS = 8;
+
+	private final Table table;
+	private final DisplayRows rows;
+	private final TrackerMetrics metrics;
+
+	// Work for the next frame
+	private final BitSet dirtyRows;
+	private boolean refreshAll;
+	private boolean countChanged;
+	private boolean layoutColumns;
+	private Runnable pendingCommit;
+
+	// Told after each frame that did anything, or null
+	private FrameListener frameListener;
+
+	// Whether a frame has been posted and not yet run
+	private boolean scheduled;
+
+	private final Runnable frame = new Runnable()
+	{
+		public void run()
+		{
+			scheduled = false;
+			flush();
+		}
+	};
+
+	public UpdateScheduler(Table table, DisplayRows rows, TrackerMetrics metrics)
+	{
+		this.table = table;
+		this.rows = rows;
+		this.metrics = metrics;
+		dirtyRows = new BitSet();
+	}
+
+	// Redraws the table row showing an encounter row in the next frame
+	public void rowChanged(int row)
+	{
+		dirtyRows.set(row);
+		schedule();
+	}
+
+	public void rowsChanged(int[] changedRows)
+	{
+		for (int row : changedRows)
+			dirtyRows.set(row);
+		schedule();
+	}
+
+	// Redraws encounter rows first to last, in either order, in the next frame
+	public void rowsChanged(int first, int last)
+	{
+		dirtyRows.set(Math.min(first, last), Math.max(first, last) + 1);
+		schedule();
+	}
+
+	// Adds or drops rows at the bottom of the table in the next frame to match the display rows
+	public void rowCountChanged()
+	{
+		countChanged = true;
+		schedule();
+	}
+
+	// Redraws every row in the next frame, also picking up any change in the number of rows
+	public void tableChanged()
+	{
+		refreshAll = true;
+		schedule();
+	}
+
+	// Shares the table's width between its columns in the next frame
+	public void columnsResized()
+	{
+		layoutColumns = true;
+		schedule();
+	}
+
+	// Runs commit in the next frame, in place of any commit still waiting. Used for edits made
+	// as the user types, so only the text they end up with on each frame is committed.
+	public void commitLater(Runnable commit)
+	{
+		pendingCommit = commit;
+		schedule();
+	}
+
+	// Tells listener about every frame that does anything, in place of any listener already set.
+	// null stops it.
+	public void setFrameListener(FrameListener listener)
+	{
+		frameListener = listener;
+	}
+
+	// Does everything waiting for the next frame now, such as before the editor it came from
+	// goes away
+	public void flush()
+	{
+		if (table.isDisposed())
+			return;
+
+		long start = System.nanoTime();
+		Runnable commit = pendingCommit;
+		pendingCommit = null;
+		if (commit != null)
+			commit.run();
+
+		if (rows.update(refreshAll || countChanged))
+			refreshAll = true;
+
+		int numDirty = refreshAll ? rows.size() : dirtyRows.cardinality();
+		if (numDirty == 0 && !refreshAll && !countChanged && !layoutColumns)
+		{
+			if (commit != null)
+			{
+				metrics.record(TrackerMetrics.FRAME, start);
+				frameDone(dirtyRows, false);
+			}
+			return;
+		}
+
+		// Kept for the listener, since the frame clears them
+		BitSet clearedRows = (frameListener == null || refreshAll) ? null : (BitSet) dirtyRows.clone();
+		boolean rowsChanged = refreshAll || countChanged;
+
+		boolean bulk = numDirty >= BULK_ROWS || countChanged || layoutColumns;
+		if (bulk)
+			table.setRedraw(false);
+
+		try
+		{
+			if (refreshAll || countChanged)
+				table.setItemCount(rows.size());
+
+			if (refreshAll)
+				table.clearAll();
+			else
+			{
+				int numItems = table.getItemCount();
+				for (int row = dirtyRows.nextSetBit(0); row >= 0; row = dirtyRows.nextSetBit(row + 1))
+				{
+					int displayRow = rows.getDisplayRowShowing(row);
+					if (displayRow >= 0 && displayRow < numItems)
+						table.clear(displayRow);
+				}
+			}
+
+			if (layoutColumns)
+			{
+				int numCols = table.getColumnCount();
+				int width = table.getClientArea().width / numCols;
+				for (int i = 0; i < numCols; i++)
+					table.getColumn(i).setWidth(width);
+			}
+		}
+		finally
+		{
+			refreshAll = false;
+			countChanged = false;
+			layoutColumns = false;
+			dirtyRows.clear();
+
+			if (bulk)
+				table.setRedraw(true);
+
+			metrics.record(TrackerMetrics.FRAME, start);
+		}
+		frameDone((clearedRows == null) ? dirtyRows : clearedRows, rowsChanged);
+	}
+
+	private void frameDone(BitSet clearedRows, boolean rowsChanged)
+	{
+		if (frameListener != null)
+			frameListener.frameDone(clearedRows, rowsChanged);
+	}
+
+	// Follows what each frame showed
+	public interface FrameListener
+	{
+		// Called after a frame that cleared clearedRows. If rowsChanged is set, rows may also have
+		// been added, removed or reordered, and clearedRows may not cover them.
+		void frameDone(BitSet clearedRows, boolean rowsChanged);
+	}
+
+	private void schedule()
+	{
+		if (scheduled || table.isDisposed())
+			return;
+
+		scheduled = true;
+		table.getDisplay().asyncExec(frame);
+	}
+}
@@ -0,0 +1,464 @@
+/* ********************************************************************************************
+ * EncounterBenchmark.java
+ *
+ * Times the tracker's hot paths headlessly, without opening a window, at 10, 1,000 and 100,000
+ * creatures: sorting into turn order, rolling initiative for checked creatures, validating
+ * numeric cells, removing checked creatures and adding creature copies.
+ *
+ * Each benchmark runs warmup iterations and then measured iterations of about a second each,
+ * and reports the average time per operation. Results are written as JSON in the layout JMH
+ * uses, so they can be compared with the usual JMH tools and across runs:
+ *
+ *     java -cp <classes> tracker.EncounterBenchmark [results.json]
+ *
+ * State that an operation changes is rebuilt before every operation, outside the timed part.
+ * ******************************************************************************************** */
+
+package tracker;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Locale;
+import java.util.SplittableRandom;
+
+public class EncounterBenchmark
+{
+
+	private static final int[] SIZES = { 10, 1000, 100000 };
+
+	// The legacy selection sort is quadratic and takes minutes at larger sizes
+	private static final int LEGACY_SORT_MAX_SIZE = 1000;
+
+	private static final int WARMUP_ITERATIONS = 5;
+	private static final int MEASUREMENT_ITERATIONS = 5;
+	private static final long ITERATION_NANOS = 1000000000L;
+
+	// z for a 99.9% confidence interval, the interval JMH reports
+	private static final double CONFIDENCE_Z = 3.291;
+
+	private static final String DEFAULT_RESULTS_FILE = "benchmark-results.json";
+
+	private static final long SEED = 20;
+
+	// Results of every run are folded in here, so the work can't be optimized away
+	private static long sink;
+
+	public static void main(String[] args) throws IOException
+	{
+		Path resultsFile = Paths.get((args.length > 0) ? args[0] : DEFAULT_RESULTS_FILE);
+
+		ArrayList<Result> results = new ArrayList<Result>();
+		for (Benchmark benchmark : benchmarks())
+		{
+			for (int size : SIZES)
+			{
+				if (!benchmark.supports(size))
+					continue;
+
+				Result result = measure(benchmark, size);
+				results.add(result);
+				System.out.printf(Locale.ROOT, "%-28s %7d  %14.3f +- %10.3f us/op%n", benchmark.name, size,
+						result.score(), result.error());
+			}
+		}
+
+		writeResults(results, resultsFile);
+		System.out.println("Results written to " + resultsFile.toAbsolutePath() + " (sink " + sink + ")");
+	}
+
+	private static Benchmark[] benchmarks()
+	{
+		return new Benchmark[] {
+
+			// The original table sort: a selection sort that parses initiative and modifier text
+			// on every comparison
+			new Benchmark("sort.legacySelection")
+			{
+				String[][] rows;
+
+				@Override
+				boolean supports(int size)
+				{
+					return size <= LEGACY_SORT_MAX_SIZE;
+				}
+
+				@Override
+				void setUp(int size)
+				{
+					Encounter encounter = shuffled(size);
+					rows = new String[size][];
+					for (int i = 0; i < size; i++)
+						rows[i] = encounter.getRowText(i);
+				}
+
+				@Override
+				long run()
+				{
+					legacySort(rows);
+					return rows[0][Encounter.INIT].length();
+				}
+			},
+
+			new Benchmark("sort.byInitiative")
+			{
+				Encounter encounter;
+
+				@Override
+				void setUp(int size)
+				{
+					encounter = shuffled(size);
+				}
+
+				@Override
+				long run()
+				{
+					return encounter.sortByInitiative()[0];
+				}
+			},
+
+			new Benchmark("roll.checked")
+			{
+				Encounter encounter;
+				BitSet checked;
+				InitiativeRoller roller = new InitiativeRoller(SEED);
+
+				@Override
+				void setUp(int size)
+				{
+					if (encounter == null || encounter.size() != size)
+					{
+						encounter = populated(size);
+						checked = everyOther(size);
+					}
+				}
+
+				@Override
+				long run()
+				{
+					return roller.rollInitiative(encounter, checked, InitiativeRoller.NORMAL).length;
+				}
+			},
+
+			// The regular expression the cell editor and new creature dialogs validated with before CellCodec
+			new Benchmark("validate.numericField")
+			{
+				String[] cells;
+
+				@Override
+				void setUp(int size)
+				{
+					if (cells == null || cells.length != size)
+						cells = numericCells(size);
+				}
+
+				@Override
+				long run()
+				{
+					long valid = 0;
+					for (String cell : cells)
+					{
+						if (cell.matches("[+-]*\\d\\d*"))
+							valid++;
+					}
+					return valid;
+				}
+			},
+
+			new Benchmark("validate.cellCodec")
+			{
+				String[] cells;
+
+				@Override
+				void setUp(int size)
+				{
+					if (cells == null || cells.length != size)
+						cells = numericCells(size);
+				}
+
+				@Override
+				long run()
+				{
+					long valid = 0;
+					for (String cell : cells)
+					{
+						if (CellCodec.isNumber(cell))
+							valid++;
+					}
+					return valid;
+				}
+			},
+
+			new Benchmark("remove.checked")
+			{
+				Encounter encounter;
+				BitSet checked;
+
+				@Override
+				void setUp(int size)
+				{
+					encounter = populated(size);
+					checked = everyOther(size);
+				}
+
+				@Override
+				long run()
+				{
+					return encounter.removeAll(checked);
+				}
+			},
+
+			// "Add Creature Copies" with as many copies as the benchmark size
+			new Benchmark("add.copies")
+			{
+				Encounter encounter;
+				CreatureTemplate template = new CreatureTemplate("Goblin", 2, 7, 15);
+
+				@Override
+				void setUp(int size)
+				{
+					encounter = new Encounter(SEED);
+				}
+
+				@Override
+				long run()
+				{
+					encounter.addCopies(template, Encounter.NO_INIT, 0, 1);
+					if (size > 1)
+						encounter.addCopies(template, Encounter.NO_INIT, 2, size - 1);
+					return encounter.size();
+				}
+			},
+		};
+	}
+
+	// Runs one benchmark at one size and returns the time per operation of each measured iteration
+	private static Result measure(Benchmark benchmark, int size)
+	{
+		benchmark.size = size;
+		double[] scores = new double[MEASUREMENT_ITERATIONS];
+
+		for (int iteration = 0; iteration < WARMUP_ITERATIONS + MEASUREMENT_ITERATIONS; iteration++)
+		{
+			long elapsed = 0;
+			long operations = 0;
+			long deadline = System.nanoTime() + ITERATION_NANOS;
+
+			do
+			{
+				benchmark.setUp(size);
+
+				long start = System.nanoTime();
+				sink += benchmark.run();
+				elapsed += System.nanoTime() - start;
+				operations++;
+			} while (System.nanoTime() < deadline);
+
+			if (iteration >= WARMUP_ITERATIONS)
+				scores[iteration - WARMUP_ITERATIONS] = elapsed / 1000.0 / operations;
+		}
+
+		return new Result(benchmark.name, size, scores);
+	}
+
+	// Creatures with a spread of rolled initiatives, modifiers and names
+	private static Encounter populated(int size)
+	{
+		SplittableRandom random = new SplittableRandom(SEED);
+		Encounter encounter = new Encounter(SEED);
+		for (int i = 0; i < size; i++)
+		{
+			int mod = random.nextInt(-1, 6);
+			encounter.add("Creature " + i, random.nextInt(1, 21) + mod, mod, 10 + random.nextInt(50), 10 + random.nextInt(10));
+		}
+		return encounter;
+	}
+
+	// Text typed into numeric cells: mostly numbers, some blank and some not numbers at all
+	private static String[] numericCells(int size)
+	{
+		SplittableRandom random = new SplittableRandom(SEED);
+		String[] cells = new String[size];
+		for (int i = 0; i < size; i++)
+		{
+			switch (random.nextInt(4))
+			{
+				case 0:
+					cells[i] = "";
+					break;
+				case 1:
+					cells[i] = "+" + random.nextInt(30);
+					break;
+				case 2:
+					cells[i] = "goblin";
+					break;
+				default:
+					cells[i] = Integer.toString(random.nextInt(-5, 300));
+			}
+		}
+		return cells;
+	}
+
+	private static Encounter shuffled(int size)
+	{
+		Encounter encounter = populated(size);
+
+		SplittableRandom random = new SplittableRandom(SEED + size);
+		int[] order = new int[size];
+		for (int i = 0; i < size; i++)
+		{
+			int j = random.nextInt(i + 1);
+			order[i] = order[j];
+			order[j] = i;
+		}
+		encounter.permute(order);
+		return encounter;
+	}
+
+	private static BitSet everyOther(int size)
+	{
+		BitSet rows = new BitSet(size);
+		for (int i = 0; i < size; i += 2)
+			rows.set(i);
+		return rows;
+	}
+
+	// Selection sort by initiative then modifier, re-parsing both cells on every comparison as
+	// the table-based tracker did
+	private static void legacySort(String[][] rows)
+	{
+		for (int i = 0; i < rows.length; i++)
+		{
+			int max = i;
+			for (int j = i + 1; j < rows.length; j++)
+			{
+				int initCurrent = rows[j][Encounter.INIT].isEmpty() ? Integer.MIN_VALUE : Integer.parseInt(rows[j][Encounter.INIT]);
+				int initMax = rows[max][Encounter.INIT].isEmpty() ? Integer.MIN_VALUE : Integer.parseInt(rows[max][Encounter.INIT]);
+
+				if (initCurrent == initMax)
+				{
+					if (Integer.parseInt(rows[j][Encounter.MOD]) > Integer.parseInt(rows[max][Encounter.MOD]))
+						max = j;
+				}
+				else if (initCurrent > initMax)
+					max = j;
+			}
+
+			String[] temp = rows[i];
+			rows[i] = rows[max];
+			rows[max] = temp;
+		}
+	}
+
+	private static void writeResults(ArrayList<Result> results, Path file) throws IOException
+	{
+		try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8))
+		{
+			writer.write("[");
+			for (int r = 0; r < results.size(); r++)
+			{
+				Result result = results.get(r);
+				double score = result.score();
+				double error = result.error();
+
+				StringBuilder rawData = new StringBuilder();
+				for (int i = 0; i < result.scores.length; i++)
+				{
+					if (i > 0)
+						rawData.append(", ");
+					rawData.append(format(result.scores[i]));
+				}
+
+				writer.write((r > 0) ? ",\n" : "\n");
+				writer.write("    {\n");
+				writer.write("        \"benchmark\" : \"tracker.EncounterBenchmark." + result.benchmark + "\",\n");
+				writer.write("        \"mode\" : \"avgt\",\n");
+				writer.write("        \"threads\" : 1,\n");
+				writer.write("        \"forks\" : 1,\n");
+				writer.write("        \"warmupIterations\" : " + WARMUP_ITERATIONS + ",\n");
+				writer.write("        \"measurementIterations\" : " + MEASUREMENT_ITERATIONS + ",\n");
+				writer.write("        \"params\" : {\n");
+				writer.write("            \"size\" : \"" + result.size + "\"\n");
+				writer.write("        },\n");
+				writer.write("        \"primaryMetric\" : {\n");
+				writer.write("            \"score\" : " + format(score) + ",\n");
+				writer.write("            \"scoreError\" : " + format(error) + ",\n");
+				writer.write("            \"scoreConfidence\" : [ " + format(score - error) + ", " + format(score + error) + " ],\n");
+				writer.write("            \"scoreUnit\" : \"us/op\",\n");
+				writer.write("            \"rawData\" : [ [ " + rawData + " ] ]\n");
+				writer.write("        }\n");
+				writer.write("    }");
+			}
+			writer.write("\n]\n");
+		}
+	}
+
+	private static String format(double value)
+	{
+		return String.format(Locale.ROOT, "%.6f", value);
+	}
+
+	// One operation to time. Subclasses keep whatever state the operation needs in fields.
+	private abstract static class Benchmark
+	{
+		final String name;
+
+		// Number of creatures the current run is for
+		int size;
+
+		Benchmark(String name)
+		{
+			this.name = name;
+		}
+
+		boolean supports(int size)
+		{
+			return true;
+		}
+
+		// Prepares the state for the next operation; not timed
+		abstract void setUp(int size);
+
+		// The timed operation. Returns something derived from its result for the sink.
+		abstract long run();
+	}
+
+	private static class Result
+	{
+		final String benchmark;
+		final int size;
+		final double[] scores;
+
+		Result(String benchmark, int size, double[] scores)
+		{
+			this.benchmark = benchmark;
+			this.size = size;
+			this.scores = scores;
+		}
+
+		double score()
+		{
+			double sum = 0;
+			for (double score : scores)
+				sum += score;
+			return sum / scores.length;
+		}
+
+		// Half the width of the confidence interval around score
+		double error()
+		{
+			double mean = score();
+			double squares = 0;
+			for (double score : scores)
+				squares += (score - mean) * (score - mean);
+
+			double deviation = Math.sqrt(squares / (scores.length - 1));
+			return CONFIDENCE_Z * deviation / Math.sqrt(scores.length);
+		}
+	}
+}
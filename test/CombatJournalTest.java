@@ -0,0 +1,219 @@
+/* ********************************************************************************************
+ * CombatJournalTest.java
+ *
+ * Checks that the journal gives back every earlier state of an encounter: undoing a run of
+ * changes one at a time passes back through each state they went through, redoing them comes
+ * out where they ended, and replaying the journal file gives the same encounter and history.
+ * Changes made of several events, and typed edits to one cell, undo in a single step, and an
+ * event that does not fit the encounter it is read for is rejected.
+ *
+ * Runs headlessly against EncounterEngine with JUnit 4 on the classpath.
+ * ******************************************************************************************** */
+
+package tracker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class CombatJournalTest
+{
+
+	private static final long SEED = 42;
+
+	private Path journalFile;
+
+	@After
+	public void deleteJournal() throws IOException
+	{
+		if (journalFile != null)
+			Files.deleteIfExists(journalFile);
+	}
+
+	@Test
+	public void undoAndRedoPassThroughEveryState()
+	{
+		EncounterEngine engine = new EncounterEngine(SEED);
+		List<String> states = new ArrayList<String>();
+		states.add(state(engine.getEncounter()));
+
+		Random random = new Random(SEED);
+		for (int i = 0; i < 200; i++)
+		{
+			int position = engine.getJournal().getPosition();
+			change(engine, random);
+			if (engine.getJournal().getPosition() != position)
+				states.add(state(engine.getEncounter()));
+		}
+
+		for (int i = states.size() - 1; i > 0; i--)
+		{
+			assertEquals(states.get(i), state(engine.getEncounter()));
+			assertTrue(engine.canUndo());
+			engine.undo();
+		}
+		assertEquals(states.get(0), state(engine.getEncounter()));
+		assertFalse(engine.canUndo());
+
+		for (int i = 1; i < states.size(); i++)
+		{
+			assertTrue(engine.canRedo());
+			engine.redo();
+			assertEquals(states.get(i), state(engine.getEncounter()));
+		}
+		assertFalse(engine.canRedo());
+	}
+
+	@Test
+	public void replayGivesTheSameEncounterAndHistory() throws IOException
+	{
+		journalFile = Files.createTempFile("tracker", ".journal");
+		String expected;
+		int position;
+		int size;
+		try (EncounterEngine engine = new EncounterEngine(SEED, journalFile))
+		{
+			Random random = new Random(SEED);
+			for (int i = 0; i < 100; i++)
+				change(engine, random);
+			engine.undo();
+			engine.undo();
+
+			expected = state(engine.getEncounter());
+			position = engine.getJournal().getPosition();
+			size = engine.getJournal().size();
+		}
+
+		EncounterEngine replayed = new EncounterEngine(SEED);
+		replayed.replay(journalFile);
+		assertEquals(expected, state(replayed.getEncounter()));
+		assertEquals(position, replayed.getJournal().getPosition());
+		assertEquals(size, replayed.getJournal().size());
+
+		// The history came back too
+		replayed.redo();
+		replayed.redo();
+		assertFalse(replayed.canRedo());
+	}
+
+	@Test
+	public void sortedAddUndoesInOneStep()
+	{
+		EncounterEngine engine = new EncounterEngine(SEED);
+		engine.setKeepSorted(true);
+		engine.addCreatures("Goblin", 10, 2, 7, 15, 3);
+		String before = state(engine.getEncounter());
+
+		engine.addCreatures("Ogre", 15, -1, 59, 11, 2);
+		assertEquals("Ogre", engine.getEncounter().getName(0));
+
+		engine.undo();
+		assertEquals(before, state(engine.getEncounter()));
+	}
+
+	@Test
+	public void typedEditsToOneCellUndoInOneStep()
+	{
+		EncounterEngine engine = new EncounterEngine(SEED);
+		engine.addCreatures("Goblin", 10, 2, 7, 15, 1);
+		int position = engine.getJournal().getPosition();
+
+		engine.setText(0, Encounter.HP_CURRENT, "1");
+		engine.setText(0, Encounter.HP_CURRENT, "12");
+		engine.setText(0, Encounter.HP_CURRENT, "");
+		engine.setText(0, Encounter.HP_CURRENT, "3");
+		assertEquals(3, engine.getEncounter().getHPCurrent(0));
+		assertEquals(position + 1, engine.getJournal().getPosition());
+
+		engine.undo();
+		assertEquals(7, engine.getEncounter().getHPCurrent(0));
+		assertEquals(position, engine.getJournal().getPosition());
+	}
+
+	@Test
+	public void eventOutsideTheEncounterIsRejected()
+	{
+		byte[] bytes = CombatEvent.moved(5, 0).toBytes();
+		try
+		{
+			CombatEvent.read(new DataInputStream(new ByteArrayInputStream(bytes)), CombatJournal.VERSION, 2, 3);
+			fail("Moved a creature from a row past the end of the encounter");
+		}
+		catch (IOException e)
+		{
+			// Expected
+		}
+	}
+
+	// Makes one random change, or none if the change drawn cannot be made
+	private static void change(EncounterEngine engine, Random random)
+	{
+		Encounter encounter = engine.getEncounter();
+		int size = encounter.size();
+		switch ((size == 0) ? 0 : random.nextInt(6))
+		{
+			case 0:
+				engine.addCreatures("Orc", random.nextInt(20), random.nextInt(5) - 2, 15, 13, 1 + random.nextInt(4));
+				break;
+
+			case 1:
+				if (size > 1)
+				{
+					engine.setAllChecked(false);
+					engine.setChecked(random.nextInt(size), true);
+					engine.removeChecked();
+				}
+				break;
+
+			case 2:
+				BitSet rows = new BitSet();
+				rows.set(random.nextInt(size));
+				rows.set(random.nextInt(size));
+				engine.damage(rows, 1 + random.nextInt(10));
+				break;
+
+			case 3:
+				int from = random.nextInt(size);
+				int to = random.nextInt(size);
+				if (to != from)
+					engine.moveRows(new int[] { from }, to);
+				break;
+
+			case 4:
+				engine.setAllChecked(true);
+				engine.rollChecked(InitiativeRoller.NORMAL);
+				break;
+
+			default:
+				engine.sortByInitiative();
+				break;
+		}
+	}
+
+	// Every cell and id of every row, in order
+	private static String state(Encounter encounter)
+	{
+		StringBuilder text = new StringBuilder();
+		for (int row = 0; row < encounter.size(); row++)
+		{
+			text.append(encounter.getCreatureId(row)).append(':');
+			text.append(String.join(",", encounter.getRowText(row)));
+			text.append(',').append(encounter.getTiebreak(row)).append('\n');
+		}
+		return text.toString();
+	}
+}
@@ -0,0 +1,177 @@
+/* ********************************************************************************************
+ * EncounterFileTest.java
+ *
+ * Checks that encounters saved in each version of the binary format load as they were saved.
+ * The current version is saved and loaded again; files in versions 1 and 2, which the tracker
+ * no longer writes, are built by hand in their layouts. Version 1 files have no creature ids, so
+ * creatures are numbered from 1 as they load, and files before version 3 have no batches, so
+ * every template loads in batch 0.
+ *
+ * Runs headlessly against Encounter with JUnit 4 on the classpath.
+ * ******************************************************************************************** */
+
+package tracker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class EncounterFileTest
+{
+
+	private static final int MAGIC = 0x494E4954;
+	private static final long SEED = 1234;
+
+	private Path file;
+
+	@Before
+	public void createFile() throws IOException
+	{
+		file = Files.createTempFile("tracker", ".enc");
+	}
+
+	@After
+	public void deleteFile() throws IOException
+	{
+		Files.deleteIfExists(file);
+	}
+
+	@Test
+	public void currentVersionRoundTrips() throws IOException
+	{
+		Encounter saved = new Encounter(SEED);
+		CreatureTemplate goblin = new CreatureTemplate("Goblin", 2, 7, 15, saved.newBatch());
+		CreatureTemplate ogre = new CreatureTemplate("Ogre", -1, 59, 11, saved.newBatch());
+		saved.addCopies(goblin, 12, 0, 1);
+		saved.addCopies(goblin, 8, 2, 2);
+		saved.addCopies(ogre, Encounter.NO_INIT, 0, 1);
+		saved.setHPCurrent(1, 3);
+		saved.remove(0);
+		saved.setText(2, Encounter.NAME, "Ogre Chief");
+
+		EncounterFile.save(saved, file);
+		Encounter loaded = new Encounter();
+		EncounterFile.load(file, loaded);
+
+		assertEquals(SEED, loaded.getSeed());
+		assertEquals(saved.size(), loaded.size());
+		assertEquals(saved.getNextCreatureId(), loaded.getNextCreatureId());
+		for (int row = 0; row < saved.size(); row++)
+		{
+			assertEquals(Arrays.asList(saved.getRowText(row)), Arrays.asList(loaded.getRowText(row)));
+			assertEquals(saved.getCreatureId(row), loaded.getCreatureId(row));
+			assertEquals(saved.getSuffix(row), loaded.getSuffix(row));
+			assertEquals(saved.getTiebreak(row), loaded.getTiebreak(row));
+			assertEquals(saved.getTemplate(row).getBatch(), loaded.getTemplate(row).getBatch());
+		}
+
+		// Copies still share their template
+		assertSame(loaded.getTemplate(0), loaded.getTemplate(1));
+	}
+
+	@Test
+	public void version1LoadsWithNewIds() throws IOException
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(1024);
+		buffer.putInt(MAGIC).putInt(1).putLong(SEED);
+		buffer.putInt(2).putInt(3).putInt(2);
+		putColumns(buffer, new int[][] { { 0, 1 }, { 2, -1 }, { 7, 59 }, { 15, 11 } });
+		putColumns(buffer, new int[][] { { 0, 0, 1 }, { 0, 2, 0 }, { 12, 8, 5 }, { 7, 3, 59 }, { 4, 9, 1 } });
+		putNames(buffer, "Goblin", "Ogre");
+		write(buffer);
+
+		Encounter loaded = new Encounter();
+		EncounterFile.load(file, loaded);
+
+		assertEquals(SEED, loaded.getSeed());
+		assertEquals(3, loaded.size());
+		assertEquals(Arrays.asList("Goblin 2", "8", "2", "3", "7", "15"), Arrays.asList(loaded.getRowText(1)));
+		assertEquals("Ogre", loaded.getName(2));
+		assertEquals(9, loaded.getTiebreak(1));
+		for (int row = 0; row < 3; row++)
+		{
+			assertEquals(row + 1, loaded.getCreatureId(row));
+			assertEquals(0, loaded.getTemplate(row).getBatch());
+		}
+		assertEquals(4, loaded.getNextCreatureId());
+	}
+
+	@Test
+	public void version2LoadsWithSavedIds() throws IOException
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(1024);
+		buffer.putInt(MAGIC).putInt(2).putLong(SEED);
+		buffer.putInt(1).putInt(2).putInt(1);
+		buffer.putInt(9);
+		putColumns(buffer, new int[][] { { 0 }, { 3 }, { 22 }, { 14 } });
+		putColumns(buffer, new int[][] { { 0, 0 }, { 0, 2 }, { 17, 11 }, { 22, 6 }, { 2, 5 }, { 4, 8 } });
+		putNames(buffer, "Hobgoblin");
+		write(buffer);
+
+		Encounter loaded = new Encounter();
+		EncounterFile.load(file, loaded);
+
+		assertEquals(2, loaded.size());
+		assertEquals(Arrays.asList("Hobgoblin 2", "11", "3", "6", "22", "14"), Arrays.asList(loaded.getRowText(1)));
+		assertEquals(4, loaded.getCreatureId(0));
+		assertEquals(8, loaded.getCreatureId(1));
+		assertEquals(1, loaded.findCreature(8));
+		assertEquals(0, loaded.getTemplate(0).getBatch());
+		assertEquals(9, loaded.getNextCreatureId());
+	}
+
+	@Test
+	public void truncatedFileIsRejected() throws IOException
+	{
+		Encounter saved = new Encounter(SEED);
+		saved.addCopies(new CreatureTemplate("Goblin", 2, 7, 15), 12, 0, 4);
+		EncounterFile.save(saved, file);
+
+		byte[] bytes = Files.readAllBytes(file);
+		Files.write(file, Arrays.copyOf(bytes, bytes.length - 20));
+		try
+		{
+			EncounterFile.load(file, new Encounter());
+			fail("Loaded a truncated file");
+		}
+		catch (IOException e)
+		{
+			// Expected
+		}
+	}
+
+	// Writes each column in turn
+	private static void putColumns(ByteBuffer buffer, int[][] columns)
+	{
+		for (int[] column : columns)
+		{
+			for (int value : column)
+				buffer.putInt(value);
+		}
+	}
+
+	// Writes the lengths of the names, then the names
+	private static void putNames(ByteBuffer buffer, String... names)
+	{
+		for (String name : names)
+			buffer.putInt(name.getBytes(StandardCharsets.UTF_8).length);
+		for (String name : names)
+			buffer.put(name.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private void write(ByteBuffer buffer) throws IOException
+	{
+		Files.write(file, Arrays.copyOf(buffer.array(), buffer.position()));
+	}
+}
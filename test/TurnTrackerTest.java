@@ -0,0 +1,101 @@
+/* ********************************************************************************************
+ * TurnTrackerTest.java
+ *
+ * Checks whose turn it is after creatures are removed part way through a round: removing the
+ * creature whose turn it is passes the turn on to the creature after it, or to the first
+ * creature in the next round if it was the last, and removing anyone else leaves the turn where
+ * it was.
+ *
+ * Runs headlessly against EncounterEngine with JUnit 4 on the classpath.
+ * ******************************************************************************************** */
+
+package tracker;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class TurnTrackerTest
+{
+
+	@Test
+	public void removingTheActiveCreaturePassesTheTurnOn()
+	{
+		EncounterEngine engine = combat(4);
+		TurnTracker turns = engine.getTurns();
+		turns.advance();
+		assertEquals(1, turns.getActiveRow());
+
+		int next = engine.getEncounter().getCreatureId(2);
+		remove(engine, 1);
+		assertEquals(-1, turns.getActiveRow());
+
+		turns.advance();
+		assertEquals(next, engine.getEncounter().getCreatureId(turns.getActiveRow()));
+		assertEquals(1, turns.getRound());
+	}
+
+	@Test
+	public void removingTheLastActiveCreatureStartsTheNextRound()
+	{
+		EncounterEngine engine = combat(3);
+		TurnTracker turns = engine.getTurns();
+		turns.advance();
+		turns.advance();
+		assertEquals(2, turns.getActiveRow());
+
+		remove(engine, 2);
+		turns.advance();
+		assertEquals(0, turns.getActiveRow());
+		assertEquals(2, turns.getRound());
+	}
+
+	@Test
+	public void removingTheActiveCreatureAndTheNextSkipsBoth()
+	{
+		EncounterEngine engine = combat(5);
+		TurnTracker turns = engine.getTurns();
+		turns.advance();
+
+		int next = engine.getEncounter().getCreatureId(3);
+		remove(engine, 1, 2);
+		turns.advance();
+		assertEquals(next, engine.getEncounter().getCreatureId(turns.getActiveRow()));
+	}
+
+	@Test
+	public void removingAnotherCreatureKeepsTheTurn()
+	{
+		EncounterEngine engine = combat(4);
+		TurnTracker turns = engine.getTurns();
+		turns.advance();
+		turns.advance();
+
+		int active = engine.getEncounter().getCreatureId(2);
+		remove(engine, 0);
+		assertEquals(1, turns.getActiveRow());
+		assertEquals(active, engine.getEncounter().getCreatureId(turns.getActiveRow()));
+
+		turns.advance();
+		assertEquals(2, turns.getActiveRow());
+		assertEquals(1, turns.getRound());
+	}
+
+	// Starts combat among count creatures in turn order
+	private static EncounterEngine combat(int count)
+	{
+		EncounterEngine engine = new EncounterEngine(7);
+		for (int i = 0; i < count; i++)
+			engine.addCreatures("Creature " + (char) ('A' + i), 20 - i, 0, 10, 10, 1);
+		engine.getTurns().start();
+		return engine;
+	}
+
+	private static void remove(EncounterEngine engine, int... rows)
+	{
+		engine.setAllChecked(false);
+		for (int row : rows)
+			engine.setChecked(row, true);
+		engine.removeChecked();
+	}
+}